@@ -0,0 +1,103 @@
+package pl.put;
+
+import pl.put.backend.EmbeddedCassandra;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Time to the first answered request of a fresh application JVM, against an embedded Cassandra:
+ * gradle startupTime -Pstartupargs="runs=5"
+ *
+ * Every run starts "pl.put.Main startup" in a child JVM on the main runtime classpath, which lists one
+ * book and prints the time since its JVM started. Runs with the config.properties defaults, with
+ * fast_start=true, and with fast_start=true on the AppCDS archive when gradle appCds has made one;
+ * the median of each is reported. With archive=<file> it instead makes one training run that dumps
+ * the classes it loaded to that archive (gradle appCds).
+ */
+public class StartupTime {
+
+    private static final String STARTUP_LINE = "startup_ms=";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+            }
+        }
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        String archive = options.get("archive");
+        String sharedArchive = options.getOrDefault("shared_archive", "");
+
+        EmbeddedCassandra.start();
+
+        if (archive != null) {
+            new File(archive).getAbsoluteFile().getParentFile().mkdirs();
+            long millis = run(List.of("-Dlibrary.fast_start=true", "-XX:ArchiveClassesAtExit=" + archive));
+            System.out.printf("AppCDS archive %s written, training run %d ms%n", archive, millis);
+            System.exit(0);
+        }
+
+        Map<String, List<String>> variants = new LinkedHashMap<>();
+        variants.put("default", List.of());
+        variants.put("fast_start", List.of("-Dlibrary.fast_start=true"));
+        if (!sharedArchive.isEmpty() && new File(sharedArchive).isFile()) {
+            variants.put("fast_start+appcds", List.of("-Dlibrary.fast_start=true", "-XX:SharedArchiveFile=" + sharedArchive));
+        }
+
+        // the first JVM warms the file cache and the cluster's prepared statement cache for all variants
+        run(List.of());
+        StringBuilder report = new StringBuilder(String.format("%-20s %10s %10s %10s%n", "variant", "median ms", "min ms", "max ms"));
+        for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+            long[] millis = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                millis[i] = run(variant.getValue());
+            }
+            Arrays.sort(millis);
+            report.append(String.format("%-20s %10d %10d %10d%n", variant.getKey(), millis[runs / 2], millis[0], millis[runs - 1]));
+        }
+        System.out.print("⏱ Startup to first request\n" + report);
+        System.exit(0);
+    }
+
+    private static long run(List<String> jvmArgs) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("startup.classpath", System.getProperty("java.class.path")));
+        command.add("-Dlibrary.contact_points=127.0.0.1");
+        command.add("-Dlibrary.native_port=" + EmbeddedCassandra.NATIVE_PORT);
+        command.add("-Dlibrary.keyspace=" + EmbeddedCassandra.KEYSPACE);
+        command.addAll(jvmArgs);
+        command.add(Main.class.getName());
+        command.add("startup");
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long millis = -1;
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.add(line);
+                if (line.startsWith(STARTUP_LINE)) {
+                    millis = Long.parseLong(line.substring(STARTUP_LINE.length()).trim());
+                }
+            }
+        }
+        if (process.waitFor() != 0 || millis < 0) {
+            throw new IllegalStateException("Startup run failed:\n" + String.join("\n", output));
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,138 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Baseline for BackendSession performance work. Throughput and SampleTime (p50/p99/p999) are
+ * reported for every benchmark; the jmh task adds the gc profiler for allocation rates.
+ *
+ * Allocation per call is the gc.alloc.rate.norm secondary result (bytes/op). Comparing two
+ * revisions means running the same -p selection on both, e.g.
+ * gradle jmh -Pjmhargs="BackendSessionBenchmark.rentBookCassandra -p books=1 -p rentMode=VALIDATE"
+ * and comparing that column of the bin/jmh JSON results.
+ *
+ * Contention is controlled with -p books=N: all benchmark threads pick their book uniformly
+ * from N books, each with bookCount copies, so books=1 is a single hot title.
+ *
+ * -p loanLayout=ROWS runs the same benchmarks against book_loans (with -p rentMode=VALIDATE).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(8)
+public class BackendSessionBenchmark {
+
+    private static final String LIBRARY_ID = "jmh";
+
+    @Param({"1", "16", "1024"})
+    public int books;
+
+    @Param({"5"})
+    public int bookCount;
+
+    @Param({"VALIDATE", "LWT"})
+    public RentMode rentMode;
+
+    @Param({"MAPS"})
+    public LoanLayout loanLayout;
+
+    private Cluster cluster;
+
+    private ScriptedBackendSession backendSession;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EmbeddedCassandra.start();
+        cluster = EmbeddedCassandra.cluster();
+        backendSession = new ScriptedBackendSession(cluster, EmbeddedCassandra.KEYSPACE);
+        backendSession.setRentMode(rentMode);
+        backendSession.setLoanLayout(loanLayout);
+
+        for (int i = 0; i < books; i++) {
+            backendSession.upsertBookCassandra(LIBRARY_ID, bookId(i), bookCount);
+            backendSession.upsertBookCassandra(LIBRARY_ID, fullBookId(i), bookCount);
+            for (int copy = 0; copy < bookCount; copy++) {
+                backendSession.rentBookCassandra("holder-" + copy, LIBRARY_ID, fullBookId(i));
+            }
+        }
+
+        // rentBook/returnBook report to stdout on every call
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+        cluster.close();
+    }
+
+    @State(Scope.Thread)
+    public static class User {
+
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        final String userId = "jmh-user-" + ids.incrementAndGet();
+
+        int nextBook(int books) {
+            return ThreadLocalRandom.current().nextInt(books);
+        }
+    }
+
+    @Benchmark
+    public ResultSet selectBookCassandra(User user) throws BackendException {
+        return backendSession.selectBookCassandra(LIBRARY_ID, bookId(user.nextBook(books)));
+    }
+
+    @Benchmark
+    public ResultSet rentBookCassandra(User user) throws BackendException {
+        return backendSession.rentBookCassandra(user.userId, LIBRARY_ID, bookId(user.nextBook(books)));
+    }
+
+    @Benchmark
+    public Book validate(User user) throws BackendException {
+        return backendSession.validate(LIBRARY_ID, bookId(user.nextBook(books)));
+    }
+
+    /*
+     * One repair round on a fully rented book: over-allocate, move the newest renter back to the
+     * queue and leave again.
+     */
+    @Benchmark
+    public boolean moveToQueue(User user) throws BackendException {
+        String bookId = fullBookId(user.nextBook(books));
+        backendSession.rentBookCassandra(user.userId, LIBRARY_ID, bookId);
+        Book book = backendSession.readBook(LIBRARY_ID, bookId);
+        boolean moved = backendSession.moveToQueue(book);
+        backendSession.returnBookCassandra(user.userId, LIBRARY_ID, bookId, book.getDueDate(user.userId));
+        return moved;
+    }
+
+    @Benchmark
+    public int rentReturnCycle(User user) throws BackendException {
+        backendSession.script(user.userId, LIBRARY_ID, bookId(user.nextBook(books)));
+        int rented = backendSession.rentBook();
+        return rented + backendSession.returnBook();
+    }
+
+    private static String bookId(int i) {
+        return "book-" + i;
+    }
+
+    private static String fullBookId(int i) {
+        return "full-book-" + i;
+    }
+}
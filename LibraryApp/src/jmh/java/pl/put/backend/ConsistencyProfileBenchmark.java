@@ -0,0 +1,114 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Cluster;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Throughput of the menu flows under each ConsistencyProfile preset, e.g.
+ * -Pjmhargs="ConsistencyProfileBenchmark -p profile=QUORUM,SERIAL -p books=1".
+ *
+ * At the end of every trial the conflicts (addConflict), conditional writes that were not applied
+ * and round trips are printed per 1000 operations, so that contention can be compared across
+ * profiles next to the JMH scores. On the single embedded node every level is satisfied by one
+ * replica, so the differences come from serial reads going through Paxos; run it against a
+ * multi-node cluster to see the quorum cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(8)
+public class ConsistencyProfileBenchmark {
+
+    private static final String LIBRARY_ID = "jmh-consistency";
+
+    @Param({"DRIVER", "FAST", "QUORUM", "SERIAL"})
+    public ConsistencyProfile.Preset profile;
+
+    @Param({"1", "16"})
+    public int books;
+
+    @Param({"5"})
+    public int bookCount;
+
+    @Param({"VALIDATE", "LWT"})
+    public RentMode rentMode;
+
+    private Cluster cluster;
+
+    private ScriptedBackendSession backendSession;
+
+    private PrintStream stdout;
+
+    private final LongAdder operations = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EmbeddedCassandra.start();
+        cluster = EmbeddedCassandra.cluster();
+        backendSession = new ScriptedBackendSession(cluster, EmbeddedCassandra.KEYSPACE);
+        backendSession.setRentMode(rentMode);
+        backendSession.setConsistencyProfile(profile.profile());
+
+        for (int i = 0; i < books; i++) {
+            backendSession.upsertBookCassandra(LIBRARY_ID, bookId(i), bookCount);
+        }
+
+        // rentBook/returnBook report to stdout on every call
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+        long ops = Math.max(1, operations.sum());
+        BackendMetrics metrics = backendSession.getMetrics();
+        System.out.printf("%n%s (%s): %d operations, %.2f conflicts, %.2f CAS not applied, %.0f round trips per 1000 operations%n",
+                profile, backendSession.getConsistencyProfile(), operations.sum(),
+                1000.0 * backendSession.getConflictCount() / ops,
+                1000.0 * metrics.getCasNotApplied() / ops,
+                1000.0 * backendSession.getRoundTripCount() / ops);
+        cluster.close();
+    }
+
+    @State(Scope.Thread)
+    public static class User {
+
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        final String userId = "jmh-consistency-user-" + ids.incrementAndGet();
+
+        int nextBook(int books) {
+            return ThreadLocalRandom.current().nextInt(books);
+        }
+    }
+
+    @Benchmark
+    public int rentReturnCycle(User user) throws BackendException {
+        backendSession.script(user.userId, LIBRARY_ID, bookId(user.nextBook(books)));
+        int rented = backendSession.rentBook();
+        operations.increment();
+        return rented + backendSession.returnBook();
+    }
+
+    @Benchmark
+    public int checkBookStatus(User user) throws BackendException {
+        backendSession.script(user.userId, LIBRARY_ID, bookId(user.nextBook(books)));
+        operations.increment();
+        return backendSession.checkBookStatus();
+    }
+
+    private static String bookId(int i) {
+        return "book-" + i;
+    }
+}
@@ -0,0 +1,66 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import org.apache.cassandra.service.CassandraDaemon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/*
+ * Single-node Cassandra started inside the benchmark JVM from the cassandra-all dependency.
+ * The storage directory is a fresh temp directory, so every fork starts from the CQL in schema/.
+ */
+public final class EmbeddedCassandra {
+
+    public static final String KEYSPACE = "library";
+
+    public static final int NATIVE_PORT = 9142;
+
+    private static final String[] SCHEMA_FILES = {"create_schema.cql", "load_data.cql"};
+
+    private static CassandraDaemon daemon;
+
+    private EmbeddedCassandra() {
+    }
+
+    public static synchronized void start() throws IOException {
+        if (daemon != null) return;
+
+        Path storageDir = Files.createTempDirectory("embedded-cassandra");
+        System.setProperty("cassandra.config", EmbeddedCassandra.class.getResource("/embedded-cassandra.yaml").toString());
+        System.setProperty("cassandra.storagedir", storageDir.toString());
+        System.setProperty("cassandra-foreground", "true");
+        System.setProperty("cassandra.native.epoll.enabled", "false");
+        System.setProperty("cassandra.unsafesystem", "true");
+
+        daemon = new CassandraDaemon(true);
+        daemon.activate();
+
+        try (Cluster cluster = cluster(); Session session = cluster.connect()) {
+            loadSchema(session, Paths.get(System.getProperty("library.schema.dir", "../schema")));
+        }
+    }
+
+    public static Cluster cluster() {
+        Properties properties = new Properties();
+        properties.setProperty("contact_points", "127.0.0.1");
+        properties.setProperty("native_port", String.valueOf(NATIVE_PORT));
+        return ClusterFactory.build(properties);
+    }
+
+    private static void loadSchema(Session session, Path schemaDir) throws IOException {
+        for (String file : SCHEMA_FILES) {
+            String cql = new String(Files.readAllBytes(schemaDir.resolve(file)), StandardCharsets.UTF_8);
+            for (String statement : cql.split(";")) {
+                if (!statement.trim().isEmpty()) {
+                    session.execute(statement.trim());
+                }
+            }
+        }
+    }
+}
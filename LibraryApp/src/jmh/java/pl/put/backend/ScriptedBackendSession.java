@@ -0,0 +1,35 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Cluster;
+
+/*
+ * BackendSession whose terminal prompts are answered from per-thread values instead of stdin,
+ * so that the interactive rentBook/returnBook flows can be benchmarked as they are.
+ */
+public class ScriptedBackendSession extends BackendSession {
+
+    private final ThreadLocal<String[]> input = new ThreadLocal<>();
+
+    public ScriptedBackendSession(Cluster cluster, String keyspace) throws BackendException {
+        super(cluster, keyspace);
+    }
+
+    public void script(String userId, String libraryId, String bookId) {
+        input.set(new String[]{userId, libraryId, bookId});
+    }
+
+    @Override
+    public String getUserFromTerminal() {
+        return input.get()[0];
+    }
+
+    @Override
+    public String getLibraryFromTerminal() {
+        return input.get()[1];
+    }
+
+    @Override
+    public String getBookFromTerminal() {
+        return input.get()[2];
+    }
+}
@@ -0,0 +1,160 @@
+package pl.put.http;
+
+import com.datastax.driver.core.Cluster;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import pl.put.backend.BackendSession;
+import pl.put.backend.EmbeddedCassandra;
+import pl.put.backend.LatencySnapshot;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Closed-loop load on LibraryServer in front of an embedded Cassandra, in one JVM:
+ * gradle httpLoadTest -Phttpargs="clients=256 duration=30 books=100 max_in_flight=512"
+ *
+ * Every client is a virtual thread that sends its next request as soon as the previous one is
+ * answered, over the keep-alive connections of one HttpClient. The mix is 50% status checks, 25%
+ * rents and 25% returns. Requests per second are reported per available core and per CPU second
+ * used by the process; Cassandra runs in the same process, so both include its share.
+ */
+public class HttpLoadTest {
+
+    private static final String LIBRARY_ID = "http";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+            }
+        }
+        int clients = Integer.parseInt(options.getOrDefault("clients", "256"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int books = Integer.parseInt(options.getOrDefault("books", "100"));
+        int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        int maxInFlight = Integer.parseInt(options.getOrDefault("max_in_flight", "512"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "0"));
+
+        EmbeddedCassandra.start();
+        try (Cluster cluster = EmbeddedCassandra.cluster()) {
+            BackendSession session = new BackendSession(cluster, EmbeddedCassandra.KEYSPACE);
+            for (int i = 0; i < books; i++) {
+                session.upsertBookCassandra(LIBRARY_ID, "book-" + i, 5);
+            }
+            LibraryServer server = new LibraryServer(session, 0, threads, 1024, maxInFlight, 1000);
+            server.start();
+            try {
+                new HttpLoadTest(server.getPort(), clients, books, users).run(durationSeconds, server);
+            } finally {
+                server.stop(0);
+            }
+        }
+        System.exit(0);
+    }
+
+    private final String baseUri;
+    private final int clients;
+    private final int books;
+    private final int users;
+    private final HttpClient client;
+
+    private final Histogram latencies = new ConcurrentHistogram(3);
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private HttpLoadTest(int port, int clients, int books, int users) {
+        this.baseUri = "http://127.0.0.1:" + port;
+        this.clients = clients;
+        this.books = books;
+        this.users = users;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    private void run(int durationSeconds, LibraryServer server) throws InterruptedException {
+        // rentBook/returnBook report to stdout
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        long cpuBefore = processCpuNanos();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        for (int c = 0; c < clients; c++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    send();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(durationSeconds + 30, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long cpu = processCpuNanos() - cpuBefore;
+
+        System.setOut(stdout);
+        double seconds = elapsed / 1e9;
+        long total = ok.sum() + overloaded.sum() + failed.sum();
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("Clients: %d, books: %d, users: %d%n", clients, books, users);
+        System.out.printf("Requests: %d in %.1fs, %d ok, %d rejected (429), %d failed; server: %d served, %d rejected%n",
+                total, seconds, ok.sum(), overloaded.sum(), failed.sum(), server.getServedCount(), server.getRejectedCount());
+        System.out.printf("Throughput: %.0f req/s, %.0f req/s per core (%d cores), %.0f req per CPU second%n",
+                total / seconds, total / seconds / cores, cores, cpu > 0 ? total / (cpu / 1e9) : 0);
+        System.out.printf("Latency: %s%n", new LatencySnapshot(latencies));
+    }
+
+    private void send() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String path = "/libraries/" + LIBRARY_ID + "/books/book-" + random.nextInt(books);
+        String user = "user-" + random.nextInt(users);
+        int pick = random.nextInt(4);
+        HttpRequest.Builder request;
+        if (pick < 2) {
+            request = HttpRequest.newBuilder(URI.create(baseUri + path + "?user=" + user)).GET();
+        } else {
+            request = HttpRequest.newBuilder(URI.create(baseUri + path + (pick == 2 ? "/rent" : "/return") + "?user=" + user))
+                    .POST(HttpRequest.BodyPublishers.noBody());
+        }
+        long start = System.nanoTime();
+        try {
+            int status = client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+            if (status == 200) {
+                ok.increment();
+            } else if (status == 429) {
+                overloaded.increment();
+            } else {
+                failed.increment();
+            }
+        } catch (Exception e) {
+            failed.increment();
+        } finally {
+            latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : 0;
+    }
+}
@@ -1,31 +1,95 @@
 package pl.put;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.Scanner;
 
 import pl.put.backend.BackendException;
 import pl.put.backend.BackendSession;
+import pl.put.backend.LibraryShardMigration;
+import pl.put.backend.LoanLayoutMigration;
+import pl.put.backend.Promotion;
+import pl.put.backend.PromotionWorker;
+import pl.put.catalog.CatalogImport;
+import pl.put.catalog.ImportOptions;
+import pl.put.http.LibraryServer;
+import pl.put.load.LoadGenerator;
+import pl.put.load.LoadOptions;
 
 public class Main {
 
     private static final String PROPERTIES_FILENAME = "config.properties";
 
-    public static void main(String[] args) throws BackendException {
-        String contactPoint = null;
-        String keyspace = null;
+    private static final String PROPERTY_PREFIX = "library.";
 
+    public static void main(String[] args) throws BackendException, InterruptedException, IOException {
         Properties properties = new Properties();
         try {
             properties.load(Main.class.getClassLoader().getResourceAsStream(PROPERTIES_FILENAME));
-
-            contactPoint = properties.getProperty("contact_point");
-            keyspace = properties.getProperty("keyspace");
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        // -Dlibrary.<key>=<value> overrides config.properties, e.g. -Dlibrary.fast_start=true
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX)) {
+                properties.setProperty(name.substring(PROPERTY_PREFIX.length()), System.getProperty(name));
+            }
+        }
 
-        BackendSession session = new BackendSession(contactPoint, keyspace);
+        BackendSession session = new BackendSession(properties);
+
+        if (args.length > 0 && args[0].equals("startup")) {
+            // time to the first answered request, measured by gradle startupTime
+            session.listBooks(args.length > 1 ? args[1] : "Bib1", 1, null, false);
+            long millis = Duration.between(ProcessHandle.current().info().startInstant().orElseThrow(), Instant.now()).toMillis();
+            System.out.println("startup_ms=" + millis);
+            System.exit(0);
+        }
+
+        if (args.length > 0 && args[0].equals("load")) {
+            new LoadGenerator(session, LoadOptions.parse(Arrays.copyOfRange(args, 1, args.length))).run();
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("import")) {
+            new CatalogImport(session, properties.getProperty("keyspace"), ImportOptions.parse(Arrays.copyOfRange(args, 1, args.length))).run();
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("migrate-loans")) {
+            LoanLayoutMigration migration = LoanLayoutMigration.fromProperties(session, properties);
+            for (String libraryId : Arrays.copyOfRange(args, 1, args.length)) {
+                System.out.println(libraryId + ": " + migration.migrate(libraryId) + " loan row(s) changed");
+            }
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("migrate-shards")) {
+            if (args.length != 4) {
+                System.out.println("Usage: migrate-shards <library_id> <from_shards> <to_shards>");
+                System.exit(1);
+            }
+            long moved = LibraryShardMigration.fromProperties(session, properties).migrate(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            System.out.println(args[1] + ": " + moved + " book(s) moved");
+            System.exit(0);
+        }
+
+        if (args.length > 0 && args[0].equals("promote")) {
+            PromotionWorker worker = PromotionWorker.fromProperties(session, properties);
+            Runtime.getRuntime().addShutdownHook(new Thread(worker::stop));
+            worker.start();
+            Thread.currentThread().join();
+        }
+
+        if (args.length > 0 && args[0].equals("serve")) {
+            if (session.getPromotion() == Promotion.WORKER && Boolean.parseBoolean(properties.getProperty("promotion_worker_in_server", "true"))) {
+                PromotionWorker worker = PromotionWorker.fromProperties(session, properties);
+                Runtime.getRuntime().addShutdownHook(new Thread(worker::stop));
+                worker.start();
+            }
+            LibraryServer.fromProperties(session, properties).start();
+            Thread.currentThread().join();
+        }
 
         Scanner scanner = new Scanner(System.in);
 
@@ -41,6 +105,9 @@ public class Main {
                 case 5: session.returnBook(); break;
                 case 6: session.checkBookStatus(); break;
                 case 7: session.getConflictCount(); break;
+                case 8: System.out.println(session.getMetrics().report()); break;
+                case 9: session.showOverdueLoans(); break;
+                case 10: session.showUserLoans(); break;
                 default: break;
             }
         }
@@ -56,6 +123,9 @@ public class Main {
         System.out.println("4 - Rent book");
         System.out.println("5 - Return book");
         System.out.println("6 - Check book status");
-        //System.out.println("7 - Get number of conflicts");
+        System.out.println("7 - Get number of conflicts");
+        System.out.println("8 - Show metrics");
+        System.out.println("9 - Show overdue loans");
+        System.out.println("10 - Show user loans");
     }
 }
@@ -0,0 +1,233 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.RetryPolicy;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Latency histograms per logical operation and per prepared statement, plus the counters needed to
+ * explain latency spikes: validate() iterations, LWTs that were not applied, driver retries and
+ * connection pool saturation.
+ *
+ * Values can be pulled with getters (BackendSession.getMetrics()) or read over JMX under
+ * pl.put.backend:type=BackendMetrics.
+ */
+public class BackendMetrics implements BackendMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackendMetrics.class);
+
+    private static final AtomicInteger instances = new AtomicInteger(0);
+
+    public enum Operation {
+        RENT,
+        RETURN,
+        QUEUE,
+        DEQUEUE,
+        VALIDATE_ITERATION,
+        PROMOTE
+    }
+
+    private final Session session;
+
+    private final Map<Operation, Histogram> operations = new EnumMap<>(Operation.class);
+
+    private final Map<PreparedStatement, String> statementNames = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> statements = new ConcurrentHashMap<>();
+
+    private final LongAdder validateIterations = new LongAdder();
+
+    private final LongAdder casNotApplied = new LongAdder();
+
+    private ObjectName objectName;
+
+    public BackendMetrics(Session session) {
+        this.session = session;
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new ConcurrentHistogram(3));
+        }
+    }
+
+    public void register() {
+        try {
+            objectName = new ObjectName("pl.put.backend:type=BackendMetrics,name=session-" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            logger.warn("Could not register metrics MBean", e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            if (objectName != null) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not unregister metrics MBean", e);
+        }
+    }
+
+    //------------------RECORDING------------------------------------------------------------------------
+
+    public void registerStatement(String name, PreparedStatement statement) {
+        statementNames.put(statement, name);
+        statements.computeIfAbsent(name, key -> new ConcurrentHistogram(3));
+    }
+
+    public void record(Operation operation, long startNanos) {
+        operations.get(operation).recordValue(micros(startNanos));
+        if (operation == Operation.VALIDATE_ITERATION) {
+            validateIterations.increment();
+        }
+    }
+
+    public void recordStatement(Statement statement, long startNanos) {
+        String name;
+        if (statement instanceof BoundStatement) {
+            PreparedStatement prepared = ((BoundStatement) statement).preparedStatement();
+            name = statementNames.getOrDefault(prepared, prepared.getQueryString());
+        } else if (statement instanceof BatchStatement) {
+            name = "BATCH";
+        } else {
+            name = statement.getClass().getSimpleName();
+        }
+        statements.computeIfAbsent(name, key -> new ConcurrentHistogram(3)).recordValue(micros(startNanos));
+    }
+
+    public void casNotApplied() {
+        casNotApplied.increment();
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    //------------------READING--------------------------------------------------------------------------
+
+    @Override
+    public Map<String, LatencySnapshot> getOperationLatencies() {
+        Map<String, LatencySnapshot> result = new TreeMap<>();
+        for (Map.Entry<Operation, Histogram> entry : operations.entrySet()) {
+            result.put(entry.getKey().name(), new LatencySnapshot(entry.getValue().copy()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getStatementLatencies() {
+        Map<String, LatencySnapshot> result = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : statements.entrySet()) {
+            result.put(entry.getKey(), new LatencySnapshot(entry.getValue().copy()));
+        }
+        return result;
+    }
+
+    public LatencySnapshot getLatency(Operation operation) {
+        return new LatencySnapshot(operations.get(operation).copy());
+    }
+
+    @Override
+    public long getValidateIterations() {
+        return validateIterations.sum();
+    }
+
+    @Override
+    public long getCasNotApplied() {
+        return casNotApplied.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        RetryPolicy retryPolicy = session.getCluster().getConfiguration().getPolicies().getRetryPolicy();
+        if (retryPolicy instanceof CustomRetryPolicy) {
+            return ((CustomRetryPolicy) retryPolicy).getRetryCount();
+        }
+        return 0;
+    }
+
+    @Override
+    public int getInFlightQueries() {
+        Session.State state = session.getState();
+        int inFlight = 0;
+        for (Host host : state.getConnectedHosts()) {
+            inFlight += state.getInFlightQueries(host);
+        }
+        return inFlight;
+    }
+
+    @Override
+    public int getOpenConnections() {
+        Session.State state = session.getState();
+        int connections = 0;
+        for (Host host : state.getConnectedHosts()) {
+            connections += state.getOpenConnections(host);
+        }
+        return connections;
+    }
+
+    /*
+     * In-flight requests over the request capacity of the open connections, for the busiest host.
+     * Close to 1.0 means new requests are waiting for a free stream id.
+     */
+    @Override
+    public double getPoolSaturation() {
+        Session.State state = session.getState();
+        int maxRequests = session.getCluster().getConfiguration().getPoolingOptions().getMaxRequestsPerConnection(HostDistance.LOCAL);
+        double saturation = 0;
+        for (Host host : state.getConnectedHosts()) {
+            int capacity = state.getOpenConnections(host) * maxRequests;
+            if (capacity > 0) {
+                saturation = Math.max(saturation, (double) state.getInFlightQueries(host) / capacity);
+            }
+        }
+        return saturation;
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : operations.values()) {
+            histogram.reset();
+        }
+        for (Histogram histogram : statements.values()) {
+            histogram.reset();
+        }
+        validateIterations.reset();
+        casNotApplied.reset();
+    }
+
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Operations:\n");
+        for (Map.Entry<String, LatencySnapshot> entry : getOperationLatencies().entrySet()) {
+            builder.append(String.format("  %-20s %s%n", entry.getKey(), entry.getValue()));
+        }
+        builder.append("Statements:\n");
+        for (Map.Entry<String, LatencySnapshot> entry : getStatementLatencies().entrySet()) {
+            builder.append(String.format("  %-20s %s%n", entry.getKey(), entry.getValue()));
+        }
+        builder.append(String.format("Validate iterations: %d%n", getValidateIterations()));
+        builder.append(String.format("LWT not applied: %d%n", getCasNotApplied()));
+        builder.append(String.format("Retries: %d%n", getRetries()));
+        builder.append(String.format("In-flight queries: %d on %d connections, pool saturation %.2f", getInFlightQueries(), getOpenConnections(), getPoolSaturation()));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package pl.put.backend;
+
+import java.util.Map;
+
+public interface BackendMetricsMXBean {
+
+    Map<String, LatencySnapshot> getOperationLatencies();
+
+    Map<String, LatencySnapshot> getStatementLatencies();
+
+    long getValidateIterations();
+
+    long getCasNotApplied();
+
+    long getRetries();
+
+    int getInFlightQueries();
+
+    int getOpenConnections();
+
+    double getPoolSaturation();
+
+    void reset();
+}
@@ -1,18 +1,54 @@
 package pl.put.backend;
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.DriverException;
 import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.core.policies.RetryPolicy;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.Scanner;
 import java.util.Date;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
 /*
  * For error handling done right see:
  * https://www.datastax.com/dev/blog/cassandra-error-handling-done-right
@@ -32,58 +68,349 @@ public class BackendSession {
 
     private final AtomicInteger errCount;
 
+    private final AtomicLong roundTrips;
+
+    private final BackendMetrics metrics;
+
+    private volatile RentMode rentMode = RentMode.VALIDATE;
+
+    private volatile LoanLayout loanLayout = LoanLayout.MAPS;
+
+    private volatile ConsistencyProfile consistency = ConsistencyProfile.Preset.DRIVER.profile();
+
+    private final Map<PreparedStatement, ConsistencyProfile.Kind> statementKinds = new ConcurrentHashMap<>();
+
+    private final LibraryShards sharding = new LibraryShards(this);
+
+    private final LoanRows loanRows = new LoanRows(this);
+
+    private volatile Promotion promotion = Promotion.CLIENT;
+
+    /* promotion_events and promotion_owners, prepared when promotion is WORKER or a worker starts */
+    private final PromotionStore promotions = new PromotionStore(this);
+
+    /* number of promotion_events partitions, the unit a PromotionWorker owns */
+    private volatile int promotionRanges = DEFAULT_PROMOTION_RANGES;
+
+    private volatile int queueTtlSeconds;
+
+    private volatile BookCache bookCache;
+
+    private volatile BookCache.Read statusReads = BookCache.Read.CASSANDRA;
+
+    private volatile BookCoordinator coordinator;
+
+    private volatile QueueWriteBuffer queueWrites;
+
+    private volatile int listFetchSize = DEFAULT_LIST_FETCH_SIZE;
+
+    private volatile int loanPeriodDays = DEFAULT_LOAN_PERIOD_DAYS;
+
+    private volatile int overdueLookbackDays = DEFAULT_OVERDUE_LOOKBACK_DAYS;
+
+    private volatile int overdueRetentionDays = DEFAULT_OVERDUE_RETENTION_DAYS;
+
+    private volatile Workers workers = Workers.PLATFORM;
+
+    private volatile int workerThreads = DEFAULT_WORKER_THREADS;
+
+    private volatile int maxConcurrency;
+
+    private volatile ExecutorService executor;
+
+    private volatile Semaphore concurrency;
+
+    private final boolean ownsCluster;
+
+    /* fast_start: no JMX registration, rarely used statements prepared on first use */
+    private final boolean fastStart;
+
+    private final CustomRetryPolicy retryPolicy;
+
     public BackendSession(String contactPoint, String keyspace) throws BackendException {
+        this(ClusterFactory.build(contactPoint), keyspace, true, false);
+    }
+
+    public BackendSession(Properties properties) throws BackendException {
+        this(ClusterFactory.build(properties), properties.getProperty("keyspace"), true,
+                Boolean.parseBoolean(properties.getProperty("fast_start", "false").trim()));
+        rentMode = RentMode.valueOf(properties.getProperty("rent_mode", "validate").trim().toUpperCase());
+        loanLayout = LoanLayout.valueOf(properties.getProperty("loan_layout", "maps").trim().toUpperCase());
+        checkLayout(rentMode, loanLayout);
+        consistency = ConsistencyProfile.fromProperties(properties);
+        queueTtlSeconds = (int) TimeUnit.DAYS.toSeconds(Integer.parseInt(properties.getProperty("loan_queue_ttl_days", "0")));
+        bookCache = BookCache.fromProperties(properties);
+        statusReads = BookCache.Read.valueOf(properties.getProperty("cache_status_reads", "cassandra").trim().toUpperCase());
+        listFetchSize = Integer.parseInt(properties.getProperty("list_fetch_size", String.valueOf(DEFAULT_LIST_FETCH_SIZE)));
+        workers = Workers.valueOf(properties.getProperty("executor", "platform").trim().toUpperCase());
+        workerThreads = Integer.parseInt(properties.getProperty("executor_threads", String.valueOf(DEFAULT_WORKER_THREADS)));
+        maxConcurrency = Integer.parseInt(properties.getProperty("executor_max_concurrency", "0"));
+        coordinator = BookCoordinator.fromProperties(this, properties);
+        queueWrites = QueueWriteBuffer.fromProperties(this, properties);
+        loanPeriodDays = Integer.parseInt(properties.getProperty("loan_period_days", String.valueOf(DEFAULT_LOAN_PERIOD_DAYS)));
+        overdueLookbackDays = Integer.parseInt(properties.getProperty("overdue_lookback_days", String.valueOf(DEFAULT_OVERDUE_LOOKBACK_DAYS)));
+        overdueRetentionDays = Integer.parseInt(properties.getProperty("overdue_retention_days", String.valueOf(DEFAULT_OVERDUE_RETENTION_DAYS)));
+        setShardedLibraries(parseShardedLibraries(properties.getProperty("sharded_libraries", "")));
+        setPromotion(Promotion.valueOf(properties.getProperty("promotion", "client").trim().toUpperCase()),
+                Integer.parseInt(properties.getProperty("promotion_ranges", String.valueOf(DEFAULT_PROMOTION_RANGES))));
+    }
+
+    /*
+     * Sessions created on a shared Cluster reuse its prepared statements; the Cluster is left open
+     * for the caller to close.
+     */
+    public BackendSession(Cluster cluster, String keyspace) throws BackendException {
+        this(cluster, keyspace, false, false);
+    }
 
-        Cluster cluster = Cluster.builder().addContactPoint(contactPoint).withRetryPolicy(new CustomRetryPolicy()).build();
+    private BackendSession(Cluster cluster, String keyspace, boolean ownsCluster, boolean fastStart) throws BackendException {
+        this.ownsCluster = ownsCluster;
+        this.fastStart = fastStart;
+        RetryPolicy clusterRetryPolicy = cluster.getConfiguration().getPolicies().getRetryPolicy();
+        retryPolicy = clusterRetryPolicy instanceof CustomRetryPolicy ? (CustomRetryPolicy) clusterRetryPolicy : new CustomRetryPolicy();
         try {
             session = cluster.connect(keyspace);
         } catch (Exception e) {
             throw new BackendException("Could not connect to the cluster. " + e.getMessage() + ".", e);
         }
+        metrics = new BackendMetrics(session);
+        if (!fastStart) {
+            metrics.register();
+        }
         prepareStatements();
         errCount = new AtomicInteger(0);
+        roundTrips = new AtomicLong(0);
     }
 
-    private static final Scanner scanner = new Scanner(System.in);
+    /*
+     * A session without a cluster, for subclasses that answer readBook and the *Cassandra methods
+     * from their own store (see SimulatedBackendSession in the tests). No statement is prepared, so
+     * any query that still reaches Cassandra fails.
+     */
+    protected BackendSession() {
+        ownsCluster = false;
+        fastStart = false;
+        retryPolicy = new CustomRetryPolicy();
+        session = null;
+        metrics = new BackendMetrics(null);
+        errCount = new AtomicInteger(0);
+        roundTrips = new AtomicLong(0);
+    }
+
+    /* Created on the first terminal read, so sessions driven through the API never touch System.in. */
+    private Scanner scanner;
+
+    private final Lock terminalLock = new ReentrantLock();
+
+    private PreparedStatement SELECT_BOOKS_FROM_LIBRARY;
+    private PreparedStatement SELECT_BOOK_COUNTS_FROM_LIBRARY;
+    private PreparedStatement SELECT_BOOK;
+    private PreparedStatement SELECT_BOOKS_IN;
+    private PreparedStatement INSERT_BOOK;
+    private PreparedStatement RENT_BOOK;
+    private PreparedStatement RETURN_BOOK;
+    private PreparedStatement QUEUE_BOOK;
+    private PreparedStatement DEQUEUE_BOOK;
+    private PreparedStatement LEAVE_QUEUE;
+    private PreparedStatement LEAVE_QUEUE_IF_QUEUED;
+    private PreparedStatement CLAIM_BOOK;
+    private PreparedStatement QUEUE_BOOK_IF_FULL;
+    private PreparedStatement RELEASE_BOOK;
+    private PreparedStatement HAND_OVER_BOOK;
+    private PreparedStatement INDEX_LOAN;
+    private PreparedStatement UNINDEX_LOAN;
+    private PreparedStatement UPSERT_USER_LOAN;
+    private PreparedStatement DELETE_USER_LOAN;
+
+    /* prepared on first use with fast_start, with the others otherwise */
+    private final LazyStatement UNRENT_BOOK = new LazyStatement("UNRENT_BOOK",
+            "UPDATE library_data SET queue = queue + ?,  rented_date = rented_date - ?, due_date = due_date - ? WHERE library_id=? AND book_id=? IF rented_date CONTAINS KEY ?;", ConsistencyProfile.Kind.CAS, true);
+    private final LazyStatement REPAIR_BOOK = new LazyStatement("REPAIR_BOOK",
+            "UPDATE library_data SET rented_count = ?, queue = ?, rented_date = ?, due_date = ? WHERE library_id=? AND book_id=? IF book_count = ? AND rented_count = ? AND queue = ? AND rented_date = ?;", ConsistencyProfile.Kind.CAS, false);
+    private final LazyStatement SELECT_LOANS_DUE = new LazyStatement("SELECT_LOANS_DUE",
+            "SELECT library_id, book_id, user_id, due_date FROM loans_by_due_day WHERE library_id=? AND day_bucket=?;", ConsistencyProfile.Kind.LIST, true);
+    private final LazyStatement SELECT_LOANS_DUE_BEFORE = new LazyStatement("SELECT_LOANS_DUE_BEFORE",
+            "SELECT library_id, book_id, user_id, due_date FROM loans_by_due_day WHERE library_id=? AND day_bucket=? AND due_date < ?;", ConsistencyProfile.Kind.LIST, true);
+    private final LazyStatement SELECT_USER_LOANS = new LazyStatement("SELECT_USER_LOANS",
+            "SELECT * FROM loans_by_user WHERE user_id=?;", ConsistencyProfile.Kind.LIST, true);
+
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "backend-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Map<Cluster, Map<String, CompletableFuture<PreparedStatement>>> PREPARED_STATEMENTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final int MAX_BOOKS_PER_BATCH = 50;
+
+    private static final Comparator<Map.Entry<String, Date>> OLDEST_FIRST = Map.Entry.comparingByValue();
+
+    private static final Comparator<Map.Entry<String, Date>> NEWEST_FIRST = OLDEST_FIRST.reversed();
+
+    private static final int DEFAULT_LIST_FETCH_SIZE = 500;
 
-    private static PreparedStatement SELECT_BOOKS_FROM_LIBRARY;
-    private static PreparedStatement SELECT_BOOK;
-    private static PreparedStatement INSERT_BOOK;
-    private static PreparedStatement RENT_BOOK;
-    private static PreparedStatement RETURN_BOOK;
-    private static PreparedStatement QUEUE_BOOK;
-    private static PreparedStatement DEQUEUE_BOOK;
-    private static PreparedStatement UNRENT_BOOK;
+
+    private static final int DEFAULT_PROMOTION_RANGES = 16;
+
+    private static final int DEFAULT_WORKER_THREADS = 100;
+
+    private static final int DEFAULT_LOAN_PERIOD_DAYS = 14;
+
+    private static final int DEFAULT_OVERDUE_LOOKBACK_DAYS = 30;
+
+    private static final int DEFAULT_OVERDUE_RETENTION_DAYS = 365;
+
+    private static final String DUE_LOAN_FORMAT = "%-15s %-15s %-30s\n";
+    private static final String USER_LOAN_FORMAT = "%-15s %-15s %-8s %-30s %-30s\n";
 
     private static final String LIBRARY_DATA_FORMAT = "%-15s %-15s %-15s\n";
 
 
+    /*
+     * All statements are prepared at once with prepareAsync, so startup waits for about one round trip
+     * instead of one per statement. With fast_start the LazyStatements are left for their first use.
+     */
     private void prepareStatements() throws BackendException {
+        List<CompletableFuture<?>> preparing = new ArrayList<>();
         try {
-            SELECT_BOOKS_FROM_LIBRARY = session.prepare("SELECT * FROM library_data WHERE library_id=?;");
-            SELECT_BOOK = session.prepare("SELECT * FROM library_data " + "WHERE library_id=? AND book_id=?;");
-            INSERT_BOOK = session.prepare("INSERT INTO library_data (library_id, book_id, book_count) VALUES (?, ?, ?);");
-            RENT_BOOK = session.prepare("UPDATE library_data SET rented_date = rented_date + ?, due_date = due_date + ? WHERE library_id=? AND book_id=?;");
-            RETURN_BOOK = session.prepare("UPDATE library_data SET queue = queue - ?, rented_date = rented_date - ?, due_date = due_date - ? WHERE library_id=? AND book_id=?;");
-            QUEUE_BOOK = session.prepare("UPDATE library_data SET queue = queue + ? WHERE library_id=? AND book_id=?;");
-            DEQUEUE_BOOK = session.prepare("UPDATE library_data SET queue = queue - ?,  rented_date = rented_date + ?, due_date = due_date + ? WHERE library_id=? AND book_id=? IF queue CONTAINS KEY ?	;");
-            UNRENT_BOOK = session.prepare("UPDATE library_data SET queue = queue + ?,  rented_date = rented_date - ?, due_date = due_date - ? WHERE library_id=? AND book_id=? IF rented_date CONTAINS KEY ?;");
+            prepare(preparing, "SELECT_BOOKS_FROM_LIBRARY", "SELECT * FROM library_data WHERE library_id=?;", ConsistencyProfile.Kind.LIST, statement -> SELECT_BOOKS_FROM_LIBRARY = statement);
+            prepare(preparing, "SELECT_BOOK_COUNTS_FROM_LIBRARY", "SELECT library_id, book_id, book_count FROM library_data WHERE library_id=?;", ConsistencyProfile.Kind.LIST, statement -> SELECT_BOOK_COUNTS_FROM_LIBRARY = statement);
+            prepare(preparing, "SELECT_BOOK", "SELECT * FROM library_data " + "WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.READ, statement -> SELECT_BOOK = statement);
+            prepare(preparing, "SELECT_BOOKS_IN", "SELECT * FROM library_data WHERE library_id=? AND book_id IN ?;", ConsistencyProfile.Kind.READ, statement -> SELECT_BOOKS_IN = statement);
+            prepare(preparing, "INSERT_BOOK", "INSERT INTO library_data (library_id, book_id, book_count) VALUES (?, ?, ?);", ConsistencyProfile.Kind.WRITE, statement -> INSERT_BOOK = statement);
+            prepare(preparing, "RENT_BOOK", "UPDATE library_data SET rented_date = rented_date + ?, due_date = due_date + ? WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE, statement -> RENT_BOOK = statement);
+            prepare(preparing, "RETURN_BOOK", "UPDATE library_data SET queue = queue - ?, rented_date = rented_date - ?, due_date = due_date - ? WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE, statement -> RETURN_BOOK = statement);
+            prepare(preparing, "QUEUE_BOOK", "UPDATE library_data SET queue = queue + ? WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE, statement -> QUEUE_BOOK = statement);
+            prepare(preparing, "LEAVE_QUEUE", "UPDATE library_data SET queue = queue - ? WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE, statement -> LEAVE_QUEUE = statement);
+            prepare(preparing, "DEQUEUE_BOOK", "UPDATE library_data SET queue = queue - ?,  rented_date = rented_date + ?, due_date = due_date + ? WHERE library_id=? AND book_id=? IF queue[?] = ?;", ConsistencyProfile.Kind.CAS, statement -> DEQUEUE_BOOK = statement);
+            prepare(preparing, "LEAVE_QUEUE_IF_QUEUED", "UPDATE library_data SET queue = queue - ? WHERE library_id=? AND book_id=? IF queue CONTAINS KEY ?;", ConsistencyProfile.Kind.CAS, statement -> LEAVE_QUEUE_IF_QUEUED = statement);
+            prepare(preparing, "CLAIM_BOOK", "UPDATE library_data SET rented_count = ?, rented_date = rented_date + ?, due_date = due_date + ? WHERE library_id=? AND book_id=? IF book_count = ? AND rented_count = ?;", ConsistencyProfile.Kind.CAS, statement -> CLAIM_BOOK = statement);
+            prepare(preparing, "QUEUE_BOOK_IF_FULL", "UPDATE library_data SET queue = queue + ? WHERE library_id=? AND book_id=? IF rented_count = ?;", ConsistencyProfile.Kind.CAS, statement -> QUEUE_BOOK_IF_FULL = statement);
+            prepare(preparing, "RELEASE_BOOK", "UPDATE library_data SET rented_count = ?, rented_date = rented_date - ?, due_date = due_date - ? WHERE library_id=? AND book_id=? IF rented_count = ? AND queue = ?;", ConsistencyProfile.Kind.CAS, statement -> RELEASE_BOOK = statement);
+            prepare(preparing, "HAND_OVER_BOOK", "UPDATE library_data SET rented_date = rented_date - ?, due_date = due_date - ?, queue = queue - ?, rented_date[?] = ?, due_date[?] = ? WHERE library_id=? AND book_id=? IF rented_count = ? AND queue = ?;", ConsistencyProfile.Kind.CAS, statement -> HAND_OVER_BOOK = statement);
+            prepare(preparing, "INDEX_LOAN", "INSERT INTO loans_by_due_day (library_id, day_bucket, due_date, book_id, user_id) VALUES (?, ?, ?, ?, ?) USING TTL ?;", ConsistencyProfile.Kind.WRITE, statement -> INDEX_LOAN = statement);
+            prepare(preparing, "UNINDEX_LOAN", "DELETE FROM loans_by_due_day WHERE library_id=? AND day_bucket=? AND due_date=? AND book_id=? AND user_id=?;", ConsistencyProfile.Kind.WRITE, statement -> UNINDEX_LOAN = statement);
+            prepare(preparing, "UPSERT_USER_LOAN", "INSERT INTO loans_by_user (user_id, library_id, book_id, status, since, due_date) VALUES (?, ?, ?, ?, ?, ?);", ConsistencyProfile.Kind.WRITE, statement -> UPSERT_USER_LOAN = statement);
+            prepare(preparing, "DELETE_USER_LOAN", "DELETE FROM loans_by_user WHERE user_id=? AND library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE, statement -> DELETE_USER_LOAN = statement);
+            preparing.add(loanRows.prepareAsync(fastStart));
+            if (!fastStart) {
+                for (LazyStatement statement : new LazyStatement[]{UNRENT_BOOK, REPAIR_BOOK, SELECT_LOANS_DUE, SELECT_LOANS_DUE_BEFORE, SELECT_USER_LOANS}) {
+                    preparing.add(statement.getAsync());
+                }
+            }
+            CompletableFuture.allOf(preparing.toArray(new CompletableFuture<?>[0])).join();
+            // Safe to retry, see CustomRetryPolicy. A late retry of a plain collection update could re-add
+            // a user that has been removed in between. Whether a statement may also be executed
+            // speculatively is decided by ReadSpeculativeExecutionPolicy (only SELECTs), not by this list.
+            for (PreparedStatement statement : new PreparedStatement[]{SELECT_BOOKS_FROM_LIBRARY, SELECT_BOOK_COUNTS_FROM_LIBRARY, SELECT_BOOK, SELECT_BOOKS_IN, INSERT_BOOK, DEQUEUE_BOOK,
+                    INDEX_LOAN, UNINDEX_LOAN, DELETE_USER_LOAN}) {
+                statement.setIdempotent(true);
+            }
         } catch (Exception e) {
-            throw new BackendException("Could not prepare statements. " + e.getMessage() + ".", e);
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            throw new BackendException("Could not prepare statements. " + cause.getMessage() + ".", e);
         }
 
         logger.info("Statements prepared");
     }
 
+    private void prepare(List<CompletableFuture<?>> preparing, String name, String query, ConsistencyProfile.Kind kind, Consumer<PreparedStatement> field) {
+        preparing.add(prepareAsync(name, query, kind).thenAccept(field));
+    }
+
+    PreparedStatement prepare(String name, String query, ConsistencyProfile.Kind kind) throws BackendException {
+        return await(prepareAsync(name, query, kind));
+    }
+
+    LazyStatement lazyStatement(String name, String query, ConsistencyProfile.Kind kind, boolean idempotent) {
+        return new LazyStatement(name, query, kind, idempotent);
+    }
+
+    ConsistencyProfile.Kind kindOf(PreparedStatement statement) {
+        return statementKinds.get(statement);
+    }
+
+    CompletableFuture<PreparedStatement> prepareAsync(String name, String query, ConsistencyProfile.Kind kind) {
+        Map<String, CompletableFuture<PreparedStatement>> prepared = PREPARED_STATEMENTS.computeIfAbsent(session.getCluster(), cluster -> new ConcurrentHashMap<>());
+        String key = session.getLoggedKeyspace() + ":" + query;
+        // Started outside of computeIfAbsent so that no map lock is held while the request is sent.
+        CompletableFuture<PreparedStatement> statement = prepared.get(key);
+        if (statement == null) {
+            CompletableFuture<PreparedStatement> mine = new CompletableFuture<>();
+            statement = prepared.putIfAbsent(key, mine);
+            if (statement == null) {
+                statement = mine;
+                Futures.addCallback(session.prepareAsync(query), new FutureCallback<PreparedStatement>() {
+                    @Override
+                    public void onSuccess(PreparedStatement result) {
+                        mine.complete(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        prepared.remove(key, mine);
+                        mine.completeExceptionally(t);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+        return statement.thenApply(result -> {
+            metrics.registerStatement(name, result);
+            statementKinds.put(result, kind);
+            return result;
+        });
+    }
+
+    /*
+     * A rarely used statement, prepared on first use with fast_start. A failed preparation is tried
+     * again on the next use.
+     */
+    final class LazyStatement {
+
+        private final String name;
+        private final String query;
+        private final ConsistencyProfile.Kind kind;
+        private final boolean idempotent;
+        private volatile CompletableFuture<PreparedStatement> prepared;
+
+        LazyStatement(String name, String query, ConsistencyProfile.Kind kind, boolean idempotent) {
+            this.name = name;
+            this.query = query;
+            this.kind = kind;
+            this.idempotent = idempotent;
+        }
+
+        CompletableFuture<PreparedStatement> getAsync() {
+            CompletableFuture<PreparedStatement> statement = prepared;
+            if (statement == null || statement.isCompletedExceptionally()) {
+                synchronized (this) {
+                    if (prepared == null || prepared.isCompletedExceptionally()) {
+                        prepared = prepareAsync(name, query, kind).thenApply(result -> {
+                            if (idempotent) result.setIdempotent(true);
+                            return result;
+                        });
+                    }
+                    statement = prepared;
+                }
+            }
+            return statement;
+        }
+
+        PreparedStatement get() throws BackendException {
+            return await(getAsync());
+        }
+    }
+
     //---------------------------HANDLING INTERFACE------------------------------------------------------
 
     public void selectBooksFromLibrary() throws BackendException {
 
         String libraryId = getLibraryFromTerminal();
 
-        ResultSet rs = selectBooksFromLibraryCassandra(libraryId);
-
-        showResults(rs);
+        showHeader();
+        int books = forEachBook(libraryId, false, this::showRow);
+        System.out.println(books + " book(s)");
     }
 
     public void selectBook() throws BackendException {
@@ -91,20 +418,93 @@ public class BackendSession {
         String libraryId = getLibraryFromTerminal();
         String bookId = getBookFromTerminal();
 
-        ResultSet rs = selectBookCassandra(libraryId, bookId);
+        ResultSet rs = selectBookCassandra(libraryId, bookId, consistency.getLevel(ConsistencyProfile.Kind.READ));
 
         showResults(rs);
     }
 
+    /*
+     * Lists a library one page at a time. Pass the token of the previous page to continue, or null to
+     * start from the first book. withLoans also reads the queue and rented_date/due_date maps; without
+     * it only library_id, book_id and book_count are fetched.
+     *
+     * Sharded libraries are read from every shard in parallel and merged in book_id order; their
+     * tokens hold the last book_id of the page instead of a driver paging state.
+     */
+    public BookPage listBooks(String libraryId, int pageSize, String pageToken, boolean withLoans) throws BackendException {
+        int shards = shardsOf(libraryId);
+        if (shards > 0) {
+            return await(sharding.listBooksAsync(libraryId, shards, pageSize, pageToken, withLoans));
+        }
+        return toPage(executeQuery(listStatement(libraryId, pageSize, pageToken, withLoans)));
+    }
+
+    private BoundStatement listStatement(String libraryId, int pageSize, String pageToken, boolean withLoans) throws BackendException {
+        BoundStatement bs = new BoundStatement(withLoans ? SELECT_BOOKS_FROM_LIBRARY : SELECT_BOOK_COUNTS_FROM_LIBRARY);
+        bs.bind(libraryId);
+        bs.setFetchSize(pageSize);
+        if (pageToken != null) {
+            try {
+                bs.setPagingState(PagingState.fromString(pageToken));
+            } catch (Exception e) {
+                throw new BackendException("Invalid page token. " + e.getMessage() + ".", e);
+            }
+        }
+        return bs;
+    }
+
+    private static BookPage toPage(ResultSet rs) {
+        int available = rs.getAvailableWithoutFetching();
+        List<Row> rows = new ArrayList<>(available);
+        for (int i = 0; i < available; i++) {
+            rows.add(rs.one());
+        }
+        PagingState next = rs.getExecutionInfo().getPagingState();
+        return new BookPage(rows, next == null ? null : next.toString());
+    }
+
+    /*
+     * Streams a whole library through the consumer, listFetchSize rows at a time. Only the current page
+     * is held in memory; the next one is requested in the background once half of it has been consumed.
+     */
+    public int forEachBook(String libraryId, boolean withLoans, Consumer<Row> consumer) throws BackendException {
+        return forEachBook(libraryId, shardsOf(libraryId), withLoans, consumer);
+    }
+
+    /*
+     * shards is the number of shards the library is stored in, 0 for library_data.
+     */
+    protected int forEachBook(String libraryId, int shards, boolean withLoans, Consumer<Row> consumer) throws BackendException {
+        if (shards > 0) {
+            return sharding.forEachBook(libraryId, shards, withLoans, listFetchSize, consumer);
+        }
+        BoundStatement bs = new BoundStatement(withLoans ? SELECT_BOOKS_FROM_LIBRARY : SELECT_BOOK_COUNTS_FROM_LIBRARY);
+        bs.bind(libraryId);
+        bs.setFetchSize(listFetchSize);
+        ResultSet rs = executeQuery(bs);
+
+        int count = 0;
+        try {
+            for (Row row : rs) {
+                if (rs.getAvailableWithoutFetching() == listFetchSize / 2 && !rs.isFullyFetched()) {
+                    rs.fetchMoreResults();
+                }
+                consumer.accept(row);
+                count++;
+            }
+        } catch (DriverException e) {
+            throw new BackendException("Could not fetch the next page. " + e.getMessage() + ".", e);
+        }
+        return count;
+    }
+
     public int checkBookStatus() throws BackendException {
 
         String userId = getUserFromTerminal();
         String libraryId = getLibraryFromTerminal();
         String bookId = getBookFromTerminal();
 
-        Row row = validate(libraryId, bookId);
-
-        int isRented = isBookRented(userId, row);
+        int isRented = checkBookStatus(userId, libraryId, bookId, statusReads);
         switch (isRented) {
             case 0:
                 System.out.println("Book is not rented.");
@@ -119,6 +519,28 @@ public class BackendSession {
         return isRented;
     }
 
+    /*
+     * With BookCache.Read.CACHED the status is answered from the cache when the row is there, so it
+     * may lag behind changes made by other clients by up to cache_ttl_ms.
+     *
+     * Otherwise the book is read at the LIST level of the consistency profile; validate() and its
+     * READ level reads only run when the book needs repair or queue promotion.
+     */
+    public int checkBookStatus(String userId, String libraryId, String bookId, BookCache.Read read) throws BackendException {
+        if (read == BookCache.Read.CACHED && bookCache != null) {
+            Book book = bookCache.get(libraryId, bookId);
+            if (book != null) return book.status(userId);
+        }
+        flushQueue(libraryId, bookId);
+        Book book = readBook(libraryId, bookId, consistency.getLevel(ConsistencyProfile.Kind.LIST));
+        if (needsValidation(book)) {
+            book = validate(libraryId, bookId);
+        } else {
+            cacheBook(book);
+        }
+        return isBookRented(userId, book);
+    }
+
     public void upsertBook() throws BackendException {
 
         String libraryId = getLibraryFromTerminal();
@@ -127,7 +549,7 @@ public class BackendSession {
 
         upsertBookCassandra(libraryId, bookId, bookCount);
 
-        scanner.nextLine();
+        readLine();
 
         logger.info("Book {} upserted", bookId);
     }
@@ -138,25 +560,44 @@ public class BackendSession {
         String libraryId = getLibraryFromTerminal();
         String bookId = getBookFromTerminal();
 
-        ResultSet rs = selectBookCassandra(libraryId, bookId);
-        Row row = rs.one();
+        long start = System.nanoTime();
+        try {
+            return rentBook(userId, libraryId, bookId);
+        } finally {
+            metrics.record(BackendMetrics.Operation.RENT, start);
+        }
+    }
+
+    protected int rentBook(String userId, String libraryId, String bookId) throws BackendException {
 
-        int isRented = isBookRented(userId, row);
+        BookCoordinator coordinator = this.coordinator;
+        if (coordinator != null) {
+            return showRentStatus(awaitCoalesced(coordinator.rent(userId, libraryId, bookId)));
+        }
+
+        Book book = readBook(libraryId, bookId);
+
+        int isRented = isBookRented(userId, book);
         if (isRented > 0) {
             System.out.println("This book has already been rented by this user.");
             return isRented;
         }
-        int bookCount = row.getInt("book_count");
-        Map<String, Date> rented = row.getMap("rented_date", String.class, Date.class);
-
-        int diff = bookCount - rented.size();
-        if (diff > 0) {
-            rentBookCassandra(userId, libraryId, bookId);
+        if (rentMode == RentMode.LWT) {
+            isRented = claimBook(userId, book);
         } else {
-            queueBookCassandra(userId, libraryId, bookId);
+            int diff = book.getBookCount() - book.getRented().size();
+            if (diff > 0) {
+                rentBookCassandra(userId, libraryId, bookId);
+            } else {
+                queueBookCassandra(userId, libraryId, bookId);
+            }
+            book = validate(libraryId, bookId);
+            isRented = isBookRented(userId, book);
         }
-        row = validate(libraryId, bookId);
-        isRented = isBookRented(userId, row);
+        return showRentStatus(isRented);
+    }
+
+    private int showRentStatus(int isRented) {
         switch (isRented) {
             case 0:
                 System.out.println("Book is not rented, a return has been made during execution.");
@@ -177,23 +618,65 @@ public class BackendSession {
         String libraryId = getLibraryFromTerminal();
         String bookId = getBookFromTerminal();
 
-        ResultSet rs = selectBookCassandra(libraryId, bookId);
-        Row row = rs.one();
+        long start = System.nanoTime();
+        try {
+            return returnBook(userId, libraryId, bookId);
+        } finally {
+            metrics.record(BackendMetrics.Operation.RETURN, start);
+        }
+    }
+
+    protected int returnBook(String userId, String libraryId, String bookId) throws BackendException {
+
+        BookCoordinator coordinator = this.coordinator;
+        if (coordinator != null) {
+            int wasRented = awaitCoalesced(coordinator.returnBook(userId, libraryId, bookId));
+            switch (wasRented) {
+                case 0:
+                    System.out.println("This book is not rented nor is this user in queue.");
+                    break;
+                case 1:
+                    System.out.println("Book returned.");
+                    break;
+                case 2:
+                    System.out.println("User removed from queue to get the book.");
+                    break;
+            }
+            return wasRented;
+        }
+        if (cancelQueuedJoin(userId, libraryId, bookId)) {
+            System.out.println("User removed from queue to get the book.");
+            return 2;
+        }
+
+        flushQueue(libraryId, bookId);
+        Book book = readBook(libraryId, bookId);
 
-        int isRented = isBookRented(userId, row);
+        int isRented = isBookRented(userId, book);
         switch (isRented) {
             case 0:
                 System.out.println("This book is not rented nor is this user in queue.");
                 break;
             case 1:
-                returnBookCassandra(userId, libraryId, bookId);
-                validate(libraryId, bookId);
+                if (rentMode == RentMode.LWT) {
+                    releaseBook(userId, book);
+                } else if (promotesOnClient()) {
+                    returnBookCassandra(userId, libraryId, bookId, book.getDueDate(userId));
+                    validate(libraryId, bookId);
+                } else {
+                    returnBookCassandra(userId, libraryId, bookId, book.getDueDate(userId));
+                    publishPromotion(libraryId, bookId);
+                }
                 System.out.println("Book returned.");
                 break;
             case 2:
                 System.out.println("User removed from queue to get the book.");
-                returnBookCassandra(userId, libraryId, bookId);
-                validate(libraryId, bookId);
+                if (rentMode == RentMode.LWT) {
+                    releaseBook(userId, book);
+                } else {
+                    returnBookCassandra(userId, libraryId, bookId, null);
+                    if (promotesOnClient()) validate(libraryId, bookId);
+                }
                 break;
         }
         return isRented;
@@ -205,243 +688,2148 @@ public class BackendSession {
         return conflicts;
     }
 
+    public BackendMetrics getMetrics() {
+        return metrics;
+    }
 
-    //-----------------------------------PRIVATE STUFF--------------------------------------------------------------------------
+    public long getRoundTripCount() {
+        return roundTrips.get();
+    }
 
-    protected Row validate(String libraryId, String bookId) throws BackendException {
-        boolean isOk;
-        ResultSet rs;
-        Row row;
-        do {
-            isOk = true;
-            rs = selectBookCassandra(libraryId, bookId);
-            row = rs.one();
-            if (moveToQueue(row)) isOk = false;
-            if (moveFromQueue(row)) isOk = false;
-        } while (!isOk);
-        return row;
-    }
-
-    protected boolean moveToQueue(Row row) throws BackendException {
-        boolean result = false;
-
-        Map<String, Date> queue = row.getMap("queue", String.class, Date.class);
-        Map<String, Date> rented = row.getMap("rented_date", String.class, Date.class);
-        int bookCount = row.getInt("book_count");
-        String libraryId = row.getString("library_id");
-        String bookId = row.getString("book_id");
-
-        if (rented.size() <= bookCount) return result;
-        int diff = rented.size() - bookCount;
-        addConflict(diff);
-        for (int i = 0; i < diff; i++) {
-            String nextUser = null;
-            Date nextDate = null;
-            for (String userId : rented.keySet()) {
-                Date date = rented.get(userId);
-                if (nextUser == null) {
-                    nextUser = userId;
-                    nextDate = date;
-                    continue;
-                }
-                if (date.after(nextDate)) {
-                    nextUser = userId;
-                    nextDate = date;
-                }
-            }
-            unrentBookCassandra(nextUser, libraryId, bookId);
-            result = true;
-        }
-        return result;
+    public void setRentMode(RentMode rentMode) {
+        checkLayout(rentMode, loanLayout);
+        this.rentMode = rentMode;
     }
 
-    protected boolean moveFromQueue(Row row) throws BackendException {
-        boolean result = false;
-        Map<String, Date> queue = row.getMap("queue", String.class, Date.class);
-        Map<String, Date> rented = row.getMap("rented_date", String.class, Date.class);
-        int bookCount = row.getInt("book_count");
-        String libraryId = row.getString("library_id");
-        String bookId = row.getString("book_id");
-
-        if (rented.size() >= bookCount) return result;
-
-        int diff = bookCount - rented.size();
-        diff = Math.min(diff, queue.size());
-
-        for (int i = 0; i < diff; i++) {
-            String nextUser = null;
-            Date nextDate = null;
-            for (String userId : queue.keySet()) {
-                Date date = queue.get(userId);
-                if (nextUser == null) {
-                    nextUser = userId;
-                    nextDate = date;
-                    continue;
-                }
-                if (date.before(nextDate)) {
-                    nextUser = userId;
-                    nextDate = date;
-                }
+    /*
+     * See LoanLayout for the order in which a deployment moves between layouts.
+     */
+    public void setLoanLayout(LoanLayout loanLayout) {
+        checkLayout(rentMode, loanLayout);
+        this.loanLayout = loanLayout;
+    }
+
+    public LoanLayout getLoanLayout() {
+        return loanLayout;
+    }
+
+    int getQueueTtlSeconds() {
+        return queueTtlSeconds;
+    }
+
+    public void setConsistencyProfile(ConsistencyProfile consistency) {
+        this.consistency = consistency;
+    }
+
+    public ConsistencyProfile getConsistencyProfile() {
+        return consistency;
+    }
+
+    /*
+     * library_id -> number of shards for the libraries kept in library_data_sharded. Changing the
+     * count of a library that already has books needs LibraryShardMigration first, otherwise its
+     * books are looked up in the wrong partitions.
+     */
+    public void setShardedLibraries(Map<String, Integer> libraryShards) throws BackendException {
+        for (Map.Entry<String, Integer> library : libraryShards.entrySet()) {
+            if (library.getValue() < 1) {
+                throw new IllegalArgumentException("Library " + library.getKey() + " needs at least one shard.");
             }
-            dequeueBookCassandra(nextUser, libraryId, bookId);
-            result = true;
         }
-        return result;
+        if (!libraryShards.isEmpty()) {
+            prepareShardedStatements();
+        }
+        sharding.setLibraries(libraryShards);
     }
 
-    protected int isBookRented(String userId, Row row) {
-        Map<String, Date> queue = row.getMap("queue", String.class, Date.class);
-        Map<String, Date> rented = row.getMap("rented_date", String.class, Date.class);
-        if (rented.containsKey(userId)) return 1;
-        if (queue.containsKey(userId)) return 2;
-        return 0;
+    public Map<String, Integer> getShardedLibraries() {
+        return sharding.getLibraries();
     }
 
-    protected void finalize() {
-        try {
-            if (session != null) {
-                session.getCluster().close();
+    /*
+     * "central:16,branch-2:4"
+     */
+    public static Map<String, Integer> parseShardedLibraries(String value) {
+        Map<String, Integer> libraryShards = new HashMap<>();
+        for (String entry : value.split(",")) {
+            if (entry.isBlank()) continue;
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected <library_id>:<shards>, got " + entry.trim() + ".");
             }
-        } catch (Exception e) {
-            logger.error("Could not close existing cluster", e);
+            libraryShards.put(entry.substring(0, colon).trim(), Integer.parseInt(entry.substring(colon + 1).trim()));
         }
+        return libraryShards;
     }
 
-    protected void showResults(ResultSet rs) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(String.format(LIBRARY_DATA_FORMAT, "LIBRARY_ID", "BOOK_ID", "BOOK_COUNT"));
+    /*
+     * See Promotion. ranges must be the same for every client and PromotionWorker of the keyspace,
+     * since it decides which promotion_events partition the event of a book goes to.
+     */
+    public void setPromotion(Promotion promotion, int ranges) throws BackendException {
+        if (ranges < 1) {
+            throw new IllegalArgumentException("promotion_ranges must be at least 1.");
+        }
+        if (promotion == Promotion.WORKER) {
+            promotions.prepare();
+        }
+        this.promotionRanges = ranges;
+        this.promotion = promotion;
+    }
 
-        for (Row row : rs) {
-            String libraryId = row.getString("library_id");
-            String bookId = row.getString("book_id");
-            int bookCount = row.getInt("book_count");
+    public Promotion getPromotion() {
+        return promotion;
+    }
+
+    public int getPromotionRanges() {
+        return promotionRanges;
+    }
 
-            builder.append(String.format(LIBRARY_DATA_FORMAT, libraryId, bookId, bookCount));
+    private static void checkLayout(RentMode rentMode, LoanLayout loanLayout) {
+        if (rentMode == RentMode.LWT && loanLayout == LoanLayout.ROWS) {
+            throw new IllegalArgumentException("rent_mode=lwt needs loan_layout maps or dual.");
         }
+    }
 
-        System.out.println(builder);
+    public void setBookCache(BookCache bookCache, BookCache.Read statusReads) {
+        this.bookCache = bookCache;
+        this.statusReads = statusReads;
     }
 
-    protected int addConflict(int err) {
-        return errCount.addAndGet(err);
+    public BookCache getBookCache() {
+        return bookCache;
     }
 
-    //----------------------------CASSANDRA QUERY EXECUTION--------------------------------------------------------------------------
+    /*
+     * With a coordinator, rents and returns of one book from this session are batched through the
+     * bulk API (see BookCoordinator) instead of each running its own read and validate(). null turns
+     * coalescing off.
+     */
+    public void setCoordinator(BookCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
 
-    protected ResultSet selectBookCassandra(String libraryId, String bookId) throws BackendException {
-        BoundStatement bs = new BoundStatement(SELECT_BOOK);
-        bs.bind(libraryId, bookId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    public BookCoordinator getCoordinator() {
+        return coordinator;
     }
 
-    public ResultSet upsertBookCassandra(String libraryId, String bookId, int bookCount) throws BackendException {
-        BoundStatement bs = new BoundStatement(INSERT_BOOK);
-        bs.bind(libraryId, bookId, bookCount);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    /*
+     * With a write buffer, unconditional queue joins and leaves are written behind, one combined map
+     * update per book and window (see QueueWriteBuffer). null writes every change at once.
+     */
+    public void setQueueWriteBuffer(QueueWriteBuffer queueWrites) {
+        this.queueWrites = queueWrites;
     }
 
-    protected ResultSet selectBooksFromLibraryCassandra(String libraryId) throws BackendException {
-        BoundStatement bs = new BoundStatement(SELECT_BOOKS_FROM_LIBRARY);
-        bs.bind(libraryId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    public QueueWriteBuffer getQueueWriteBuffer() {
+        return queueWrites;
     }
 
-    public ResultSet rentBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
-        BoundStatement bs = new BoundStatement(RENT_BOOK);
-        Map<String, Date> myMap = new HashMap<>();
-        myMap.put(userId, new Date());
-        bs.bind(myMap, myMap, libraryId, bookId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    /*
+     * Takes effect for the operations submitted after the call; the previous executor finishes what it
+     * has already been given.
+     */
+    public void setWorkers(Workers workers, int threads) {
+        this.workers = workers;
+        this.workerThreads = threads;
+        ExecutorService previous;
+        synchronized (this) {
+            previous = executor;
+            executor = null;
+            concurrency = null;
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
     }
 
-    protected ResultSet returnBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
-        BoundStatement bs = new BoundStatement(RETURN_BOOK);
-        Set<String> mySet = new HashSet<>();
-        mySet.add(userId);
-        bs.bind(mySet, mySet, mySet, libraryId, bookId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    public Workers getWorkers() {
+        return workers;
     }
 
-    protected ResultSet queueBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
-        BoundStatement bs = new BoundStatement(QUEUE_BOOK);
-        Map<String, Date> myMap = new HashMap<>();
-        myMap.put(userId, new Date());
-        bs.bind(myMap, libraryId, bookId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    //---------------------------EXECUTOR HANDLING INTERFACE---------------------------------------------
+
+    /*
+     * The blocking rentBook/returnBook/checkBookStatus flows run on the session's executor, platform or
+     * virtual threads depending on the "executor" property. The blocking paths do not hold monitors
+     * while waiting for Cassandra, so virtual threads unmount on every round trip.
+     *
+     * Operations are capped at executor_max_concurrency, by default the request capacity of the
+     * driver's connection pool to one host, so that a burst of virtual threads waits here instead of
+     * overflowing the pool queue with BusyPoolExceptions.
+     */
+
+    public CompletableFuture<Integer> submitRentBook(String userId, String libraryId, String bookId) {
+        return submit(BackendMetrics.Operation.RENT, () -> rentBook(userId, libraryId, bookId));
     }
 
-    protected ResultSet dequeueBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
-        BoundStatement bs = new BoundStatement(DEQUEUE_BOOK);
-        Set<String> mySet = new HashSet<>();
-        mySet.add(userId);
-        Map<String, Date> myMap = new HashMap<>();
-        myMap.put(userId, new Date());
-        bs.bind(mySet, myMap, myMap, libraryId, bookId, userId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    public CompletableFuture<Integer> submitReturnBook(String userId, String libraryId, String bookId) {
+        return submit(BackendMetrics.Operation.RETURN, () -> returnBook(userId, libraryId, bookId));
     }
 
-    protected ResultSet unrentBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
-        BoundStatement bs = new BoundStatement(UNRENT_BOOK);
-        Set<String> mySet = new HashSet<>();
-        mySet.add(userId);
-        Map<String, Date> myMap = new HashMap<>();
-        myMap.put(userId, new Date());
-        bs.bind(myMap, mySet, mySet, libraryId, bookId, userId);
-        ResultSet rs;
-        rs = executeQuery(bs);
-        return rs;
+    public CompletableFuture<Integer> submitCheckBookStatus(String userId, String libraryId, String bookId) {
+        return submit(null, () -> checkBookStatus(userId, libraryId, bookId, statusReads));
     }
 
-    protected ResultSet executeQuery(BoundStatement bs) throws BackendException {
-        ResultSet rs;
+    //---------------------------ASYNC HANDLING INTERFACE------------------------------------------------
+
+    /*
+     * Non-blocking counterparts of rentBook/returnBook/checkBookStatus. Every step is chained on
+     * session.executeAsync, so no thread is held while a request is in flight. Continuations run on
+     * the driver's I/O threads and therefore must never block.
+     *
+     * The returned status has the same meaning as in the blocking API:
+     * 0 - not rented, 1 - rented, 2 - in queue.
+     *
+     * In LWT mode rents and returns go through claimBookAsync/releaseBookAsync, like the blocking API.
+     */
+
+    public CompletableFuture<Integer> rentBookAsync(String userId, String libraryId, String bookId) {
+        long start = System.nanoTime();
+        BookCoordinator coordinator = this.coordinator;
+        if (coordinator != null) {
+            return coordinator.rent(userId, libraryId, bookId)
+                    .whenComplete((status, e) -> metrics.record(BackendMetrics.Operation.RENT, start));
+        }
+        return readBookAsync(libraryId, bookId).thenCompose(book -> {
+            if (rentMode == RentMode.LWT) {
+                return claimBookAsync(userId, book);
+            }
+            int isRented = isBookRented(userId, book);
+            if (isRented > 0) {
+                return CompletableFuture.completedFuture(isRented);
+            }
+
+            CompletableFuture<ResultSet> write;
+            if (book.getBookCount() - book.getRented().size() > 0) {
+                write = rentBookCassandraAsync(userId, libraryId, bookId);
+            } else {
+                write = queueBookCassandraAsync(userId, libraryId, bookId);
+            }
+            return write
+                    .thenCompose(ignored -> validateAsync(libraryId, bookId))
+                    .thenApply(validated -> isBookRented(userId, validated));
+        }).whenComplete((status, e) -> metrics.record(BackendMetrics.Operation.RENT, start));
+    }
+
+    public CompletableFuture<Integer> returnBookAsync(String userId, String libraryId, String bookId) {
+        long start = System.nanoTime();
+        BookCoordinator coordinator = this.coordinator;
+        if (coordinator != null) {
+            return coordinator.returnBook(userId, libraryId, bookId)
+                    .whenComplete((status, e) -> metrics.record(BackendMetrics.Operation.RETURN, start));
+        }
+        if (cancelQueuedJoin(userId, libraryId, bookId)) {
+            metrics.record(BackendMetrics.Operation.RETURN, start);
+            return CompletableFuture.completedFuture(2);
+        }
+        return flushQueueAsync(libraryId, bookId).thenCompose(ignored -> readBookAsync(libraryId, bookId)).thenCompose(book -> {
+            int isRented = isBookRented(userId, book);
+            if (isRented == 0) {
+                return CompletableFuture.completedFuture(isRented);
+            }
+            if (rentMode == RentMode.LWT) {
+                return releaseBookAsync(userId, book).thenApply(ignored -> isRented);
+            }
+            CompletableFuture<ResultSet> write = returnBookCassandraAsync(userId, libraryId, bookId, book.getDueDate(userId));
+            if (!promotesOnClient()) {
+                return (isRented == 1 ? write.thenCompose(ignored -> publishPromotionAsync(libraryId, bookId)) : write)
+                        .thenApply(ignored -> isRented);
+            }
+            return write
+                    .thenCompose(ignored -> validateAsync(libraryId, bookId))
+                    .thenApply(ignored -> isRented);
+        }).whenComplete((status, e) -> metrics.record(BackendMetrics.Operation.RETURN, start));
+    }
+
+    public CompletableFuture<Integer> checkBookStatusAsync(String userId, String libraryId, String bookId) {
+        return checkBookStatusAsync(userId, libraryId, bookId, statusReads);
+    }
+
+    public CompletableFuture<Integer> checkBookStatusAsync(String userId, String libraryId, String bookId, BookCache.Read read) {
+        if (read == BookCache.Read.CACHED && bookCache != null) {
+            Book book = bookCache.get(libraryId, bookId);
+            if (book != null) return CompletableFuture.completedFuture(book.status(userId));
+        }
+        return flushQueueAsync(libraryId, bookId)
+                .thenCompose(ignored -> readBookAsync(libraryId, bookId, consistency.getLevel(ConsistencyProfile.Kind.LIST)))
+                .thenCompose(book -> {
+                    if (needsValidation(book)) return validateAsync(libraryId, bookId);
+                    cacheBook(book);
+                    return CompletableFuture.completedFuture(book);
+                })
+                .thenApply(book -> isBookRented(userId, book));
+    }
+
+    public CompletableFuture<BookPage> listBooksAsync(String libraryId, int pageSize, String pageToken, boolean withLoans) {
+        int shards = shardsOf(libraryId);
+        if (shards > 0) {
+            return sharding.listBooksAsync(libraryId, shards, pageSize, pageToken, withLoans);
+        }
+        BoundStatement bs;
         try {
-            rs = session.execute(bs);
-            return rs;
-        } catch (WriteTimeoutException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new BackendException("Could not perform a query. " + e.getMessage() + ".", e);
+            bs = listStatement(libraryId, pageSize, pageToken, withLoans);
+        } catch (BackendException e) {
+            return CompletableFuture.failedFuture(e);
         }
+        return executeQueryAsync(bs).thenApply(BackendSession::toPage);
     }
 
-    //------------------TERMINAL INPUTS-------------------------------------------------------------------------------------------------
 
-    public String getUserFromTerminal() {
-        System.out.println("Enter user id: ");
-        String userId = scanner.nextLine();
-        return userId;
+    //---------------------------BATCH HANDLING INTERFACE------------------------------------------------
+
+    /*
+     * Bulk checkout and returns. Requests are grouped per library_id partition and then per book, in
+     * chunks of MAX_BOOKS_PER_BATCH books. A chunk costs one IN read, one unlogged single-partition
+     * batch with at most one map update per book and kind (rent, queue, return), and one IN read to
+     * check the outcome. Repairs and queue promotion then run once per book, only for books that
+     * need them, instead of once per copy.
+     *
+     * A failure only fails the results of the chunk it happened in.
+     *
+     * In LWT mode copies are only taken and given back by conditional writes on rented_count, so the
+     * requests of a book run one after another through claimBookAsync/releaseBookAsync instead (see
+     * conditionalChunkAsync); the books of a chunk still run in parallel.
+     */
+
+    public List<RentResult> rentBooks(List<RentRequest> requests) {
+        return rentBooksAsync(requests).join();
     }
 
-    public String getLibraryFromTerminal() {
-        System.out.println("Enter library id: ");
-        String LibraryId = scanner.nextLine();
-        return LibraryId;
+    public List<RentResult> returnBooks(List<RentRequest> requests) {
+        return returnBooksAsync(requests).join();
     }
 
-    public String getBookFromTerminal() {
-        System.out.println("Enter book id: ");
-        String bookId = scanner.nextLine();
-        return bookId;
+    public CompletableFuture<List<RentResult>> rentBooksAsync(List<RentRequest> requests) {
+        if (rentMode == RentMode.LWT) {
+            return forEachChunk(requests, (libraryId, books) -> conditionalChunkAsync(libraryId, books, true));
+        }
+        return forEachChunk(requests, this::rentChunkAsync);
     }
 
-    protected int getBookCountFromTerminal() {
-        System.out.println("Enter book count: ");
-        int bookCount = scanner.nextInt();
-        return bookCount;
+    public CompletableFuture<List<RentResult>> returnBooksAsync(List<RentRequest> requests) {
+        if (rentMode == RentMode.LWT) {
+            return forEachChunk(requests, (libraryId, books) -> conditionalChunkAsync(libraryId, books, false));
+        }
+        return forEachChunk(requests, this::returnChunkAsync);
+    }
+
+    //---------------------------DUE DATE REPORTS--------------------------------------------------------
+
+    /*
+     * Every write that adds or removes a renter also maintains loans_by_due_day, partitioned by
+     * (library_id, day_bucket) where the bucket is the UTC day of the due date. "What is due or overdue
+     * in library X on day D" is then one partition read, streamed listFetchSize rows at a time, instead
+     * of a scan of library_data that decodes every due_date map.
+     *
+     * Entries are written with a TTL that ends overdue_retention_days after the due date, so an entry
+     * whose delete was lost (e.g. the client died between the two writes) eventually disappears.
+     */
+
+    public void showOverdueLoans() throws BackendException {
+
+        String libraryId = getLibraryFromTerminal();
+
+        System.out.printf(DUE_LOAN_FORMAT, "BOOK_ID", "USER_ID", "DUE_DATE");
+        int loans = forEachOverdueLoan(libraryId, loan ->
+                System.out.printf(DUE_LOAN_FORMAT, loan.getBookId(), loan.getUserId(), loan.getDueDate()));
+        System.out.println(loans + " overdue loan(s) due in the last " + overdueLookbackDays
+                + " day(s); loans overdue for longer are not listed (overdue_lookback_days).");
+    }
+
+    /*
+     * Loans due on the given UTC day, whether already overdue or not.
+     */
+    public int forEachLoanDue(String libraryId, LocalDate day, Consumer<DueLoan> consumer) throws BackendException {
+        BoundStatement bs = new BoundStatement(SELECT_LOANS_DUE.get());
+        bs.bind(libraryId, bucketOf(day));
+        return streamLoans(bs, consumer);
+    }
+
+    /*
+     * Loans that became overdue on the given UTC day, i.e. due on that day before now.
+     */
+    public int forEachOverdueLoan(String libraryId, LocalDate day, Consumer<DueLoan> consumer) throws BackendException {
+        BoundStatement bs = new BoundStatement(SELECT_LOANS_DUE_BEFORE.get());
+        bs.bind(libraryId, bucketOf(day), new Date());
+        return streamLoans(bs, consumer);
+    }
+
+    /*
+     * All loans overdue now, looking back overdue_lookback_days days: one partition per day, newest
+     * day first. Loans due before that are not reported. The first page of every day is read in
+     * parallel; later pages are fetched while the day is streamed.
+     */
+    public int forEachOverdueLoan(String libraryId, Consumer<DueLoan> consumer) throws BackendException {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        List<CompletableFuture<ResultSet>> days = new ArrayList<>(overdueLookbackDays + 1);
+        BoundStatement overdueToday = new BoundStatement(SELECT_LOANS_DUE_BEFORE.get());
+        overdueToday.bind(libraryId, bucketOf(today), new Date());
+        overdueToday.setFetchSize(listFetchSize);
+        days.add(executeQueryAsync(overdueToday));
+        for (int day = 1; day <= overdueLookbackDays; day++) {
+            BoundStatement bs = new BoundStatement(SELECT_LOANS_DUE.get());
+            bs.bind(libraryId, bucketOf(today.minusDays(day)));
+            bs.setFetchSize(listFetchSize);
+            days.add(executeQueryAsync(bs));
+        }
+        int count = 0;
+        for (CompletableFuture<ResultSet> day : days) {
+            count += streamLoans(await(day), consumer);
+        }
+        return count;
+    }
+
+    /*
+     * Loans that are not overdue yet but due within the next days (today included).
+     */
+    public int forEachLoanDueSoon(String libraryId, int days, Consumer<DueLoan> consumer) throws BackendException {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        Date now = new Date();
+        int[] count = new int[1];
+        for (int day = 0; day < days; day++) {
+            forEachLoanDue(libraryId, today.plusDays(day), loan -> {
+                if (!loan.isOverdue(now)) {
+                    consumer.accept(loan);
+                    count[0]++;
+                }
+            });
+        }
+        return count[0];
+    }
+
+    //---------------------------USER LOANS------------------------------------------------------------------------
+
+    /*
+     * loans_by_user holds one row per (user, library, book) the user has rented or is queued for, written
+     * next to the library_data change like loans_by_due_day. The two writes are not atomic: a client dying
+     * in between, or an LWT outcome that was never observed (timeouts on CAS writes), leaves the index
+     * drifted from library_data, which stays the source of truth. repairUserLoans/repairLibraryLoans
+     * rebuild the index from it.
+     */
+
+    public void showUserLoans() throws BackendException {
+
+        String userId = getUserFromTerminal();
+
+        System.out.printf(USER_LOAN_FORMAT, "LIBRARY_ID", "BOOK_ID", "STATUS", "SINCE", "DUE_DATE");
+        List<UserLoan> loans = getUserLoans(userId);
+        for (UserLoan loan : loans) {
+            System.out.printf(USER_LOAN_FORMAT, loan.getLibraryId(), loan.getBookId(),
+                    loan.isRented() ? "rented" : "queued", loan.getSince(), loan.getDueDate() == null ? "" : loan.getDueDate());
+        }
+        System.out.println(loans.size() + " loan(s)");
+    }
+
+    /*
+     * Rentals and queue entries of a user, ordered by library and book, in one partition read.
+     */
+    public List<UserLoan> getUserLoans(String userId) throws BackendException {
+        BoundStatement bs = new BoundStatement(SELECT_USER_LOANS.get());
+        bs.bind(userId);
+        List<UserLoan> loans = new ArrayList<>();
+        try {
+            for (Row row : executeQuery(bs)) {
+                loans.add(UserLoan.from(row));
+            }
+        } catch (DriverException e) {
+            throw new BackendException("Could not fetch the next page. " + e.getMessage() + ".", e);
+        }
+        return loans;
+    }
+
+    /*
+     * Checks every entry of the user against the loan layout (one IN read per library and
+     * MAX_BOOKS_PER_BATCH books) and fixes or deletes the ones that drifted. Returns the number of
+     * entries changed. Loans missing from the index are only found from the library side.
+     */
+    public int repairUserLoans(String userId) throws BackendException {
+        Map<String, List<UserLoan>> byLibrary = new LinkedHashMap<>();
+        for (UserLoan loan : getUserLoans(userId)) {
+            byLibrary.computeIfAbsent(loan.getLibraryId(), key -> new ArrayList<>()).add(loan);
+        }
+
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        for (Map.Entry<String, List<UserLoan>> library : byLibrary.entrySet()) {
+            List<UserLoan> loans = library.getValue();
+            for (int from = 0; from < loans.size(); from += MAX_BOOKS_PER_BATCH) {
+                List<UserLoan> chunk = loans.subList(from, Math.min(from + MAX_BOOKS_PER_BATCH, loans.size()));
+                List<String> bookIds = new ArrayList<>();
+                for (UserLoan loan : chunk) {
+                    bookIds.add(loan.getBookId());
+                }
+                Map<String, Book> books = await(readBooksAsync(library.getKey(), bookIds));
+                for (UserLoan loan : chunk) {
+                    Book book = books.get(loan.getBookId());
+                    UserLoan expected = book == null ? null : expectedLoan(userId, book);
+                    if (expected == null) {
+                        writes.add(executeQueryAsync(DELETE_USER_LOAN.bind(userId, loan.getLibraryId(), loan.getBookId())));
+                    } else if (!sameLoan(loan, expected)) {
+                        writes.add(upsertUserLoanAsync(expected));
+                    }
+                }
+            }
+        }
+        await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])));
+        return writes.size();
+    }
+
+    /*
+     * Rewrites the index entries of every renter and queued user of the library from a streamed read of
+     * its books. The writes are idempotent upserts, awaited every listFetchSize entries so that the
+     * scan does not run ahead of the cluster. Stale entries are left to repairUserLoans.
+     */
+    public int repairLibraryLoans(String libraryId) throws BackendException {
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        int[] count = new int[1];
+        BackendException[] failure = new BackendException[1];
+        forEachBookWithLoans(libraryId, book -> {
+            if (failure[0] != null) return;
+            for (UserLoan loan : expectedLoans(book)) {
+                writes.add(upsertUserLoanAsync(loan));
+                count[0]++;
+            }
+            if (writes.size() >= listFetchSize) {
+                try {
+                    await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])));
+                } catch (BackendException e) {
+                    failure[0] = e;
+                }
+                writes.clear();
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])));
+        return count[0];
+    }
+
+    protected List<UserLoan> expectedLoans(Book book) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+        Map<String, Date> rented = book.getRented();
+        List<UserLoan> loans = new ArrayList<>();
+        for (Map.Entry<String, Date> renter : rented.entrySet()) {
+            loans.add(new UserLoan(renter.getKey(), libraryId, bookId, UserLoan.RENTED, renter.getValue(), book.getDueDate(renter.getKey())));
+        }
+        for (Map.Entry<String, Date> queued : book.getQueue().entrySet()) {
+            if (!rented.containsKey(queued.getKey())) {
+                loans.add(new UserLoan(queued.getKey(), libraryId, bookId, UserLoan.QUEUED, queued.getValue(), null));
+            }
+        }
+        return loans;
+    }
+
+    protected UserLoan expectedLoan(String userId, Book book) {
+        int status = isBookRented(userId, book);
+        if (status == 0) return null;
+        Date since = (status == UserLoan.RENTED ? book.getRented() : book.getQueue()).get(userId);
+        return new UserLoan(userId, book.getLibraryId(), book.getBookId(), status, since,
+                status == UserLoan.RENTED ? book.getDueDate(userId) : null);
+    }
+
+    static boolean sameLoan(UserLoan a, UserLoan b) {
+        return a.getStatus() == b.getStatus() && Objects.equals(a.getSince(), b.getSince()) && Objects.equals(a.getDueDate(), b.getDueDate());
+    }
+
+    private CompletableFuture<ResultSet> upsertUserLoanAsync(UserLoan loan) {
+        return executeQueryAsync(UPSERT_USER_LOAN.bind(loan.getUserId(), loan.getLibraryId(), loan.getBookId(),
+                loan.getStatus(), loan.getSince(), loan.getDueDate()));
+    }
+
+    //-----------------------------------PRIVATE STUFF--------------------------------------------------------------------------
+
+    protected Book validate(String libraryId, String bookId) throws BackendException {
+        Book book;
+        if (rentMode == RentMode.LWT) {
+            book = validateRentedCount(libraryId, bookId);
+        } else {
+            book = repairBook(libraryId, bookId);
+        }
+        cacheBook(book);
+        return book;
+    }
+
+    protected Book repairBook(String libraryId, String bookId) throws BackendException {
+        return repairBook(libraryId, bookId, promotesOnClient());
+    }
+
+    /*
+     * Without promote, waiting users are left for the PromotionWorker: an event is published when a
+     * copy is free for them, and the loop only repairs over-allocation.
+     */
+    protected Book repairBook(String libraryId, String bookId, boolean promote) throws BackendException {
+        boolean isOk;
+        Book book;
+        do {
+            long start = System.nanoTime();
+            isOk = true;
+            flushQueue(libraryId, bookId);
+            book = readBook(libraryId, bookId);
+            Moves moves = planMoves(book);
+            if (moveToQueue(book, moves.toQueue)) isOk = false;
+            if (promote) {
+                if (moveFromQueue(book, moves.fromQueue)) isOk = false;
+            } else if (!moves.fromQueue.isEmpty()) {
+                publishPromotion(libraryId, bookId);
+            }
+            metrics.record(BackendMetrics.Operation.VALIDATE_ITERATION, start);
+        } while (!isOk);
+        return book;
+    }
+
+    /*
+     * In LWT mode every conditional write keeps rented_count equal to the size of rented_date, at most
+     * book_count copies rented and nobody waiting while a copy is free. A row is therefore only
+     * repaired when something else left it inconsistent (VALIDATE mode writes, a book_count change):
+     * the moves and the new rented_count go out in one write conditioned on the row they were planned
+     * from, and a lost race reads the row again.
+     */
+    protected Book validateRentedCount(String libraryId, String bookId) throws BackendException {
+        return await(validateRentedCountAsync(libraryId, bookId));
+    }
+
+    protected CompletableFuture<Book> validateRentedCountAsync(String libraryId, String bookId) {
+        return flushQueueAsync(libraryId, bookId).thenCompose(ignored -> readBookAsync(libraryId, bookId)).thenCompose(book -> {
+            if (book == null || !needsRepair(book)) return CompletableFuture.completedFuture(book);
+            long start = System.nanoTime();
+            return repairBookCassandraAsync(book, planMoves(book))
+                    .whenComplete((repaired, e) -> metrics.record(BackendMetrics.Operation.VALIDATE_ITERATION, start))
+                    .thenCompose(repaired -> {
+                        if (repaired != null) return CompletableFuture.completedFuture(repaired);
+                        addConflict(1);
+                        return validateRentedCountAsync(libraryId, bookId);
+                    });
+        });
+    }
+
+    /*
+     * Whether validate() would change the book; a book that is not there has nothing to repair.
+     */
+    protected boolean needsValidation(Book book) {
+        if (book == null) return false;
+        return rentMode == RentMode.LWT ? needsRepair(book) : needsMoves(book);
+    }
+
+    protected boolean needsRepair(Book book) {
+        Map<String, Date> rented = book.getRented();
+        int bookCount = book.getBookCount();
+        Integer rentedCount = book.getRentedCount();
+
+        if (rented.size() > bookCount) return true;
+        if (rented.size() < bookCount && !book.getQueue().isEmpty()) return true;
+        return rentedCount == null ? !rented.isEmpty() : rentedCount != rented.size();
+    }
+
+    protected int claimBook(String userId, Book book) throws BackendException {
+        return await(claimBookAsync(userId, book));
+    }
+
+    /*
+     * Claims a copy with one conditional write on book_count and rented_count, or joins the queue if
+     * the book was full at the observed rented_count. A failed CAS returns the current values, so a
+     * lost race is retried without reading the row again.
+     */
+    protected CompletableFuture<Integer> claimBookAsync(String userId, Book book) {
+        int status = isBookRented(userId, book);
+        if (status > 0) return CompletableFuture.completedFuture(status);
+        if (needsRepair(book)) {
+            return validateRentedCountAsync(book.getLibraryId(), book.getBookId()).thenCompose(validated -> {
+                cacheBook(validated);
+                return claimBookAsync(userId, validated);
+            });
+        }
+        return claimBookAsync(userId, book.getLibraryId(), book.getBookId(), book.getBookCount(), book.getRentedCount());
+    }
+
+    private CompletableFuture<Integer> claimBookAsync(String userId, String libraryId, String bookId, int bookCount, Integer expectedCount) {
+        int rentedNow = expectedCount == null ? 0 : expectedCount;
+        boolean claim = rentedNow < bookCount;
+        CompletableFuture<ResultSet> write = claim
+                ? claimBookCassandraAsync(userId, libraryId, bookId, bookCount, rentedNow + 1, expectedCount)
+                : queueBookIfFullCassandraAsync(userId, libraryId, bookId, expectedCount);
+        return write.thenCompose(rs -> {
+            if (rs.wasApplied()) return CompletableFuture.completedFuture(claim ? 1 : 2);
+            addConflict(1);
+            Row current = rs.one();
+            Integer rentedCount = getRentedCount(current);
+            if (rentedCount == null) {
+                return readBookAsync(libraryId, bookId).thenCompose(book -> claimBookAsync(userId, book));
+            }
+            return claimBookAsync(userId, libraryId, bookId, claim ? current.getInt("book_count") : bookCount, rentedCount);
+        });
+    }
+
+    protected void releaseBook(String userId, Book book) throws BackendException {
+        await(releaseBookAsync(userId, book));
+    }
+
+    /*
+     * Gives the copy back, or leaves the queue, with one conditional write. If somebody is waiting,
+     * the copy is handed over to the head of the queue in the same write, so rented_count does not
+     * change. A failed CAS reads the row again, since a repair may have moved the user in between.
+     */
+    protected CompletableFuture<Void> releaseBookAsync(String userId, Book book) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+
+        if (needsRepair(book)) {
+            return validateRentedCountAsync(libraryId, bookId).thenCompose(validated -> {
+                cacheBook(validated);
+                return releaseBookAsync(userId, validated);
+            });
+        }
+        CompletableFuture<ResultSet> write;
+        switch (isBookRented(userId, book)) {
+            case 1:
+                Integer expected = book.getRentedCount();
+                Map<String, Date> queue = book.getQueue();
+                Date dueDate = book.getDueDate(userId);
+                if (queue.isEmpty()) {
+                    write = releaseBookCassandraAsync(userId, libraryId, bookId, expected - 1, expected, queue, dueDate);
+                } else {
+                    write = handOverBookCassandraAsync(userId, oldestUser(queue), libraryId, bookId, expected, queue, dueDate);
+                }
+                break;
+            case 2:
+                write = leaveQueueCassandraAsync(userId, libraryId, bookId);
+                break;
+            default:
+                return CompletableFuture.completedFuture(null);
+        }
+        return write.thenCompose(rs -> {
+            if (rs.wasApplied()) return CompletableFuture.completedFuture(null);
+            addConflict(1);
+            return readBookAsync(libraryId, bookId).thenCompose(current -> current == null
+                    ? CompletableFuture.completedFuture(null)
+                    : releaseBookAsync(userId, current));
+        });
+    }
+
+    protected void cacheBook(Book book) {
+        if (bookCache != null && book != null) {
+            bookCache.put(book);
+        }
+    }
+
+    protected void updateCache(String libraryId, String bookId, UnaryOperator<Book> change) {
+        if (bookCache != null) {
+            bookCache.update(libraryId, bookId, change);
+        }
+    }
+
+    protected void invalidateCache(String libraryId, String bookId) {
+        if (bookCache != null) {
+            bookCache.invalidate(libraryId, bookId);
+        }
+    }
+
+    /*
+     * A conditional write that was not applied means the row changed under us - drop the entry.
+     */
+    protected void updateCacheIfApplied(ResultSet rs, String libraryId, String bookId, UnaryOperator<Book> change) {
+        if (bookCache == null) return;
+        if (rs.wasApplied()) {
+            bookCache.update(libraryId, bookId, change);
+        } else {
+            bookCache.invalidate(libraryId, bookId);
+        }
+    }
+
+    private int awaitCoalesced(CompletableFuture<Integer> result) throws BackendException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof BackendException) {
+                throw (BackendException) cause;
+            }
+            throw new BackendException("Coalesced request failed. " + cause.getMessage() + ".", e);
+        }
+    }
+
+    private interface BlockingOperation {
+        int call() throws BackendException;
+    }
+
+    private CompletableFuture<Integer> submit(BackendMetrics.Operation operation, BlockingOperation call) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Semaphore permits = concurrency();
+        try {
+            executor().execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    permits.acquire();
+                    try {
+                        result.complete(call.call());
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.completeExceptionally(e);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    if (operation != null) {
+                        metrics.record(operation, start);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new BackendException("Executor is shut down. " + e.getMessage() + ".", e));
+        }
+        return result;
+    }
+
+    private ExecutorService executor() {
+        ExecutorService current = executor;
+        if (current == null) {
+            synchronized (this) {
+                current = executor;
+                if (current == null) {
+                    current = workers.newExecutor("backend-worker", workerThreads);
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Semaphore concurrency() {
+        Semaphore current = concurrency;
+        if (current == null) {
+            synchronized (this) {
+                current = concurrency;
+                if (current == null) {
+                    current = new Semaphore(maxConcurrency > 0 ? maxConcurrency : poolCapacity());
+                    concurrency = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private int poolCapacity() {
+        PoolingOptions pooling = session.getCluster().getConfiguration().getPoolingOptions();
+        return Math.max(1, pooling.getMaxConnectionsPerHost(HostDistance.LOCAL) * pooling.getMaxRequestsPerConnection(HostDistance.LOCAL));
+    }
+
+    private interface ChunkHandler {
+        CompletableFuture<Map<RentRequest, RentResult>> apply(String libraryId, Map<String, List<RentRequest>> books);
+    }
+
+    private CompletableFuture<List<RentResult>> forEachChunk(List<RentRequest> requests, ChunkHandler handler) {
+        Map<String, Map<String, List<RentRequest>>> libraries = new LinkedHashMap<>();
+        for (RentRequest request : requests) {
+            libraries.computeIfAbsent(request.getLibraryId(), key -> new LinkedHashMap<>())
+                    .computeIfAbsent(request.getBookId(), key -> new ArrayList<>())
+                    .add(request);
+        }
+
+        List<CompletableFuture<Map<RentRequest, RentResult>>> chunks = new ArrayList<>();
+        for (Map.Entry<String, Map<String, List<RentRequest>>> library : libraries.entrySet()) {
+            // A sharded library is one partition per shard; a chunk never spans two of them.
+            int shards = shardsOf(library.getKey());
+            Map<Integer, Map<String, List<RentRequest>>> partitions = new LinkedHashMap<>();
+            for (Map.Entry<String, List<RentRequest>> book : library.getValue().entrySet()) {
+                partitions.computeIfAbsent(shards == 0 ? 0 : shardOf(book.getKey(), shards), key -> new LinkedHashMap<>())
+                        .put(book.getKey(), book.getValue());
+            }
+            for (Map<String, List<RentRequest>> partition : partitions.values()) {
+                Map<String, List<RentRequest>> chunk = new LinkedHashMap<>();
+                for (Map.Entry<String, List<RentRequest>> book : partition.entrySet()) {
+                    chunk.put(book.getKey(), book.getValue());
+                    if (chunk.size() == MAX_BOOKS_PER_BATCH) {
+                        chunks.add(handleChunk(library.getKey(), chunk, handler));
+                        chunk = new LinkedHashMap<>();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    chunks.add(handleChunk(library.getKey(), chunk, handler));
+                }
+            }
+        }
+
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<RentRequest, RentResult> results = new IdentityHashMap<>();
+            for (CompletableFuture<Map<RentRequest, RentResult>> chunk : chunks) {
+                results.putAll(chunk.join());
+            }
+            List<RentResult> ordered = new ArrayList<>(requests.size());
+            for (RentRequest request : requests) {
+                ordered.add(results.get(request));
+            }
+            return ordered;
+        });
+    }
+
+    private CompletableFuture<Map<RentRequest, RentResult>> handleChunk(String libraryId, Map<String, List<RentRequest>> books, ChunkHandler handler) {
+        CompletableFuture<Map<RentRequest, RentResult>> chunk;
+        try {
+            chunk = handler.apply(libraryId, books);
+        } catch (Exception e) {
+            chunk = CompletableFuture.failedFuture(e);
+        }
+        return chunk.exceptionally(t -> {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            Map<RentRequest, RentResult> failed = new IdentityHashMap<>();
+            for (List<RentRequest> bookRequests : books.values()) {
+                for (RentRequest request : bookRequests) {
+                    failed.put(request, RentResult.failed(request, cause));
+                }
+            }
+            return failed;
+        });
+    }
+
+    private CompletableFuture<Map<RentRequest, RentResult>> rentChunkAsync(String libraryId, Map<String, List<RentRequest>> books) {
+        return readBooksAsync(libraryId, new ArrayList<>(books.keySet())).thenCompose(found -> {
+            BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            Date now = new Date();
+            Date due = dueDate(now);
+            List<UserLoan> loans = new ArrayList<>();
+
+            for (Map.Entry<String, List<RentRequest>> book : books.entrySet()) {
+                Book current = found.get(book.getKey());
+                if (current == null) continue;
+
+                int free = current.getBookCount() - current.getRented().size();
+                Map<String, Date> toRent = new HashMap<>();
+                Map<String, Date> toDue = new HashMap<>();
+                Map<String, Date> toQueue = new HashMap<>();
+                for (RentRequest request : book.getValue()) {
+                    String userId = request.getUserId();
+                    if (isBookRented(userId, current) > 0 || toRent.containsKey(userId) || toQueue.containsKey(userId)) continue;
+                    if (free > 0) {
+                        toRent.put(userId, now);
+                        toDue.put(userId, due);
+                        loans.add(new UserLoan(userId, libraryId, book.getKey(), UserLoan.RENTED, now, due));
+                        free--;
+                    } else {
+                        toQueue.put(userId, now);
+                        loans.add(new UserLoan(userId, libraryId, book.getKey(), UserLoan.QUEUED, now, null));
+                    }
+                }
+                if (!toRent.isEmpty()) batch.add(bindBook(RENT_BOOK, toRent, toDue, libraryId, book.getKey()));
+                if (!toQueue.isEmpty()) batch.add(bindBook(QUEUE_BOOK, toQueue, libraryId, book.getKey()));
+            }
+
+            return executeBatchAsync(libraryId, books.keySet(), batch, loans)
+                    .thenCompose(ignored -> indexLoansAsync(loans))
+                    .thenCompose(ignored -> settleBooksAsync(libraryId, books.keySet()))
+                    .thenApply(settled -> {
+                        Map<RentRequest, RentResult> results = new IdentityHashMap<>();
+                        for (List<RentRequest> bookRequests : books.values()) {
+                            for (RentRequest request : bookRequests) {
+                                results.put(request, resultFor(request, settled.get(request.getBookId()), book -> isBookRented(request.getUserId(), book)));
+                            }
+                        }
+                        return results;
+                    });
+        });
+    }
+
+    private CompletableFuture<Map<RentRequest, RentResult>> returnChunkAsync(String libraryId, Map<String, List<RentRequest>> books) {
+        return readBooksAsync(libraryId, new ArrayList<>(books.keySet())).thenCompose(found -> {
+            BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            List<UserLoan> loans = new ArrayList<>();
+
+            for (Map.Entry<String, List<RentRequest>> book : books.entrySet()) {
+                Book current = found.get(book.getKey());
+                if (current == null) continue;
+
+                Set<String> users = new HashSet<>();
+                for (RentRequest request : book.getValue()) {
+                    int status = isBookRented(request.getUserId(), current);
+                    if (status > 0 && users.add(request.getUserId())) {
+                        loans.add(new UserLoan(request.getUserId(), libraryId, book.getKey(), UserLoan.REMOVED, null, current.getDueDate(request.getUserId())));
+                    }
+                }
+                if (!users.isEmpty()) batch.add(bindBook(RETURN_BOOK, users, users, users, libraryId, book.getKey()));
+            }
+
+            return executeBatchAsync(libraryId, books.keySet(), batch, loans)
+                    .thenCompose(ignored -> indexLoansAsync(loans))
+                    .thenCompose(ignored -> settleBooksAsync(libraryId, books.keySet()))
+                    .thenApply(settled -> {
+                        Map<RentRequest, RentResult> results = new IdentityHashMap<>();
+                        for (List<RentRequest> bookRequests : books.values()) {
+                            for (RentRequest request : bookRequests) {
+                                results.put(request, resultFor(request, found.get(request.getBookId()), book -> isBookRented(request.getUserId(), book)));
+                            }
+                        }
+                        return results;
+                    });
+        });
+    }
+
+    /*
+     * Every request reads the book and then claims or releases with the LWT flows, so a request never
+     * works from the state an earlier request of the same book has changed. A user asking twice for
+     * the same book gets the result of the first request, as in rentChunkAsync/returnChunkAsync.
+     */
+    private CompletableFuture<Map<RentRequest, RentResult>> conditionalChunkAsync(String libraryId, Map<String, List<RentRequest>> books, boolean rent) {
+        Map<RentRequest, RentResult> results = Collections.synchronizedMap(new IdentityHashMap<>());
+        List<CompletableFuture<?>> chains = new ArrayList<>(books.size());
+        for (Map.Entry<String, List<RentRequest>> book : books.entrySet()) {
+            String bookId = book.getKey();
+            Map<String, RentResult> byUser = new HashMap<>();
+            CompletableFuture<?> chain = CompletableFuture.completedFuture(null);
+            for (RentRequest request : book.getValue()) {
+                String userId = request.getUserId();
+                chain = chain.thenCompose(ignored -> {
+                    RentResult first = byUser.get(userId);
+                    if (first != null) {
+                        return CompletableFuture.completedFuture(first.isSuccess() ? RentResult.of(request, first.getStatus()) : RentResult.failed(request, first.getError()));
+                    }
+                    return readBookAsync(libraryId, bookId).thenCompose(current -> {
+                        if (current == null) return CompletableFuture.completedFuture(resultFor(request, null, null));
+                        if (rent) return claimBookAsync(userId, current).thenApply(status -> RentResult.of(request, status));
+                        int status = isBookRented(userId, current);
+                        if (status == 0) return CompletableFuture.completedFuture(RentResult.of(request, status));
+                        return releaseBookAsync(userId, current).thenApply(ignored2 -> RentResult.of(request, status));
+                    }).exceptionally(t -> RentResult.failed(request, t instanceof CompletionException && t.getCause() != null ? t.getCause() : t));
+                }).thenAccept(result -> {
+                    byUser.putIfAbsent(userId, result);
+                    results.put(request, result);
+                });
+            }
+            chains.add(chain);
+        }
+        return CompletableFuture.allOf(chains.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> results);
+    }
+
+    private RentResult resultFor(RentRequest request, Book book, ToIntFunction<Book> status) {
+        if (book == null) {
+            return RentResult.failed(request, new BackendException("Book " + request.getBookId() + " not found in library " + request.getLibraryId() + "."));
+        }
+        return RentResult.of(request, status.applyAsInt(book));
+    }
+
+    /*
+     * loans are the changes of the batch; in the rows layout they are written instead of (or after)
+     * the map batch, one book_loans partition at a time.
+     */
+    private CompletableFuture<ResultSet> executeBatchAsync(String libraryId, Set<String> bookIds, BatchStatement batch, List<UserLoan> loans) {
+        if (batch.size() == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        for (String bookId : bookIds) {
+            invalidateCache(libraryId, bookId);
+        }
+        LoanLayout layout = loanLayout;
+        CompletableFuture<ResultSet> maps = layout.writesMaps() ? executeQueryAsync(batch) : CompletableFuture.completedFuture(null);
+        if (!layout.writesRows()) return maps;
+        return maps.thenCompose(rs -> loanRows.writeAsync(loans).thenApply(ignored -> rs));
+    }
+
+    /*
+     * Reads the chunk back and runs validateAsync only for the books whose row needs moves, i.e.
+     * where another client raced with the batch or returned copies can go to the queue.
+     */
+    private CompletableFuture<Map<String, Book>> settleBooksAsync(String libraryId, Set<String> bookIds) {
+        CompletableFuture<?>[] flushes = new CompletableFuture<?>[bookIds.size()];
+        int i = 0;
+        for (String bookId : bookIds) {
+            flushes[i++] = flushQueueAsync(libraryId, bookId);
+        }
+        return CompletableFuture.allOf(flushes).thenCompose(ignored -> readBooksAsync(libraryId, new ArrayList<>(bookIds))).thenCompose(books -> {
+            List<CompletableFuture<Book>> repairs = new ArrayList<>();
+            for (Book book : books.values()) {
+                if (needsMoves(book)) {
+                    repairs.add(validateAsync(libraryId, book.getBookId()));
+                } else {
+                    cacheBook(book);
+                }
+            }
+            return CompletableFuture.allOf(repairs.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                for (CompletableFuture<Book> repair : repairs) {
+                    Book book = repair.join();
+                    books.put(book.getBookId(), book);
+                }
+                return books;
+            });
+        });
+    }
+
+    protected boolean needsMoves(Book book) {
+        Map<String, Date> rented = book.getRented();
+        int bookCount = book.getBookCount();
+        return rented.size() > bookCount || (rented.size() < bookCount && !book.getQueue().isEmpty());
+    }
+
+    private int streamLoans(BoundStatement bs, Consumer<DueLoan> consumer) throws BackendException {
+        bs.setFetchSize(listFetchSize);
+        return streamLoans(executeQuery(bs), consumer);
+    }
+
+    private int streamLoans(ResultSet rs, Consumer<DueLoan> consumer) throws BackendException {
+        int count = 0;
+        try {
+            for (Row row : rs) {
+                consumer.accept(new DueLoan(row.getString("library_id"), row.getString("book_id"),
+                        row.getString("user_id"), row.getTimestamp("due_date")));
+                count++;
+            }
+        } catch (DriverException e) {
+            throw new BackendException("Could not fetch the next page. " + e.getMessage() + ".", e);
+        }
+        return count;
+    }
+
+    protected Date dueDate(Date rentedAt) {
+        return new Date(rentedAt.getTime() + TimeUnit.DAYS.toMillis(loanPeriodDays));
+    }
+
+    private static com.datastax.driver.core.LocalDate bucketOf(Date dueDate) {
+        return com.datastax.driver.core.LocalDate.fromMillisSinceEpoch(dueDate.getTime());
+    }
+
+    private static com.datastax.driver.core.LocalDate bucketOf(LocalDate day) {
+        return com.datastax.driver.core.LocalDate.fromDaysSinceEpoch((int) day.toEpochDay());
+    }
+
+    protected Integer getRentedCount(Row row) {
+        return row.isNull("rented_count") ? null : row.getInt("rented_count");
+    }
+
+    protected String oldestUser(Map<String, Date> users) {
+        List<String> oldest = firstUsers(users, 1, OLDEST_FIRST);
+        return oldest.isEmpty() ? null : oldest.get(0);
+    }
+
+    protected boolean moveToQueue(Book book) throws BackendException {
+        return moveToQueue(book, planMoves(book).toQueue);
+    }
+
+    protected boolean moveFromQueue(Book book) throws BackendException {
+        return moveFromQueue(book, planMoves(book).fromQueue);
+    }
+
+    protected boolean moveToQueue(Book book, List<String> users) throws BackendException {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+
+        for (String userId : users) {
+            unrentBookCassandra(userId, libraryId, bookId, book.getDueDate(userId));
+        }
+        return !users.isEmpty();
+    }
+
+    protected boolean moveFromQueue(Book book, List<String> users) throws BackendException {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+
+        for (String userId : users) {
+            dequeueBookCassandra(userId, libraryId, bookId, book.getQueue().get(userId));
+        }
+        return !users.isEmpty();
+    }
+
+    /*
+     * Users to move so that at most book_count copies are rented and nobody waits while a copy is free.
+     * At most one of the lists is non-empty: the newest renters over book_count (they lost the race
+     * and go back to the queue), or the oldest queued users that fit into the free copies.
+     *
+     * rented_date is decoded once and the queue only when copies are free, so a full book with a long
+     * waitlist never pays for the queue. Users are picked in one pass over the map.
+     */
+    protected Moves planMoves(Book book) {
+        Map<String, Date> rented = book.getRented();
+        int bookCount = book.getBookCount();
+
+        if (rented.size() > bookCount) {
+            int diff = rented.size() - bookCount;
+            addConflict(diff);
+            return new Moves(firstUsers(rented, diff, NEWEST_FIRST), Collections.emptyList());
+        }
+        if (rented.size() < bookCount) {
+            Map<String, Date> queue = book.getQueue();
+            if (!queue.isEmpty()) {
+                return new Moves(Collections.emptyList(), firstUsers(queue, bookCount - rented.size(), OLDEST_FIRST));
+            }
+        }
+        return Moves.NONE;
+    }
+
+    protected static final class Moves {
+        static final Moves NONE = new Moves(Collections.emptyList(), Collections.emptyList());
+
+        final List<String> toQueue;
+        final List<String> fromQueue;
+
+        Moves(List<String> toQueue, List<String> fromQueue) {
+            this.toQueue = toQueue;
+            this.fromQueue = fromQueue;
+        }
+    }
+
+    /*
+     * The first count users in the given order, found with a heap of count entries: O(n log count)
+     * instead of one scan of the map per user.
+     */
+    protected static List<String> firstUsers(Map<String, Date> users, int count, Comparator<Map.Entry<String, Date>> order) {
+        if (count <= 0 || users.isEmpty()) return Collections.emptyList();
+        Comparator<Map.Entry<String, Date>> reversed = order.reversed();
+        PriorityQueue<Map.Entry<String, Date>> heap = new PriorityQueue<>(Math.min(count, users.size()) + 1, reversed);
+        for (Map.Entry<String, Date> entry : users.entrySet()) {
+            if (heap.size() < count) {
+                heap.add(entry);
+            } else if (order.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        String[] result = new String[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = heap.poll().getKey();
+        }
+        return Arrays.asList(result);
+    }
+
+    protected CompletableFuture<Book> validateAsync(String libraryId, String bookId) {
+        return validateAsync(libraryId, bookId, promotesOnClient());
+    }
+
+    /*
+     * See repairBook for promote. In LWT mode queued users are always promoted, see validateRentedCount.
+     */
+    protected CompletableFuture<Book> validateAsync(String libraryId, String bookId, boolean promote) {
+        if (rentMode == RentMode.LWT) {
+            return validateRentedCountAsync(libraryId, bookId).thenApply(book -> {
+                cacheBook(book);
+                return book;
+            });
+        }
+        long start = System.nanoTime();
+        return flushQueueAsync(libraryId, bookId).thenCompose(ignored -> readBookAsync(libraryId, bookId)).thenCompose(book -> {
+            Moves moves = planMoves(book);
+            CompletableFuture<Boolean> fromQueue;
+            if (promote) {
+                fromQueue = moveFromQueueAsync(book, moves.fromQueue);
+            } else if (!moves.fromQueue.isEmpty()) {
+                fromQueue = publishPromotionAsync(libraryId, bookId).thenApply(ignored -> false);
+            } else {
+                fromQueue = CompletableFuture.completedFuture(false);
+            }
+            return moveToQueueAsync(book, moves.toQueue)
+                    .thenCombine(fromQueue, (toQueue, dequeued) -> toQueue || dequeued)
+                    .whenComplete((changed, e) -> metrics.record(BackendMetrics.Operation.VALIDATE_ITERATION, start))
+                    .thenCompose(changed -> {
+                        if (changed) return validateAsync(libraryId, bookId, promote);
+                        cacheBook(book);
+                        return CompletableFuture.completedFuture(book);
+                    });
+        });
+    }
+
+    protected CompletableFuture<Boolean> moveToQueueAsync(Book book, List<String> users) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[users.size()];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = unrentBookCassandraAsync(users.get(i), libraryId, bookId, book.getDueDate(users.get(i)));
+        }
+        return CompletableFuture.allOf(writes).thenApply(ignored -> writes.length > 0);
+    }
+
+    protected CompletableFuture<Boolean> moveFromQueueAsync(Book book, List<String> users) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[users.size()];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = dequeueBookCassandraAsync(users.get(i), libraryId, bookId, book.getQueue().get(users.get(i)));
+        }
+        return CompletableFuture.allOf(writes).thenApply(ignored -> writes.length > 0);
+    }
+
+    protected int isBookRented(String userId, Book book) {
+        return book.status(userId);
+    }
+
+    protected void finalize() {
+        try {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            if (session != null) {
+                metrics.unregister();
+                if (ownsCluster) {
+                    session.getCluster().close();
+                } else {
+                    session.close();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Could not close existing cluster", e);
+        }
+    }
+
+    protected void showResults(ResultSet rs) {
+        showHeader();
+        for (Row row : rs) {
+            showRow(row);
+        }
+    }
+
+    protected void showHeader() {
+        System.out.printf(LIBRARY_DATA_FORMAT, "LIBRARY_ID", "BOOK_ID", "BOOK_COUNT");
+    }
+
+    protected void showRow(Row row) {
+        System.out.printf(LIBRARY_DATA_FORMAT, row.getString("library_id"), row.getString("book_id"), row.getInt("book_count"));
+    }
+
+    protected int addConflict(int err) {
+        return errCount.addAndGet(err);
+    }
+
+    //----------------------------CASSANDRA QUERY EXECUTION--------------------------------------------------------------------------
+
+    protected ResultSet selectBookCassandra(String libraryId, String bookId) throws BackendException {
+        return selectBookCassandra(libraryId, bookId, null);
+    }
+
+    /*
+     * level replaces the READ level of the consistency profile; null keeps it.
+     */
+    protected ResultSet selectBookCassandra(String libraryId, String bookId, ConsistencyLevel level) throws BackendException {
+        BoundStatement bs = bindBook(SELECT_BOOK, libraryId, bookId);
+        bs.setConsistencyLevel(level);
+        ResultSet rs;
+        rs = executeQuery(bs);
+        return rs;
+    }
+
+    /*
+     * The book with its loans, from the layout loanLayout reads: the library_data row or the
+     * book_loans partition. null when the book is not there.
+     */
+    protected Book readBook(String libraryId, String bookId) throws BackendException {
+        return readBook(libraryId, bookId, null);
+    }
+
+    protected Book readBook(String libraryId, String bookId, ConsistencyLevel level) throws BackendException {
+        if (!loanLayout.readsRows()) {
+            return Book.from(selectBookCassandra(libraryId, bookId, level).one());
+        }
+        return loanRows.read(libraryId, bookId, level);
+    }
+
+    /*
+     * Streams the books of a library with their loans. In the rows layout the book ids come from
+     * library_data and the loans from book_loans, MAX_BOOKS_PER_BATCH books per IN read.
+     */
+    protected int forEachBookWithLoans(String libraryId, Consumer<Book> consumer) throws BackendException {
+        if (!loanLayout.readsRows()) {
+            return forEachBook(libraryId, true, row -> consumer.accept(Book.from(row)));
+        }
+        List<String> bookIds = new ArrayList<>();
+        int[] count = new int[1];
+        BackendException[] failure = new BackendException[1];
+        forEachBook(libraryId, false, row -> {
+            if (failure[0] != null) return;
+            bookIds.add(row.getString("book_id"));
+            if (bookIds.size() == MAX_BOOKS_PER_BATCH) {
+                try {
+                    count[0] += acceptBooks(libraryId, bookIds, consumer);
+                } catch (BackendException e) {
+                    failure[0] = e;
+                }
+                bookIds.clear();
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        return count[0] + acceptBooks(libraryId, bookIds, consumer);
+    }
+
+    private int acceptBooks(String libraryId, List<String> bookIds, Consumer<Book> consumer) throws BackendException {
+        if (bookIds.isEmpty()) return 0;
+        Map<String, Book> books = await(readBooksAsync(libraryId, bookIds));
+        for (String bookId : bookIds) {
+            Book book = books.get(bookId);
+            if (book != null) consumer.accept(book);
+        }
+        return books.size();
+    }
+
+    public ResultSet upsertBookCassandra(String libraryId, String bookId, int bookCount) throws BackendException {
+        BoundStatement bs = bindBook(INSERT_BOOK, libraryId, bookId, bookCount);
+        ResultSet rs;
+        rs = executeQuery(bs);
+        if (loanLayout.writesRows()) {
+            executeQuery(loanRows.bookCountStatement(libraryId, bookId, bookCount));
+        }
+        invalidateCache(libraryId, bookId);
+        return rs;
+    }
+
+    protected ResultSet selectBooksFromLibraryCassandra(String libraryId) throws BackendException {
+        BoundStatement bs = new BoundStatement(SELECT_BOOKS_FROM_LIBRARY);
+        bs.bind(libraryId);
+        ResultSet rs;
+        rs = executeQuery(bs);
+        return rs;
+    }
+
+    public ResultSet rentBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
+        Date now = new Date();
+        Date due = dueDate(now);
+        BoundStatement bs = bindBook(RENT_BOOK, Collections.singletonMap(userId, now), Collections.singletonMap(userId, due), libraryId, bookId);
+        ResultSet rs;
+        rs = writeLoan(bs, loanRows.rentedStatement(userId, libraryId, bookId, now, due));
+        indexLoan(userId, libraryId, bookId, now, due);
+        updateCache(libraryId, bookId, book -> book.withRented(userId, now, due));
+        return rs;
+    }
+
+    /*
+     * dueDate is the user's entry in due_date, or null when the user was only queued.
+     */
+    protected ResultSet returnBookCassandra(String userId, String libraryId, String bookId, Date dueDate) throws BackendException {
+        QueueWriteBuffer queueWrites = this.queueWrites;
+        if (queueWrites != null && dueDate == null) {
+            return await(queueWrites.leave(userId, libraryId, bookId));
+        }
+        Set<String> mySet = Collections.singleton(userId);
+        BoundStatement bs = bindBook(RETURN_BOOK, mySet, mySet, mySet, libraryId, bookId);
+        ResultSet rs;
+        rs = writeLoan(bs, loanRows.deleteStatement(userId, libraryId, bookId));
+        unindexLoan(userId, libraryId, bookId, dueDate);
+        updateCache(libraryId, bookId, book -> book.withoutUser(userId));
+        return rs;
+    }
+
+    protected ResultSet queueBookCassandra(String userId, String libraryId, String bookId) throws BackendException {
+        Date now = new Date();
+        long start = System.nanoTime();
+        QueueWriteBuffer queueWrites = this.queueWrites;
+        if (queueWrites != null) {
+            try {
+                return await(queueWrites.join(userId, libraryId, bookId, now));
+            } finally {
+                metrics.record(BackendMetrics.Operation.QUEUE, start);
+            }
+        }
+        Map<String, Date> myMap = Collections.singletonMap(userId, now);
+        BoundStatement bs = bindBook(QUEUE_BOOK, myMap, libraryId, bookId);
+        ResultSet rs;
+        rs = writeLoan(bs, loanRows.queuedStatement(userId, libraryId, bookId, now));
+        metrics.record(BackendMetrics.Operation.QUEUE, start);
+        indexQueued(userId, libraryId, bookId, now, null);
+        updateCache(libraryId, bookId, book -> book.withQueued(userId, now));
+        return rs;
+    }
+
+    protected ResultSet dequeueBookCassandra(String userId, String libraryId, String bookId, Date queuedSince) throws BackendException {
+        Set<String> mySet = Collections.singleton(userId);
+        Date now = new Date();
+        Date due = dueDate(now);
+        BoundStatement bs = bindBook(DEQUEUE_BOOK, mySet, Collections.singletonMap(userId, now), Collections.singletonMap(userId, due), libraryId, bookId, userId, queuedSince);
+        long start = System.nanoTime();
+        ResultSet rs;
+        rs = writeLoan(bs, loanRows.dequeueStatement(userId, libraryId, bookId, now, due, queuedSince));
+        metrics.record(BackendMetrics.Operation.DEQUEUE, start);
+        if (rs.wasApplied()) indexLoan(userId, libraryId, bookId, now, due);
+        updateCacheIfApplied(rs, libraryId, bookId, book -> book.withRented(userId, now, due));
+        return rs;
+    }
+
+    protected ResultSet unrentBookCassandra(String userId, String libraryId, String bookId, Date dueDate) throws BackendException {
+        Set<String> mySet = Collections.singleton(userId);
+        Date now = new Date();
+        Map<String, Date> myMap = Collections.singletonMap(userId, now);
+        BoundStatement bs = bindBook(UNRENT_BOOK.get(), myMap, mySet, mySet, libraryId, bookId, userId);
+        ResultSet rs;
+        rs = writeLoan(bs, loanRows.unrentStatement(userId, libraryId, bookId, now));
+        if (rs.wasApplied()) indexQueued(userId, libraryId, bookId, now, dueDate);
+        updateCacheIfApplied(rs, libraryId, bookId, book -> book.withQueued(userId, now));
+        return rs;
+    }
+
+    protected BoundStatement indexLoanStatement(String userId, String libraryId, String bookId, Date dueDate) {
+        long ttl = TimeUnit.MILLISECONDS.toSeconds(dueDate.getTime() - System.currentTimeMillis()) + TimeUnit.DAYS.toSeconds(overdueRetentionDays);
+        return INDEX_LOAN.bind(libraryId, bucketOf(dueDate), dueDate, bookId, userId, (int) Math.max(1, ttl));
+    }
+
+    protected BoundStatement unindexLoanStatement(String userId, String libraryId, String bookId, Date dueDate) {
+        return UNINDEX_LOAN.bind(libraryId, bucketOf(dueDate), dueDate, bookId, userId);
+    }
+
+    /*
+     * The loan indexes (loans_by_due_day and loans_by_user) live in other partitions than the
+     * library_data row, so they are written after it, both at once.
+     */
+    protected void indexLoan(String userId, String libraryId, String bookId, Date since, Date dueDate) throws BackendException {
+        await(indexLoanAsync(userId, libraryId, bookId, since, dueDate));
+    }
+
+    /*
+     * previousDueDate is set when a renter goes back to the queue and their due date entry must go.
+     */
+    protected void indexQueued(String userId, String libraryId, String bookId, Date since, Date previousDueDate) throws BackendException {
+        await(indexQueuedAsync(userId, libraryId, bookId, since, previousDueDate));
+    }
+
+    /*
+     * A null dueDate means the user held no copy (was only queued), so there is no due date entry.
+     */
+    protected void unindexLoan(String userId, String libraryId, String bookId, Date dueDate) throws BackendException {
+        await(unindexLoanAsync(userId, libraryId, bookId, dueDate));
+    }
+
+    <T> T await(CompletableFuture<T> future) throws BackendException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof BackendException) {
+                throw (BackendException) cause;
+            }
+            throw new BackendException("Could not perform a query. " + cause.getMessage() + ".", e);
+        }
+    }
+
+    /*
+     * Writes one loan change to the layouts loanLayout writes to and returns the result from the one
+     * reads come from. In DUAL the row write follows the map write, and only if that was applied.
+     */
+    protected ResultSet writeLoan(Statement mapWrite, Statement rowWrite) throws BackendException {
+        LoanLayout layout = loanLayout;
+        if (!layout.writesRows()) return executeQuery(mapWrite);
+        if (!layout.writesMaps()) return executeQuery(rowWrite);
+        ResultSet rs = executeQuery(mapWrite);
+        if (rs.wasApplied()) executeQuery(rowWrite);
+        return rs;
+    }
+
+    protected ResultSet executeQuery(Statement bs) throws BackendException {
+        applyConsistency(bs);
+        ResultSet rs;
+        for (int attempt = 0; ; attempt++) {
+            roundTrips.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                rs = session.execute(bs);
+                if (!rs.wasApplied()) metrics.casNotApplied();
+                return rs;
+            } catch (Exception e) {
+                if (!retryPolicy.isRetryable(bs, e, attempt)) {
+                    if (e instanceof WriteTimeoutException) throw (WriteTimeoutException) e;
+                    throw new BackendException("Could not perform a query. " + e.getMessage() + ".", e);
+                }
+            } finally {
+                metrics.recordStatement(bs, start);
+            }
+            try {
+                Thread.sleep(retryPolicy.backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BackendException("Interrupted while waiting to retry a query.", e);
+            }
+        }
+    }
+
+    /*
+     * Batches are single-partition and take the kind of their first statement; statements that are
+     * not bound from a prepared statement keep the driver default.
+     */
+    private void applyConsistency(Statement statement) {
+        Statement first = statement;
+        if (statement instanceof BatchStatement) {
+            Iterator<Statement> statements = ((BatchStatement) statement).getStatements().iterator();
+            if (!statements.hasNext()) return;
+            first = statements.next();
+        }
+        if (!(first instanceof BoundStatement)) return;
+        ConsistencyProfile.Kind kind = statementKinds.get(((BoundStatement) first).preparedStatement());
+        if (kind != null) {
+            consistency.apply(statement, kind);
+        }
+    }
+
+    //----------------------------ASYNC CASSANDRA QUERY EXECUTION--------------------------------------------------------------------
+
+    public CompletableFuture<ResultSet> upsertBookCassandraAsync(String libraryId, String bookId, int bookCount) {
+        BoundStatement bs = bindBook(INSERT_BOOK, libraryId, bookId, bookCount);
+        CompletableFuture<ResultSet> write = executeQueryAsync(bs);
+        if (loanLayout.writesRows()) {
+            write = write.thenCombine(executeQueryAsync(loanRows.bookCountStatement(libraryId, bookId, bookCount)), (rs, ignored) -> rs);
+        }
+        return write.whenComplete((rs, e) -> invalidateCache(libraryId, bookId));
+    }
+
+    /*
+     * One IN read, or one per shard holding any of the books for a sharded library.
+     */
+    protected CompletableFuture<List<Row>> selectBooksCassandraAsync(String libraryId, List<String> bookIds) {
+        int shards = shardsOf(libraryId);
+        if (shards == 0) {
+            return executeQueryAsync(SELECT_BOOKS_IN.bind(libraryId, bookIds)).thenCompose(rs -> fetchAllAsync(rs, new ArrayList<>()));
+        }
+        Map<Integer, List<String>> byShard = new HashMap<>();
+        for (String bookId : bookIds) {
+            byShard.computeIfAbsent(shardOf(bookId, shards), key -> new ArrayList<>()).add(bookId);
+        }
+        PreparedStatement statement = sharding.shardedOf(SELECT_BOOKS_IN);
+        List<CompletableFuture<List<Row>>> reads = new ArrayList<>(byShard.size());
+        for (Map.Entry<Integer, List<String>> shard : byShard.entrySet()) {
+            reads.add(executeQueryAsync(statement.bind(libraryId, shard.getKey(), shard.getValue()))
+                    .thenCompose(rs -> fetchAllAsync(rs, new ArrayList<>())));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<Row> rows = new ArrayList<>();
+            for (CompletableFuture<List<Row>> read : reads) {
+                rows.addAll(read.join());
+            }
+            return rows;
+        });
+    }
+
+    protected CompletableFuture<ResultSet> selectBookCassandraAsync(String libraryId, String bookId, ConsistencyLevel level) {
+        BoundStatement bs = bindBook(SELECT_BOOK, libraryId, bookId);
+        bs.setConsistencyLevel(level);
+        return executeQueryAsync(bs);
+    }
+
+    protected CompletableFuture<Book> readBookAsync(String libraryId, String bookId) {
+        return readBookAsync(libraryId, bookId, null);
+    }
+
+    protected CompletableFuture<Book> readBookAsync(String libraryId, String bookId, ConsistencyLevel level) {
+        if (!loanLayout.readsRows()) {
+            return selectBookCassandraAsync(libraryId, bookId, level).thenApply(rs -> Book.from(rs.one()));
+        }
+        return loanRows.readAsync(libraryId, bookId, level);
+    }
+
+    /*
+     * The books found, keyed by book_id.
+     */
+    protected CompletableFuture<Map<String, Book>> readBooksAsync(String libraryId, List<String> bookIds) {
+        if (!loanLayout.readsRows()) {
+            return selectBooksCassandraAsync(libraryId, bookIds).thenApply(rows -> {
+                Map<String, Book> books = new HashMap<>();
+                for (Row row : rows) {
+                    books.put(row.getString("book_id"), Book.from(row));
+                }
+                return books;
+            });
+        }
+        // One partition per book, so no serial read.
+        return loanRows.readAllAsync(libraryId, bookIds, consistency.getMultiPartitionLevel(ConsistencyProfile.Kind.READ));
+    }
+
+    /*
+     * Pages of a book_loans read are fetched with fetchMoreResults, since iterating past the first page
+     * would block the driver's I/O thread the continuation runs on.
+     */
+    CompletableFuture<List<Row>> fetchAllAsync(ResultSet rs, List<Row> rows) {
+        for (int available = rs.getAvailableWithoutFetching(); available > 0; available--) {
+            rows.add(rs.one());
+        }
+        if (rs.isFullyFetched()) {
+            return CompletableFuture.completedFuture(rows);
+        }
+        CompletableFuture<List<Row>> result = new CompletableFuture<>();
+        Futures.addCallback(rs.fetchMoreResults(), new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet next) {
+                fetchAllAsync(next, rows).whenComplete((all, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.complete(all);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t instanceof Exception
+                        ? new BackendException("Could not fetch the next page. " + t.getMessage() + ".", (Exception) t)
+                        : t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    public CompletableFuture<ResultSet> rentBookCassandraAsync(String userId, String libraryId, String bookId) {
+        Date now = new Date();
+        Date due = dueDate(now);
+        BoundStatement bs = bindBook(RENT_BOOK, Collections.singletonMap(userId, now), Collections.singletonMap(userId, due), libraryId, bookId);
+        return writeLoanAsync(bs, loanRows.rentedStatement(userId, libraryId, bookId, now, due)).thenCompose(rs -> {
+            updateCache(libraryId, bookId, book -> book.withRented(userId, now, due));
+            return indexLoanAsync(userId, libraryId, bookId, now, due).thenApply(ignored -> rs);
+        });
+    }
+
+    protected CompletableFuture<ResultSet> returnBookCassandraAsync(String userId, String libraryId, String bookId, Date dueDate) {
+        QueueWriteBuffer queueWrites = this.queueWrites;
+        if (queueWrites != null && dueDate == null) {
+            return queueWrites.leave(userId, libraryId, bookId);
+        }
+        Set<String> mySet = Collections.singleton(userId);
+        BoundStatement bs = bindBook(RETURN_BOOK, mySet, mySet, mySet, libraryId, bookId);
+        return writeLoanAsync(bs, loanRows.deleteStatement(userId, libraryId, bookId)).thenCompose(rs -> {
+            updateCache(libraryId, bookId, book -> book.withoutUser(userId));
+            return unindexLoanAsync(userId, libraryId, bookId, dueDate).thenApply(ignored -> rs);
+        });
+    }
+
+    protected CompletableFuture<ResultSet> queueBookCassandraAsync(String userId, String libraryId, String bookId) {
+        Date now = new Date();
+        long start = System.nanoTime();
+        QueueWriteBuffer queueWrites = this.queueWrites;
+        if (queueWrites != null) {
+            return queueWrites.join(userId, libraryId, bookId, now)
+                    .whenComplete((rs, e) -> metrics.record(BackendMetrics.Operation.QUEUE, start));
+        }
+        Map<String, Date> myMap = Collections.singletonMap(userId, now);
+        BoundStatement bs = bindBook(QUEUE_BOOK, myMap, libraryId, bookId);
+        return writeLoanAsync(bs, loanRows.queuedStatement(userId, libraryId, bookId, now)).thenCompose(rs -> {
+            updateCache(libraryId, bookId, book -> book.withQueued(userId, now));
+            return indexQueuedAsync(userId, libraryId, bookId, now, null).thenApply(ignored -> rs);
+        }).whenComplete((rs, e) -> metrics.record(BackendMetrics.Operation.QUEUE, start));
+    }
+
+    protected CompletableFuture<ResultSet> dequeueBookCassandraAsync(String userId, String libraryId, String bookId, Date queuedSince) {
+        Set<String> mySet = Collections.singleton(userId);
+        Date now = new Date();
+        Date due = dueDate(now);
+        BoundStatement bs = bindBook(DEQUEUE_BOOK, mySet, Collections.singletonMap(userId, now), Collections.singletonMap(userId, due), libraryId, bookId, userId, queuedSince);
+        long start = System.nanoTime();
+        return writeLoanAsync(bs, loanRows.dequeueStatement(userId, libraryId, bookId, now, due, queuedSince)).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withRented(userId, now, due));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return indexLoanAsync(userId, libraryId, bookId, now, due).thenApply(ignored -> rs);
+        }).whenComplete((rs, e) -> metrics.record(BackendMetrics.Operation.DEQUEUE, start));
+    }
+
+    protected CompletableFuture<ResultSet> unrentBookCassandraAsync(String userId, String libraryId, String bookId, Date dueDate) {
+        Set<String> mySet = Collections.singleton(userId);
+        Date now = new Date();
+        Map<String, Date> myMap = Collections.singletonMap(userId, now);
+        // Not get(): with fast_start the first use prepares both statements, and this may run on an I/O thread.
+        return UNRENT_BOOK.getAsync().thenCombine(loanRows.unrentStatementAsync(userId, libraryId, bookId, now), (unrentBook, unrentLoanRow) -> writeLoanAsync(
+                bindBook(unrentBook, myMap, mySet, mySet, libraryId, bookId, userId), unrentLoanRow)).thenCompose(write -> write).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withQueued(userId, now));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return indexQueuedAsync(userId, libraryId, bookId, now, dueDate).thenApply(ignored -> rs);
+        });
+    }
+
+    protected CompletableFuture<ResultSet> claimBookCassandraAsync(String userId, String libraryId, String bookId, int bookCount, int rentedCount, Integer expectedCount) {
+        Date now = new Date();
+        Date due = dueDate(now);
+        BoundStatement bs = bindBook(CLAIM_BOOK, rentedCount, Collections.singletonMap(userId, now), Collections.singletonMap(userId, due), libraryId, bookId, bookCount, expectedCount);
+        return writeLoanAsync(bs, loanRows.rentedStatement(userId, libraryId, bookId, now, due)).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withRented(userId, now, due).withRentedCount(rentedCount));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return indexLoanAsync(userId, libraryId, bookId, now, due).thenApply(ignored -> rs);
+        });
+    }
+
+    protected CompletableFuture<ResultSet> queueBookIfFullCassandraAsync(String userId, String libraryId, String bookId, Integer expectedCount) {
+        Date now = new Date();
+        Map<String, Date> myMap = Collections.singletonMap(userId, now);
+        BoundStatement bs = bindBook(QUEUE_BOOK_IF_FULL, myMap, libraryId, bookId, expectedCount);
+        long start = System.nanoTime();
+        return writeLoanAsync(bs, loanRows.queuedStatement(userId, libraryId, bookId, now)).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withQueued(userId, now));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return indexQueuedAsync(userId, libraryId, bookId, now, null).thenApply(ignored -> rs);
+        }).whenComplete((rs, e) -> metrics.record(BackendMetrics.Operation.QUEUE, start));
+    }
+
+    protected CompletableFuture<ResultSet> releaseBookCassandraAsync(String userId, String libraryId, String bookId, int rentedCount, Integer expectedCount, Map<String, Date> expectedQueue, Date dueDate) {
+        Set<String> mySet = Collections.singleton(userId);
+        BoundStatement bs = bindBook(RELEASE_BOOK, rentedCount, mySet, mySet, libraryId, bookId, expectedCount, expectedQueue.isEmpty() ? null : expectedQueue);
+        return writeLoanAsync(bs, loanRows.deleteStatement(userId, libraryId, bookId)).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withoutUser(userId).withRentedCount(rentedCount));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return unindexLoanAsync(userId, libraryId, bookId, dueDate).thenApply(ignored -> rs);
+        });
+    }
+
+    protected CompletableFuture<ResultSet> handOverBookCassandraAsync(String userId, String nextUserId, String libraryId, String bookId, Integer expectedCount, Map<String, Date> expectedQueue, Date dueDate) {
+        Set<String> mySet = Collections.singleton(userId);
+        Set<String> nextSet = Collections.singleton(nextUserId);
+        Date now = new Date();
+        Date due = dueDate(now);
+        BoundStatement bs = bindBook(HAND_OVER_BOOK, mySet, mySet, nextSet, nextUserId, now, nextUserId, due, libraryId, bookId, expectedCount, expectedQueue);
+        BatchStatement rows = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        rows.add(loanRows.deleteStatement(userId, libraryId, bookId));
+        rows.add(loanRows.rentedStatement(nextUserId, libraryId, bookId, now, due));
+        return writeLoanAsync(bs, rows).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withoutUser(userId).withRented(nextUserId, now, due));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return CompletableFuture.allOf(unindexLoanAsync(userId, libraryId, bookId, dueDate),
+                    indexLoanAsync(nextUserId, libraryId, bookId, now, due)).thenApply(ignored -> rs);
+        });
+    }
+
+    /*
+     * Leaves the queue only if the user still waits: a plain LEAVE_QUEUE that lost the race to a hand
+     * over would leave rented_date and rented_count apart.
+     */
+    protected CompletableFuture<ResultSet> leaveQueueCassandraAsync(String userId, String libraryId, String bookId) {
+        Set<String> mySet = Collections.singleton(userId);
+        BoundStatement bs = bindBook(LEAVE_QUEUE_IF_QUEUED, mySet, libraryId, bookId, userId);
+        return writeLoanAsync(bs, loanRows.deleteStatement(userId, libraryId, bookId)).thenCompose(rs -> {
+            updateCacheIfApplied(rs, libraryId, bookId, book -> book.withoutUser(userId));
+            if (!rs.wasApplied()) return CompletableFuture.completedFuture(rs);
+            return unindexLoanAsync(userId, libraryId, bookId, null).thenApply(ignored -> rs);
+        });
+    }
+
+    /*
+     * Applies the moves to the row and sets rented_count to the new size of rented_date, in one write
+     * conditioned on the book_count, rented_count, queue and rented_date they were planned from.
+     * Returns the repaired book, or null when the row changed since it was read.
+     */
+    protected CompletableFuture<Book> repairBookCassandraAsync(Book book, Moves moves) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+        Date now = new Date();
+        Date due = dueDate(now);
+        Book repaired = repairedBook(book, moves, now, due);
+        List<UserLoan> loans = new ArrayList<>();
+        for (String userId : moves.toQueue) {
+            loans.add(new UserLoan(userId, libraryId, bookId, UserLoan.QUEUED, now, null));
+        }
+        for (String userId : moves.fromQueue) {
+            loans.add(new UserLoan(userId, libraryId, bookId, UserLoan.RENTED, now, due));
+        }
+        return REPAIR_BOOK.getAsync().thenCompose(statement -> {
+            BoundStatement bs = bindBook(statement, repaired.getRentedCount(), repaired.getQueue(), repaired.getRented(), repaired.getDue(), libraryId, bookId,
+                    book.getBookCount(), book.getRentedCount(), book.getQueue().isEmpty() ? null : book.getQueue(), book.getRented().isEmpty() ? null : book.getRented());
+            return loans.isEmpty() ? executeQueryAsync(bs) : writeLoanAsync(bs, loanRows.loansStatement(loans));
+        }).thenCompose(rs -> {
+            if (!rs.wasApplied()) {
+                invalidateCache(libraryId, bookId);
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<?>[] indexes = new CompletableFuture<?>[loans.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                UserLoan loan = loans.get(i);
+                indexes[i] = loan.isRented()
+                        ? indexLoanAsync(loan.getUserId(), libraryId, bookId, now, due)
+                        : indexQueuedAsync(loan.getUserId(), libraryId, bookId, now, book.getDueDate(loan.getUserId()));
+            }
+            return CompletableFuture.allOf(indexes).thenApply(ignored -> repaired);
+        });
+    }
+
+    /*
+     * The book after the moves of planMoves, made at now, with rented_count set to match.
+     */
+    protected static Book repairedBook(Book book, Moves moves, Date now, Date dueDate) {
+        Book repaired = book;
+        for (String userId : moves.toQueue) {
+            repaired = repaired.withQueued(userId, now);
+        }
+        for (String userId : moves.fromQueue) {
+            repaired = repaired.withRented(userId, now, dueDate);
+        }
+        return repaired.withRentedCount(repaired.getRented().size());
+    }
+
+    protected CompletableFuture<Void> indexLoanAsync(String userId, String libraryId, String bookId, Date since, Date dueDate) {
+        return CompletableFuture.allOf(
+                executeQueryAsync(indexLoanStatement(userId, libraryId, bookId, dueDate)),
+                upsertUserLoanAsync(new UserLoan(userId, libraryId, bookId, UserLoan.RENTED, since, dueDate)));
+    }
+
+    protected CompletableFuture<Void> indexQueuedAsync(String userId, String libraryId, String bookId, Date since, Date previousDueDate) {
+        CompletableFuture<ResultSet> userLoan = upsertUserLoanAsync(new UserLoan(userId, libraryId, bookId, UserLoan.QUEUED, since, null));
+        if (previousDueDate == null) return CompletableFuture.allOf(userLoan);
+        return CompletableFuture.allOf(userLoan, executeQueryAsync(unindexLoanStatement(userId, libraryId, bookId, previousDueDate)));
+    }
+
+    protected CompletableFuture<Void> unindexLoanAsync(String userId, String libraryId, String bookId, Date dueDate) {
+        CompletableFuture<ResultSet> userLoan = executeQueryAsync(DELETE_USER_LOAN.bind(userId, libraryId, bookId));
+        if (dueDate == null) return CompletableFuture.allOf(userLoan);
+        return CompletableFuture.allOf(userLoan, executeQueryAsync(unindexLoanStatement(userId, libraryId, bookId, dueDate)));
+    }
+
+    /*
+     * Index changes of a bulk call: one unlogged batch per loans_by_due_day partition and one
+     * statement per user, all in parallel.
+     */
+    protected CompletableFuture<Void> indexLoansAsync(List<UserLoan> loans) {
+        Map<com.datastax.driver.core.LocalDate, BatchStatement> dueBatches = new HashMap<>();
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        for (UserLoan loan : loans) {
+            if (loan.getDueDate() != null) {
+                dueBatches.computeIfAbsent(bucketOf(loan.getDueDate()), key -> new BatchStatement(BatchStatement.Type.UNLOGGED))
+                        .add(loan.isRented()
+                                ? indexLoanStatement(loan.getUserId(), loan.getLibraryId(), loan.getBookId(), loan.getDueDate())
+                                : unindexLoanStatement(loan.getUserId(), loan.getLibraryId(), loan.getBookId(), loan.getDueDate()));
+            }
+            writes.add(loan.getStatus() == UserLoan.REMOVED
+                    ? executeQueryAsync(DELETE_USER_LOAN.bind(loan.getUserId(), loan.getLibraryId(), loan.getBookId()))
+                    : upsertUserLoanAsync(loan));
+        }
+        for (BatchStatement batch : dueBatches.values()) {
+            writes.add(executeQueryAsync(batch));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    //----------------------------QUEUE WRITE-BEHIND--------------------------------------------------------------------------
+
+    /*
+     * One flush of QueueWriteBuffer: joins and leaves of one book as a single-partition unlogged batch,
+     * which the replica applies as one mutation. The two sets never share a user.
+     */
+    protected CompletableFuture<ResultSet> writeQueueChangesAsync(String libraryId, String bookId, Map<String, Date> joins, Set<String> leaves) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        List<UserLoan> loans = new ArrayList<>();
+        if (!joins.isEmpty()) {
+            batch.add(bindBook(QUEUE_BOOK, joins, libraryId, bookId));
+            for (Map.Entry<String, Date> join : joins.entrySet()) {
+                loans.add(new UserLoan(join.getKey(), libraryId, bookId, UserLoan.QUEUED, join.getValue(), null));
+            }
+        }
+        if (!leaves.isEmpty()) {
+            batch.add(bindBook(LEAVE_QUEUE, leaves, libraryId, bookId));
+            for (String userId : leaves) {
+                loans.add(new UserLoan(userId, libraryId, bookId, UserLoan.REMOVED, null, null));
+            }
+        }
+        return writeLoanAsync(batch.size() == 1 ? batch.getStatements().iterator().next() : batch, loanRows.loansStatement(loans)).thenCompose(rs -> {
+            for (Map.Entry<String, Date> join : joins.entrySet()) {
+                updateCache(libraryId, bookId, book -> book.withQueued(join.getKey(), join.getValue()));
+            }
+            for (String userId : leaves) {
+                updateCache(libraryId, bookId, book -> book.withoutUser(userId));
+            }
+            return indexLoansAsync(loans).thenApply(ignored -> rs);
+        });
+    }
+
+    protected void flushQueue(String libraryId, String bookId) throws BackendException {
+        await(flushQueueAsync(libraryId, bookId));
+    }
+
+    protected CompletableFuture<Void> flushQueueAsync(String libraryId, String bookId) {
+        QueueWriteBuffer queueWrites = this.queueWrites;
+        return queueWrites == null ? CompletableFuture.completedFuture(null) : queueWrites.flush(libraryId, bookId);
+    }
+
+    /*
+     * A queued user leaving before their join was written: both changes are dropped.
+     */
+    private boolean cancelQueuedJoin(String userId, String libraryId, String bookId) {
+        QueueWriteBuffer queueWrites = this.queueWrites;
+        return queueWrites != null && queueWrites.cancelJoin(userId, libraryId, bookId);
+    }
+
+    protected CompletableFuture<ResultSet> writeLoanAsync(Statement mapWrite, Statement rowWrite) {
+        LoanLayout layout = loanLayout;
+        if (!layout.writesRows()) return executeQueryAsync(mapWrite);
+        if (!layout.writesMaps()) return executeQueryAsync(rowWrite);
+        return executeQueryAsync(mapWrite).thenCompose(rs -> rs.wasApplied()
+                ? executeQueryAsync(rowWrite).thenApply(ignored -> rs)
+                : CompletableFuture.completedFuture(rs));
+    }
+
+    protected CompletableFuture<ResultSet> executeQueryAsync(Statement bs) {
+        applyConsistency(bs);
+        return executeQueryAsync(bs, 0);
+    }
+
+    private CompletableFuture<ResultSet> executeQueryAsync(Statement bs, int attempt) {
+        CompletableFuture<ResultSet> result = new CompletableFuture<>();
+        ResultSetFuture future;
+        roundTrips.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            future = session.executeAsync(bs);
+        } catch (Exception e) {
+            result.completeExceptionally(new BackendException("Could not perform a query. " + e.getMessage() + ".", e));
+            return result;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                metrics.recordStatement(bs, start);
+                if (!rs.wasApplied()) metrics.casNotApplied();
+                result.complete(rs);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                metrics.recordStatement(bs, start);
+                if (retryPolicy.isRetryable(bs, t, attempt)) {
+                    RETRY_SCHEDULER.schedule(() -> executeQueryAsync(bs, attempt + 1).whenComplete((rs, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(e);
+                        } else {
+                            result.complete(rs);
+                        }
+                    }), retryPolicy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+                } else if (t instanceof WriteTimeoutException || !(t instanceof Exception)) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.completeExceptionally(new BackendException("Could not perform a query. " + t.getMessage() + ".", (Exception) t));
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    //----------------------------LIBRARY SHARDING--------------------------------------------------------------------------
+
+    /*
+     * Libraries listed in sharded_libraries are kept in library_data_sharded, see LibraryShards.
+     */
+
+    public static int shardOf(String bookId, int shards) {
+        return LibraryShards.shardOf(bookId, shards);
+    }
+
+    /*
+     * 0 for a library kept in library_data.
+     */
+    public int shardsOf(String libraryId) {
+        return sharding.shardsOf(libraryId);
+    }
+
+    /*
+     * Binds a statement on library_data whose values include "library_id=? AND book_id" (or start
+     * with them, for INSERT_BOOK), switching to its sharded copy for a sharded library.
+     */
+    private BoundStatement bindBook(PreparedStatement statement, Object... values) {
+        return sharding.bind(statement, values);
+    }
+
+    /*
+     * Prepared on first use, so deployments without sharded libraries never touch library_data_sharded.
+     */
+    void prepareShardedStatements() throws BackendException {
+        Map<String, PreparedStatement> statements = new LinkedHashMap<>();
+        statements.put("SELECT_BOOK", SELECT_BOOK);
+        statements.put("SELECT_BOOKS_IN", SELECT_BOOKS_IN);
+        statements.put("INSERT_BOOK", INSERT_BOOK);
+        statements.put("RENT_BOOK", RENT_BOOK);
+        statements.put("RETURN_BOOK", RETURN_BOOK);
+        statements.put("QUEUE_BOOK", QUEUE_BOOK);
+        statements.put("LEAVE_QUEUE", LEAVE_QUEUE);
+        statements.put("LEAVE_QUEUE_IF_QUEUED", LEAVE_QUEUE_IF_QUEUED);
+        statements.put("DEQUEUE_BOOK", DEQUEUE_BOOK);
+        statements.put("UNRENT_BOOK", UNRENT_BOOK.get());
+        statements.put("CLAIM_BOOK", CLAIM_BOOK);
+        statements.put("QUEUE_BOOK_IF_FULL", QUEUE_BOOK_IF_FULL);
+        statements.put("RELEASE_BOOK", RELEASE_BOOK);
+        statements.put("HAND_OVER_BOOK", HAND_OVER_BOOK);
+        statements.put("REPAIR_BOOK", REPAIR_BOOK.get());
+        sharding.prepare(statements, INSERT_BOOK);
+    }
+
+    /*
+     * Moves a full library_data(_sharded) row from its place under fromShards to its place under
+     * toShards (0 meaning library_data) and completes with whether it had to move. An interrupted
+     * move leaves both copies, never none; running it again finishes the move. See
+     * LibraryShardMigration.
+     */
+    protected CompletableFuture<Boolean> reshardBookAsync(Row row, int fromShards, int toShards) {
+        Book book = Book.from(row);
+        return sharding.moveAsync(book, fromShards, toShards).thenApply(moved -> {
+            if (moved) invalidateCache(book.getLibraryId(), book.getBookId());
+            return moved;
+        });
+    }
+
+    //----------------------------QUEUE PROMOTION--------------------------------------------------------------------------
+
+    /*
+     * With Promotion.WORKER, clients in VALIDATE mode publish a promotion_events row instead of
+     * dequeueing: after every return of a copy, and whenever their validate() read finds waiting users
+     * next to a free copy. A queue join needs no event of its own: the joiner's validate() read comes
+     * after its write, so either it sees the free copy and publishes, or the return is later and does.
+     *
+     * Events of a book always go to the same of promotionRanges partitions, and every partition is
+     * owned by one PromotionWorker at a time; the statements and their I/O are in PromotionStore.
+     *
+     * An event is written after the change it follows. A client that dies in between leaves the queue
+     * waiting until the next validate() of the book, e.g. the next status check, publishes again.
+     */
+
+    protected boolean promotesOnClient() {
+        return promotion == Promotion.CLIENT || rentMode == RentMode.LWT;
+    }
+
+    LoanRows getLoanRows() {
+        return loanRows;
+    }
+
+    PromotionStore getPromotionStore() {
+        return promotions;
+    }
+
+    protected void publishPromotion(String libraryId, String bookId) throws BackendException {
+        promotions.publish(libraryId, bookId, promotionRanges);
+    }
+
+    protected CompletableFuture<ResultSet> publishPromotionAsync(String libraryId, String bookId) {
+        return promotions.publishAsync(libraryId, bookId, promotionRanges);
+    }
+
+    /*
+     * The validate() loop with dequeues, whatever this session's Promotion; run by PromotionWorker.
+     */
+    protected CompletableFuture<Book> promoteBookAsync(String libraryId, String bookId) {
+        return validateAsync(libraryId, bookId, true);
+    }
+
+    //------------------TERMINAL INPUTS-------------------------------------------------------------------------------------------------
+
+    public String getUserFromTerminal() {
+        System.out.println("Enter user id: ");
+        String userId = readLine();
+        return userId;
+    }
+
+    public String getLibraryFromTerminal() {
+        System.out.println("Enter library id: ");
+        String LibraryId = readLine();
+        return LibraryId;
+    }
+
+    public String getBookFromTerminal() {
+        System.out.println("Enter book id: ");
+        String bookId = readLine();
+        return bookId;
+    }
+
+    protected int getBookCountFromTerminal() {
+        System.out.println("Enter book count: ");
+        terminalLock.lock();
+        try {
+            return terminal().nextInt();
+        } finally {
+            terminalLock.unlock();
+        }
+    }
+
+    private String readLine() {
+        terminalLock.lock();
+        try {
+            return terminal().nextLine();
+        } finally {
+            terminalLock.unlock();
+        }
+    }
+
+    private Scanner terminal() {
+        if (scanner == null) {
+            scanner = new Scanner(System.in);
+        }
+        return scanner;
     }
 
 }
@@ -0,0 +1,177 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Row;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Immutable, decoded book: either a library_data row (maps layout) or the book_loans partition of one
+ * book (rows layout, see LoanLayout). Changes produce a new instance, so a Book can be shared between
+ * threads (e.g. through BookCache) without copying.
+ *
+ * A Book read from library_data decodes each map on first use only, so a decision that never looks at
+ * the queue does not pay for decoding it. Decoding twice from the row is harmless.
+ */
+public class Book {
+
+    private final String libraryId;
+    private final String bookId;
+    private final int bookCount;
+    private final Integer rentedCount;
+    private final Row row;
+    private volatile Map<String, Date> queue;
+    private volatile Map<String, Date> rented;
+    private volatile Map<String, Date> due;
+
+    public Book(String libraryId, String bookId, int bookCount, Integer rentedCount,
+                Map<String, Date> queue, Map<String, Date> rented, Map<String, Date> due) {
+        this.libraryId = libraryId;
+        this.bookId = bookId;
+        this.bookCount = bookCount;
+        this.rentedCount = rentedCount;
+        this.row = null;
+        this.queue = Collections.unmodifiableMap(queue);
+        this.rented = Collections.unmodifiableMap(rented);
+        this.due = Collections.unmodifiableMap(due);
+    }
+
+    private Book(Row row) {
+        this.libraryId = row.getString("library_id");
+        this.bookId = row.getString("book_id");
+        this.bookCount = row.getInt("book_count");
+        this.rentedCount = row.isNull("rented_count") ? null : row.getInt("rented_count");
+        this.row = row;
+    }
+
+    /*
+     * A library_data row read with all columns; null stays null.
+     */
+    public static Book from(Row row) {
+        return row == null ? null : new Book(row);
+    }
+
+    /*
+     * The rows of one book_loans partition: the static book_count and one row per renter (status 1)
+     * or queued user (status 2). Returns null for a book that has no partition.
+     */
+    public static Book fromLoanRows(String libraryId, String bookId, Iterable<Row> rows) {
+        Map<String, Date> queue = new HashMap<>();
+        Map<String, Date> rented = new HashMap<>();
+        Map<String, Date> due = new HashMap<>();
+        Integer bookCount = null;
+        for (Row row : rows) {
+            if (bookCount == null) {
+                bookCount = row.isNull("book_count") ? 0 : row.getInt("book_count");
+            }
+            // A renter moved back to the queue with a TTL leaves a row without cells once it expires.
+            if (row.isNull("user_id") || row.isNull("status")) continue;
+            String userId = row.getString("user_id");
+            if (row.getInt("status") == UserLoan.RENTED) {
+                rented.put(userId, row.getTimestamp("since"));
+                due.put(userId, row.getTimestamp("due_date"));
+            } else {
+                queue.put(userId, row.getTimestamp("since"));
+            }
+        }
+        if (bookCount == null) return null;
+        return new Book(libraryId, bookId, bookCount, null, queue, rented, due);
+    }
+
+    public String getLibraryId() {
+        return libraryId;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public int getBookCount() {
+        return bookCount;
+    }
+
+    public Integer getRentedCount() {
+        return rentedCount;
+    }
+
+    public Map<String, Date> getQueue() {
+        Map<String, Date> decoded = queue;
+        if (decoded == null) {
+            decoded = Collections.unmodifiableMap(row.getMap("queue", String.class, Date.class));
+            queue = decoded;
+        }
+        return decoded;
+    }
+
+    public Map<String, Date> getRented() {
+        Map<String, Date> decoded = rented;
+        if (decoded == null) {
+            decoded = Collections.unmodifiableMap(row.getMap("rented_date", String.class, Date.class));
+            rented = decoded;
+        }
+        return decoded;
+    }
+
+    public Map<String, Date> getDue() {
+        Map<String, Date> decoded = due;
+        if (decoded == null) {
+            decoded = Collections.unmodifiableMap(row.getMap("due_date", String.class, Date.class));
+            due = decoded;
+        }
+        return decoded;
+    }
+
+    /*
+     * The user's due date, or null when the user holds no copy.
+     */
+    public Date getDueDate(String userId) {
+        return getDue().get(userId);
+    }
+
+    /*
+     * 0 - not rented, 1 - rented, 2 - in queue
+     */
+    public int status(String userId) {
+        if (getRented().containsKey(userId)) return 1;
+        if (getQueue().containsKey(userId)) return 2;
+        return 0;
+    }
+
+    //------------------CHANGES------------------------------------------------------------------------
+
+    public Book withRented(String userId, Date date, Date dueDate) {
+        Map<String, Date> newQueue = new HashMap<>(getQueue());
+        Map<String, Date> newRented = new HashMap<>(getRented());
+        Map<String, Date> newDue = new HashMap<>(getDue());
+        newQueue.remove(userId);
+        newRented.put(userId, date);
+        newDue.put(userId, dueDate);
+        return new Book(libraryId, bookId, bookCount, rentedCount, newQueue, newRented, newDue);
+    }
+
+    public Book withQueued(String userId, Date date) {
+        Map<String, Date> newQueue = new HashMap<>(getQueue());
+        Map<String, Date> newRented = new HashMap<>(getRented());
+        Map<String, Date> newDue = new HashMap<>(getDue());
+        newQueue.put(userId, date);
+        newRented.remove(userId);
+        newDue.remove(userId);
+        return new Book(libraryId, bookId, bookCount, rentedCount, newQueue, newRented, newDue);
+    }
+
+    public Book withoutUser(String userId) {
+        Map<String, Date> newQueue = new HashMap<>(getQueue());
+        Map<String, Date> newRented = new HashMap<>(getRented());
+        Map<String, Date> newDue = new HashMap<>(getDue());
+        newQueue.remove(userId);
+        newRented.remove(userId);
+        newDue.remove(userId);
+        return new Book(libraryId, bookId, bookCount, rentedCount, newQueue, newRented, newDue);
+    }
+
+    public Book withRentedCount(Integer rentedCount) {
+        return new Book(libraryId, bookId, bookCount, rentedCount, getQueue(), getRented(), getDue());
+    }
+}
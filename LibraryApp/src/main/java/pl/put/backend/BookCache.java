@@ -0,0 +1,75 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Row;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/*
+ * Bounded in-process cache of decoded books keyed by (library_id, book_id).
+ *
+ * Entries come from books read by validate() and are kept up to date with the results of this
+ * session's own writes. A conditional write that was not applied means somebody else changed the
+ * row, so the entry is dropped. Changes made by other clients are only picked up after the entry
+ * expires, which is why rent/return decisions never read from the cache.
+ */
+public class BookCache {
+
+    public enum Read {
+        CASSANDRA,
+        CACHED
+    }
+
+    private final Cache<String, Book> cache;
+
+    public BookCache(long maxSize, long ttlMillis) {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /*
+     * Returns null when cache_max_size is 0 (the default), i.e. caching is disabled.
+     */
+    public static BookCache fromProperties(Properties properties) {
+        long maxSize = Long.parseLong(properties.getProperty("cache_max_size", "0"));
+        if (maxSize <= 0) return null;
+        long ttlMillis = Long.parseLong(properties.getProperty("cache_ttl_ms", "500"));
+        return new BookCache(maxSize, ttlMillis);
+    }
+
+    public Book get(String libraryId, String bookId) {
+        return cache.getIfPresent(key(libraryId, bookId));
+    }
+
+    public Book put(Row row) {
+        return put(Book.from(row));
+    }
+
+    public Book put(Book book) {
+        cache.put(key(book.getLibraryId(), book.getBookId()), book);
+        return book;
+    }
+
+    public void update(String libraryId, String bookId, UnaryOperator<Book> change) {
+        cache.asMap().computeIfPresent(key(libraryId, bookId), (key, book) -> change.apply(book));
+    }
+
+    public void invalidate(String libraryId, String bookId) {
+        cache.invalidate(key(libraryId, bookId));
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static String key(String libraryId, String bookId) {
+        return libraryId + '\u0000' + bookId;
+    }
+}
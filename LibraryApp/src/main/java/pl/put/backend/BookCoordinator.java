@@ -0,0 +1,159 @@
+package pl.put.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Coalesces concurrent rents and returns of the same book within this process.
+ *
+ * Each (library_id, book_id) has a lane. The first request to arrive at an idle lane drains it,
+ * optionally after waiting windowMillis for more requests, and hands everything queued so far to the
+ * bulk API (BackendSession.rentBooksAsync/returnBooksAsync): one read, one combined decision, one
+ * write and one settle per batch instead of one validate() race per user. Requests that arrive while
+ * a batch is in flight form the next batch, so a hot title is never written by two batches of this
+ * session at once. Consecutive requests of the same kind share a batch; kinds are not reordered.
+ *
+ * In LWT mode the bulk API claims and releases every request with the conditional writes on
+ * rented_count, so a batch then saves the client round trips but not the per-user writes.
+ */
+public class BookCoordinator {
+
+    private enum Kind {
+        RENT,
+        RETURN
+    }
+
+    private static class Pending {
+        final Kind kind;
+        final RentRequest request;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        Pending(Kind kind, RentRequest request) {
+            this.kind = kind;
+            this.request = request;
+        }
+    }
+
+    private static class Lane {
+        final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+        boolean draining;
+    }
+
+    private final BackendSession session;
+
+    private final Executor windowExecutor;
+
+    /* keyed by List.of(libraryId, bookId), so ids containing '/' never share a lane */
+    private final Map<List<String>, Lane> lanes = new ConcurrentHashMap<>();
+
+    public BookCoordinator(BackendSession session, long windowMillis) {
+        this.session = session;
+        this.windowExecutor = windowMillis > 0
+                ? CompletableFuture.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS)
+                : Runnable::run;
+    }
+
+    /*
+     * Returns null when coalesce_requests is false (the default).
+     */
+    public static BookCoordinator fromProperties(BackendSession session, Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty("coalesce_requests", "false"))) return null;
+        return new BookCoordinator(session, Long.parseLong(properties.getProperty("coalesce_window_ms", "0")));
+    }
+
+    public CompletableFuture<Integer> rent(String userId, String libraryId, String bookId) {
+        return submit(new Pending(Kind.RENT, new RentRequest(userId, libraryId, bookId)));
+    }
+
+    public CompletableFuture<Integer> returnBook(String userId, String libraryId, String bookId) {
+        return submit(new Pending(Kind.RETURN, new RentRequest(userId, libraryId, bookId)));
+    }
+
+    /* Number of books with queued or in-flight requests. */
+    public int activeLanes() {
+        return lanes.size();
+    }
+
+    private CompletableFuture<Integer> submit(Pending pending) {
+        List<String> key = List.of(pending.request.getLibraryId(), pending.request.getBookId());
+        boolean[] start = new boolean[1];
+        // Lanes are created, joined and removed inside compute, so a request can never be added to a
+        // lane whose drainer has just decided to stop.
+        Lane lane = lanes.compute(key, (k, current) -> {
+            Lane l = current != null ? current : new Lane();
+            l.pending.add(pending);
+            if (!l.draining) {
+                l.draining = true;
+                start[0] = true;
+            }
+            return l;
+        });
+        if (start[0]) {
+            windowExecutor.execute(() -> drain(key, lane));
+        }
+        return pending.result;
+    }
+
+    private void drain(List<String> key, Lane lane) {
+        List<Pending> batch = new ArrayList<>();
+        Pending next;
+        while ((next = lane.pending.poll()) != null) {
+            batch.add(next);
+        }
+
+        runInOrder(batch, 0).whenComplete((ignored, e) -> {
+            boolean[] more = new boolean[1];
+            lanes.computeIfPresent(key, (k, l) -> {
+                if (l.pending.isEmpty()) {
+                    return null;
+                }
+                more[0] = true;
+                return l;
+            });
+            if (more[0]) {
+                drain(key, lane);
+            }
+        });
+    }
+
+    /* Runs the batch as consecutive runs of the same kind, one bulk call per run. */
+    private CompletableFuture<Void> runInOrder(List<Pending> batch, int from) {
+        if (from >= batch.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Kind kind = batch.get(from).kind;
+        int to = from;
+        List<RentRequest> requests = new ArrayList<>();
+        while (to < batch.size() && batch.get(to).kind == kind) {
+            requests.add(batch.get(to).request);
+            to++;
+        }
+        List<Pending> run = batch.subList(from, to);
+        int end = to;
+
+        CompletableFuture<List<RentResult>> results = kind == Kind.RENT
+                ? session.rentBooksAsync(requests)
+                : session.returnBooksAsync(requests);
+        return results.handle((list, e) -> {
+            for (int i = 0; i < run.size(); i++) {
+                CompletableFuture<Integer> result = run.get(i).result;
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else if (list.get(i).isSuccess()) {
+                    result.complete(list.get(i).getStatus());
+                } else {
+                    result.completeExceptionally(list.get(i).getError());
+                }
+            }
+            return null;
+        }).thenCompose(ignored -> runInOrder(batch, end));
+    }
+}
@@ -0,0 +1,32 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Row;
+
+import java.util.List;
+
+/*
+ * One page of a library listing. The token resumes the listing at the next page
+ * (see BackendSession.listBooks); it is null on the last page.
+ */
+public class BookPage {
+
+    private final List<Row> rows;
+    private final String nextPageToken;
+
+    BookPage(List<Row> rows, String nextPageToken) {
+        this.rows = rows;
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public boolean isLast() {
+        return nextPageToken == null;
+    }
+}
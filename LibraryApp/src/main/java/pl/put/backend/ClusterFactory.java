@@ -0,0 +1,110 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+
+import java.util.Properties;
+
+/*
+ * Builds the driver Cluster from config.properties.
+ *
+ * Requests are routed with TokenAwarePolicy(DCAwareRoundRobinPolicy): every statement is bound from a
+ * prepared statement whose partition key (library_id) is a bind variable, so the driver knows its
+ * routing key and sends it to a replica in the local data center. Unlogged batches are single-partition
+ * and are routed by their first statement.
+ */
+public final class ClusterFactory {
+
+    private ClusterFactory() {
+    }
+
+    public static Cluster build(String contactPoint) {
+        Properties properties = new Properties();
+        properties.setProperty("contact_points", contactPoint);
+        return build(properties);
+    }
+
+    public static Cluster build(Properties properties) {
+        Cluster.Builder builder = Cluster.builder()
+                .addContactPoints(contactPoints(properties))
+                .withRetryPolicy(CustomRetryPolicy.fromProperties(properties))
+                .withLoadBalancingPolicy(loadBalancingPolicy(properties))
+                .withPoolingOptions(poolingOptions(properties))
+                .withSocketOptions(socketOptions(properties))
+                .withCompression(ProtocolOptions.Compression.valueOf(properties.getProperty("compression", "none").trim().toUpperCase()));
+
+        String port = properties.getProperty("native_port", "").trim();
+        if (!port.isEmpty()) {
+            builder.withPort(Integer.parseInt(port));
+        }
+        String protocolVersion = properties.getProperty("protocol_version", "").trim();
+        if (!protocolVersion.isEmpty()) {
+            builder.withProtocolVersion(ProtocolVersion.valueOf(protocolVersion.toUpperCase()));
+        }
+
+        // Only SELECTs are executed speculatively, see ReadSpeculativeExecutionPolicy.
+        long speculativeDelay = Long.parseLong(properties.getProperty("speculative_execution_delay_ms", "0"));
+        if (speculativeDelay > 0) {
+            int maxExecutions = Integer.parseInt(properties.getProperty("speculative_execution_max", "1"));
+            builder.withSpeculativeExecutionPolicy(new ReadSpeculativeExecutionPolicy(new ConstantSpeculativeExecutionPolicy(speculativeDelay, maxExecutions)));
+        }
+        return builder.build();
+    }
+
+    /*
+     * contact_points is a comma separated list; contact_point is still read for older config files.
+     */
+    static String[] contactPoints(Properties properties) {
+        String contactPoints = properties.getProperty("contact_points", properties.getProperty("contact_point", "127.0.0.1"));
+        String[] hosts = contactPoints.split(",");
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = hosts[i].trim();
+        }
+        return hosts;
+    }
+
+    /*
+     * Without local_dc the driver takes the data center of the first contact point it reaches.
+     */
+    static TokenAwarePolicy loadBalancingPolicy(Properties properties) {
+        DCAwareRoundRobinPolicy.Builder dcAware = DCAwareRoundRobinPolicy.builder();
+        String localDc = properties.getProperty("local_dc", "").trim();
+        if (!localDc.isEmpty()) {
+            dcAware.withLocalDc(localDc);
+        }
+        int remoteHosts = Integer.parseInt(properties.getProperty("used_hosts_per_remote_dc", "0"));
+        if (remoteHosts > 0) {
+            dcAware.withUsedHostsPerRemoteDc(remoteHosts);
+        }
+        return new TokenAwarePolicy(dcAware.build());
+    }
+
+    /*
+     * connections * max requests is the number of requests a host accepts at once; up to max queue
+     * size more wait for a stream id before the driver fails them with BusyPoolException. With
+     * virtual workers BackendSession caps its blocking operations at that capacity.
+     */
+    static PoolingOptions poolingOptions(Properties properties) {
+        int connections = Integer.parseInt(properties.getProperty("pool_connections_per_host", "1"));
+        int coreConnections = Integer.parseInt(properties.getProperty("pool_core_connections_per_host", String.valueOf(connections)));
+        int maxConnections = Integer.parseInt(properties.getProperty("pool_max_connections_per_host", String.valueOf(connections)));
+        return new PoolingOptions()
+                .setConnectionsPerHost(HostDistance.LOCAL, coreConnections, Math.max(coreConnections, maxConnections))
+                .setMaxRequestsPerConnection(HostDistance.LOCAL, Integer.parseInt(properties.getProperty("pool_max_requests_per_connection", "1024")))
+                .setMaxQueueSize(Integer.parseInt(properties.getProperty("pool_max_queue_size", "256")));
+    }
+
+    static SocketOptions socketOptions(Properties properties) {
+        return new SocketOptions()
+                .setConnectTimeoutMillis(Integer.parseInt(properties.getProperty("connect_timeout_ms", "5000")))
+                .setReadTimeoutMillis(Integer.parseInt(properties.getProperty("read_timeout_ms", "12000")))
+                .setTcpNoDelay(true);
+    }
+}
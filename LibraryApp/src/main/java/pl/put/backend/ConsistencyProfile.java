@@ -0,0 +1,138 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Statement;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * Consistency levels per kind of statement. Every prepared statement of BackendSession declares its
+ * kind, and the level is set on each bound statement (or batch) when it is executed, unless the caller
+ * has set one already. Prepared statements are shared by all sessions on a Cluster, so the levels are
+ * never set on them.
+ *
+ * LIST  - listings, due date reports, user loans and status checks.
+ * READ  - single book reads: the menu's book view and the reads rent, return and validate() decide from.
+ * WRITE - unconditional writes: rents, returns, queue joins and leaves, indexes, book counts.
+ * CAS   - conditional writes (DEQUEUE_BOOK, UNRENT_BOOK, the LWT claims); the level of their commit.
+ * serial is the serial consistency of the CAS statements, i.e. of their Paxos round.
+ *
+ * A null level leaves the statement at the driver default (QueryOptions: LOCAL_ONE, serial SERIAL).
+ * The presets are a starting point; every level can be overridden in config.properties.
+ */
+public class ConsistencyProfile {
+
+    public enum Kind {
+        LIST,
+        READ,
+        WRITE,
+        CAS
+    }
+
+    public enum Preset {
+        DRIVER(null, null, null, null, null),
+        FAST(ConsistencyLevel.LOCAL_ONE, ConsistencyLevel.LOCAL_ONE, ConsistencyLevel.LOCAL_ONE, ConsistencyLevel.LOCAL_ONE, ConsistencyLevel.LOCAL_SERIAL),
+        QUORUM(ConsistencyLevel.LOCAL_ONE, ConsistencyLevel.LOCAL_QUORUM, ConsistencyLevel.LOCAL_QUORUM, ConsistencyLevel.LOCAL_QUORUM, ConsistencyLevel.LOCAL_SERIAL),
+        SERIAL(ConsistencyLevel.LOCAL_ONE, ConsistencyLevel.LOCAL_SERIAL, ConsistencyLevel.LOCAL_QUORUM, ConsistencyLevel.LOCAL_QUORUM, ConsistencyLevel.LOCAL_SERIAL);
+
+        private final ConsistencyLevel list;
+        private final ConsistencyLevel read;
+        private final ConsistencyLevel write;
+        private final ConsistencyLevel cas;
+        private final ConsistencyLevel serial;
+
+        Preset(ConsistencyLevel list, ConsistencyLevel read, ConsistencyLevel write, ConsistencyLevel cas, ConsistencyLevel serial) {
+            this.list = list;
+            this.read = read;
+            this.write = write;
+            this.cas = cas;
+            this.serial = serial;
+        }
+
+        public ConsistencyProfile profile() {
+            return new ConsistencyProfile(list, read, write, cas, serial);
+        }
+    }
+
+    private final Map<Kind, ConsistencyLevel> levels = new EnumMap<>(Kind.class);
+
+    private final ConsistencyLevel serial;
+
+    public ConsistencyProfile(ConsistencyLevel list, ConsistencyLevel read, ConsistencyLevel write, ConsistencyLevel cas, ConsistencyLevel serial) {
+        if (serial != null && !serial.isSerial()) {
+            throw new IllegalArgumentException("Serial consistency must be SERIAL or LOCAL_SERIAL, not " + serial + ".");
+        }
+        for (ConsistencyLevel level : new ConsistencyLevel[]{write, cas}) {
+            if (level != null && level.isSerial()) {
+                throw new IllegalArgumentException("Writes cannot use " + level + " as their consistency level.");
+            }
+        }
+        putLevel(Kind.LIST, list);
+        putLevel(Kind.READ, read);
+        putLevel(Kind.WRITE, write);
+        putLevel(Kind.CAS, cas);
+        this.serial = serial;
+    }
+
+    /*
+     * consistency_profile picks a preset; consistency_list, consistency_read, consistency_write,
+     * consistency_cas and consistency_serial override single levels of it.
+     */
+    public static ConsistencyProfile fromProperties(Properties properties) {
+        Preset preset = Preset.valueOf(properties.getProperty("consistency_profile", "driver").trim().toUpperCase());
+        return new ConsistencyProfile(
+                level(properties, "consistency_list", preset.list),
+                level(properties, "consistency_read", preset.read),
+                level(properties, "consistency_write", preset.write),
+                level(properties, "consistency_cas", preset.cas),
+                level(properties, "consistency_serial", preset.serial));
+    }
+
+    private static ConsistencyLevel level(Properties properties, String key, ConsistencyLevel preset) {
+        String value = properties.getProperty(key, "").trim();
+        return value.isEmpty() ? preset : ConsistencyLevel.valueOf(value.toUpperCase());
+    }
+
+    private void putLevel(Kind kind, ConsistencyLevel level) {
+        if (level != null) {
+            levels.put(kind, level);
+        }
+    }
+
+    public ConsistencyLevel getLevel(Kind kind) {
+        return levels.get(kind);
+    }
+
+    public ConsistencyLevel getSerial() {
+        return serial;
+    }
+
+    /*
+     * The level of kind for a read that spans several partitions: Cassandra only runs serial reads
+     * on one partition, so SERIAL and LOCAL_SERIAL fall back to their quorum.
+     */
+    public ConsistencyLevel getMultiPartitionLevel(Kind kind) {
+        ConsistencyLevel level = levels.get(kind);
+        if (level == ConsistencyLevel.SERIAL) return ConsistencyLevel.QUORUM;
+        if (level == ConsistencyLevel.LOCAL_SERIAL) return ConsistencyLevel.LOCAL_QUORUM;
+        return level;
+    }
+
+    void apply(Statement statement, Kind kind) {
+        ConsistencyLevel level = levels.get(kind);
+        if (level != null && statement.getConsistencyLevel() == null) {
+            statement.setConsistencyLevel(level);
+        }
+        if (kind == Kind.CAS && serial != null && statement.getSerialConsistencyLevel() == null) {
+            statement.setSerialConsistencyLevel(serial);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "list=" + levels.get(Kind.LIST) + " read=" + levels.get(Kind.READ) + " write=" + levels.get(Kind.WRITE)
+                + " cas=" + levels.get(Kind.CAS) + " serial=" + serial;
+    }
+}
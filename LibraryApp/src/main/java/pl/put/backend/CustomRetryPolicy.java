@@ -2,35 +2,121 @@ package pl.put.backend;
 
 import com.datastax.driver.core.*;
 import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
 import com.datastax.driver.core.policies.RetryPolicy;
 
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Retries are bounded by maxRetries and only issued for statements marked idempotent.
+ *
+ * The driver retries a request immediately, on the I/O thread, so this policy only lets it do so
+ * when another host can help (unavailable coordinator, connection/request errors). Read and write
+ * timeouts are rethrown to BackendSession, which retries them after an exponential backoff with
+ * full jitter (isRetryable/backoffMillis) instead of hitting the overloaded replicas again at once.
+ *
+ * WriteType.CAS timeouts are retried only for conditional statements whose IF clause turns a
+ * repeated application into a no-op (DEQUEUE_BOOK, UNRENT_BOOK). Count-guarded claims are not
+ * idempotent, so their outcome is left to the next read of the row.
+ */
 public class CustomRetryPolicy implements RetryPolicy {
 
+    private final int maxRetries;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final AtomicLong retries = new AtomicLong(0);
+
+    public CustomRetryPolicy() {
+        this(3, 10, 1000);
+    }
+
+    public CustomRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public static CustomRetryPolicy fromProperties(Properties properties) {
+        return new CustomRetryPolicy(
+                Integer.parseInt(properties.getProperty("retry_max_attempts", "3")),
+                Long.parseLong(properties.getProperty("retry_base_delay_ms", "10")),
+                Long.parseLong(properties.getProperty("retry_max_delay_ms", "1000")));
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
     @Override
     public RetryDecision onWriteTimeout(Statement stmt, ConsistencyLevel cl,
                                         WriteType writeType, int requiredAcks,
                                         int receivedAcks, int nbRetry) {
-        return RetryDecision.retry(cl);
+        return RetryDecision.rethrow();
     }
 
     @Override
     public RetryDecision onReadTimeout(Statement stmt, ConsistencyLevel cl,
                                        int requiredResponses, int receivedResponses,
                                        boolean dataRetrieved, int nbRetry) {
-        return RetryDecision.retry(cl);
+        return RetryDecision.rethrow();
     }
 
     @Override
     public RetryDecision onUnavailable(Statement stmt, ConsistencyLevel cl,
                                        int requiredReplica, int aliveReplica, int nbRetry) {
-        return RetryDecision.retry(cl);
+        if (nbRetry == 0 && maxRetries > 0) {
+            retries.incrementAndGet();
+            return RetryDecision.tryNextHost(cl);
+        }
+        return RetryDecision.rethrow();
     }
 
     @Override
     public RetryDecision onRequestError(Statement statement, ConsistencyLevel consistencyLevel, DriverException e, int i) {
+        if (i < maxRetries && isIdempotent(statement)) {
+            retries.incrementAndGet();
+            return RetryDecision.tryNextHost(consistencyLevel);
+        }
         return RetryDecision.rethrow();
     }
 
+    //------------------CLIENT SIDE RETRIES WITH BACKOFF-------------------------------------------------
+
+    public boolean isRetryable(Statement statement, Throwable error, int attempt) {
+        if (attempt >= maxRetries) return false;
+
+        boolean retryable;
+        if (error instanceof WriteTimeoutException) {
+            WriteType writeType = ((WriteTimeoutException) error).getWriteType();
+            retryable = writeType == WriteType.BATCH_LOG || isIdempotent(statement);
+        } else if (error instanceof ReadTimeoutException || error instanceof OperationTimedOutException) {
+            retryable = isIdempotent(statement);
+        } else {
+            retryable = false;
+        }
+        if (retryable) {
+            retries.incrementAndGet();
+        }
+        return retryable;
+    }
+
+    public long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private boolean isIdempotent(Statement statement) {
+        Boolean idempotent = statement.isIdempotent();
+        return idempotent != null && idempotent;
+    }
+
     @Override public void init(Cluster cluster) {}
     @Override public void close() {}
 }
@@ -0,0 +1,46 @@
+package pl.put.backend;
+
+import java.util.Date;
+
+/*
+ * One entry of the loans_by_due_day table: a copy of bookId rented by userId that is due at dueDate.
+ */
+public class DueLoan {
+
+    private final String libraryId;
+    private final String bookId;
+    private final String userId;
+    private final Date dueDate;
+
+    public DueLoan(String libraryId, String bookId, String userId, Date dueDate) {
+        this.libraryId = libraryId;
+        this.bookId = bookId;
+        this.userId = userId;
+        this.dueDate = dueDate;
+    }
+
+    public String getLibraryId() {
+        return libraryId;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Date getDueDate() {
+        return dueDate;
+    }
+
+    public boolean isOverdue(Date now) {
+        return dueDate.before(now);
+    }
+
+    @Override
+    public String toString() {
+        return userId + "@" + libraryId + "/" + bookId + " due " + dueDate;
+    }
+}
@@ -0,0 +1,54 @@
+package pl.put.backend;
+
+import org.HdrHistogram.Histogram;
+
+/*
+ * Point-in-time view of one latency histogram, in microseconds.
+ */
+public class LatencySnapshot {
+
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    public LatencySnapshot(Histogram histogram) {
+        count = histogram.getTotalCount();
+        mean = histogram.getMean();
+        p50 = histogram.getValueAtPercentile(50.0);
+        p99 = histogram.getValueAtPercentile(99.0);
+        p999 = histogram.getValueAtPercentile(99.9);
+        max = histogram.getMaxValue();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%dus p99=%dus p999=%dus max=%dus", count, mean, p50, p99, p999, max);
+    }
+}
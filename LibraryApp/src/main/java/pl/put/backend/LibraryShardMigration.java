@@ -0,0 +1,73 @@
+package pl.put.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Moves the books of a library between shard counts: from library_data into library_data_sharded
+ * (fromShards 0), between two shard counts, or back into library_data (toShards 0).
+ *
+ * It is an offline move: stop the writes to the library first, since a change made to a book after
+ * it has been read is lost when its row is copied. Every book is copied before its old row is
+ * deleted, so an interrupted run can simply be started again. Then set the new count for the library
+ * in sharded_libraries (see BackendSession.setShardedLibraries) and restart the clients.
+ *
+ * Books are streamed from their current place and moved with at most maxInFlight books in flight.
+ */
+public class LibraryShardMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryShardMigration.class);
+
+    private final BackendSession session;
+
+    private final int maxInFlight;
+
+    public LibraryShardMigration(BackendSession session, int maxInFlight) {
+        this.session = session;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public static LibraryShardMigration fromProperties(BackendSession session, Properties properties) {
+        return new LibraryShardMigration(session, Integer.parseInt(properties.getProperty("shard_migration_in_flight", "64")));
+    }
+
+    /*
+     * Returns the number of books moved.
+     */
+    public long migrate(String libraryId, int fromShards, int toShards) throws BackendException {
+        if (fromShards < 0 || toShards < 0) {
+            throw new IllegalArgumentException("Shard counts can't be negative.");
+        }
+        session.prepareShardedStatements();
+        Semaphore permits = new Semaphore(maxInFlight);
+        AtomicLong moved = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int books = session.forEachBook(libraryId, fromShards, true, row -> {
+            if (failure.get() != null) return;
+            permits.acquireUninterruptibly();
+            session.reshardBookAsync(row, fromShards, toShards).whenComplete((changed, e) -> {
+                if (e != null) {
+                    failure.compareAndSet(null, e);
+                } else if (changed) {
+                    moved.incrementAndGet();
+                }
+                permits.release();
+            });
+        });
+        permits.acquireUninterruptibly(maxInFlight);
+        permits.release(maxInFlight);
+
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new BackendException("Could not move the books of library " + libraryId + ". " + e.getMessage() + ".",
+                    e instanceof Exception ? (Exception) e : new RuntimeException(e));
+        }
+        logger.info("Library {}: {} book(s) read, {} moved from {} to {} shard(s)", libraryId, books, moved.get(), fromShards, toShards);
+        return moved.get();
+    }
+}
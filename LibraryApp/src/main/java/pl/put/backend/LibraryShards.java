@@ -0,0 +1,309 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.exceptions.DriverException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+ * The library_data_sharded statements of one BackendSession.
+ *
+ * A library listed in sharded_libraries is kept in library_data_sharded, spread over
+ * ((library_id, shard), book_id) partitions instead of the single library_id partition of
+ * library_data, so that a large library is neither one huge partition nor served by one replica
+ * set. The shard of a book is fixed by its book_id and the shard count of its library.
+ *
+ * Single-book statements go through bind, which switches to the sharded copy of the statement and
+ * adds the shard. Listing reads every shard in parallel and merges them in book_id order.
+ *
+ * The statements are prepared on first use, so deployments without sharded libraries never touch
+ * library_data_sharded.
+ */
+class LibraryShards {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryShards.class);
+
+    private static final int MIN_SHARD_FETCH_SIZE = 100;
+
+    private final BackendSession session;
+
+    /* library_id -> number of library_data_sharded partitions; libraries not listed stay in library_data */
+    private volatile Map<String, Integer> libraries = Collections.emptyMap();
+
+    private final Map<PreparedStatement, ShardedStatement> shardedStatements = new ConcurrentHashMap<>();
+
+    private PreparedStatement SELECT_SHARD_BOOKS;
+    private PreparedStatement SELECT_SHARD_BOOK_COUNTS;
+    private PreparedStatement COPY_BOOK;
+    private PreparedStatement COPY_SHARD_BOOK;
+    private PreparedStatement DELETE_BOOK;
+    private PreparedStatement DELETE_SHARD_BOOK;
+
+    LibraryShards(BackendSession session) {
+        this.session = session;
+    }
+
+    static int shardOf(String bookId, int shards) {
+        CRC32 crc = new CRC32();
+        crc.update(bookId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % shards);
+    }
+
+    /*
+     * 0 for a library kept in library_data.
+     */
+    int shardsOf(String libraryId) {
+        Integer shards = libraries.get(libraryId);
+        return shards == null ? 0 : shards;
+    }
+
+    Map<String, Integer> getLibraries() {
+        return libraries;
+    }
+
+    void setLibraries(Map<String, Integer> libraries) {
+        this.libraries = Collections.unmodifiableMap(new HashMap<>(libraries));
+    }
+
+    /*
+     * Binds a statement on library_data whose values include "library_id=? AND book_id" (or start
+     * with them, for INSERT_BOOK); for a sharded library the sharded statement is bound instead,
+     * with the shard of the book after the library_id.
+     */
+    BoundStatement bind(PreparedStatement statement, Object... values) {
+        ShardedStatement sharded = shardedStatements.get(statement);
+        if (sharded != null) {
+            int at = sharded.shardIndex;
+            int shards = shardsOf((String) values[at - 1]);
+            if (shards > 0) {
+                Object[] shardValues = new Object[values.length + 1];
+                System.arraycopy(values, 0, shardValues, 0, at);
+                shardValues[at] = shardOf((String) values[at], shards);
+                System.arraycopy(values, at, shardValues, at + 1, values.length - at);
+                return sharded.statement.bind(shardValues);
+            }
+        }
+        return statement.bind(values);
+    }
+
+    /*
+     * The library_data_sharded copy of a statement passed to prepare, bound with the shard right
+     * after the library_id.
+     */
+    PreparedStatement shardedOf(PreparedStatement statement) {
+        return shardedStatements.get(statement).statement;
+    }
+
+    /*
+     * statements are the single-book statements on library_data, by name, to get a sharded copy;
+     * insertBook among them is the one whose values start with library_id and book_id.
+     */
+    synchronized void prepare(Map<String, PreparedStatement> statements, PreparedStatement insertBook) throws BackendException {
+        if (SELECT_SHARD_BOOKS != null) return;
+        try {
+            for (Map.Entry<String, PreparedStatement> statement : statements.entrySet()) {
+                shard(statement.getKey(), statement.getValue(), statement.getValue() == insertBook);
+            }
+            COPY_BOOK = session.prepare("COPY_BOOK", "INSERT INTO library_data (library_id, book_id, book_count, queue, rented_date, due_date, rented_count) VALUES (?, ?, ?, ?, ?, ?, ?);", ConsistencyProfile.Kind.WRITE);
+            COPY_SHARD_BOOK = session.prepare("COPY_SHARD_BOOK", "INSERT INTO library_data_sharded (library_id, shard, book_id, book_count, queue, rented_date, due_date, rented_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?);", ConsistencyProfile.Kind.WRITE);
+            DELETE_BOOK = session.prepare("DELETE_BOOK", "DELETE FROM library_data WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE);
+            DELETE_SHARD_BOOK = session.prepare("DELETE_SHARD_BOOK", "DELETE FROM library_data_sharded WHERE library_id=? AND shard=? AND book_id=?;", ConsistencyProfile.Kind.WRITE);
+            SELECT_SHARD_BOOK_COUNTS = session.prepare("SELECT_SHARD_BOOK_COUNTS", "SELECT library_id, book_id, book_count FROM library_data_sharded WHERE library_id=? AND shard=? AND book_id > ? LIMIT ?;", ConsistencyProfile.Kind.LIST);
+            for (PreparedStatement statement : new PreparedStatement[]{COPY_BOOK, COPY_SHARD_BOOK, DELETE_BOOK, DELETE_SHARD_BOOK, SELECT_SHARD_BOOK_COUNTS}) {
+                statement.setIdempotent(true);
+            }
+            // Assigned last: it marks the statements as prepared.
+            SELECT_SHARD_BOOKS = session.prepare("SELECT_SHARD_BOOKS", "SELECT * FROM library_data_sharded WHERE library_id=? AND shard=? AND book_id > ? LIMIT ?;", ConsistencyProfile.Kind.LIST);
+            SELECT_SHARD_BOOKS.setIdempotent(true);
+        } catch (Exception e) {
+            throw new BackendException("Could not prepare statements. " + e.getMessage() + ".", e);
+        }
+
+        logger.info("Sharded statements prepared");
+    }
+
+    private void shard(String name, PreparedStatement statement, boolean insert) throws BackendException {
+        String query = statement.getQueryString().replace("library_data", "library_data_sharded");
+        int shardIndex;
+        if (insert) {
+            query = query.replace("(library_id, book_id,", "(library_id, shard, book_id,").replace("VALUES (?, ?,", "VALUES (?, ?, ?,");
+            shardIndex = 1;
+        } else {
+            int at = query.indexOf("library_id=? AND book_id");
+            shardIndex = (int) query.substring(0, at).chars().filter(c -> c == '?').count() + 1;
+            query = query.replace("library_id=? AND book_id", "library_id=? AND shard=? AND book_id");
+        }
+        PreparedStatement sharded = session.prepare(name + "_SHARDED", query, session.kindOf(statement));
+        if (statement.isIdempotent() != null) {
+            sharded.setIdempotent(statement.isIdempotent());
+        }
+        shardedStatements.put(statement, new ShardedStatement(sharded, shardIndex));
+    }
+
+    /*
+     * Each shard is paged on its own, fetchSize split between the shards; rows are handed over in
+     * book_id order, as for library_data.
+     */
+    int forEachBook(String libraryId, int shards, boolean withLoans, int fetchSize, Consumer<Row> consumer) throws BackendException {
+        PreparedStatement statement = withLoans ? SELECT_SHARD_BOOKS : SELECT_SHARD_BOOK_COUNTS;
+        int shardFetchSize = Math.max(MIN_SHARD_FETCH_SIZE, fetchSize / shards);
+        List<CompletableFuture<ResultSet>> reads = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            BoundStatement bs = statement.bind(libraryId, shard, "", Integer.MAX_VALUE);
+            bs.setFetchSize(shardFetchSize);
+            reads.add(session.executeQueryAsync(bs));
+        }
+        PriorityQueue<ShardCursor> cursors = new PriorityQueue<>(shards);
+        int count = 0;
+        try {
+            for (CompletableFuture<ResultSet> read : reads) {
+                ShardCursor cursor = new ShardCursor(session.await(read), shardFetchSize);
+                if (cursor.advance()) cursors.add(cursor);
+            }
+            while (!cursors.isEmpty()) {
+                ShardCursor cursor = cursors.poll();
+                consumer.accept(cursor.row);
+                count++;
+                if (cursor.advance()) cursors.add(cursor);
+            }
+        } catch (DriverException e) {
+            throw new BackendException("Could not fetch the next page. " + e.getMessage() + ".", e);
+        }
+        return count;
+    }
+
+    /*
+     * Every shard returns up to pageSize books after the token; the merged page keeps the first
+     * pageSize of them. A page therefore costs one read per shard. Tokens hold the last book_id of
+     * the page instead of a driver paging state.
+     */
+    CompletableFuture<BookPage> listBooksAsync(String libraryId, int shards, int pageSize, String pageToken, boolean withLoans) {
+        String after;
+        try {
+            after = pageToken == null ? "" : new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new BackendException("Invalid page token. " + e.getMessage() + ".", e));
+        }
+        PreparedStatement statement = withLoans ? SELECT_SHARD_BOOKS : SELECT_SHARD_BOOK_COUNTS;
+        List<CompletableFuture<List<Row>>> reads = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            BoundStatement bs = statement.bind(libraryId, shard, after, pageSize);
+            bs.setFetchSize(pageSize);
+            reads.add(session.executeQueryAsync(bs).thenCompose(rs -> session.fetchAllAsync(rs, new ArrayList<>())));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<Row> rows = new ArrayList<>();
+            boolean more = false;
+            for (CompletableFuture<List<Row>> read : reads) {
+                List<Row> shardRows = read.join();
+                rows.addAll(shardRows);
+                more |= shardRows.size() == pageSize;
+            }
+            rows.sort((a, b) -> compareBookIds(a.getString("book_id"), b.getString("book_id")));
+            if (rows.size() > pageSize) {
+                rows = new ArrayList<>(rows.subList(0, pageSize));
+            }
+            String next = null;
+            if (more && !rows.isEmpty()) {
+                byte[] last = rows.get(rows.size() - 1).getString("book_id").getBytes(StandardCharsets.UTF_8);
+                next = Base64.getUrlEncoder().withoutPadding().encodeToString(last);
+            }
+            return new BookPage(rows, next);
+        });
+    }
+
+    /*
+     * Cassandra orders text clustering keys by their UTF-8 bytes, that is by code point.
+     */
+    private static int compareBookIds(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) return Integer.compare(ca, cb);
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /*
+     * Copies the book to its place under toShards (0 meaning library_data), then deletes it from its
+     * place under fromShards; completes with whether it had to move. The copy is written before the
+     * source is deleted, so an interrupted move leaves both copies, never none.
+     */
+    CompletableFuture<Boolean> moveAsync(Book book, int fromShards, int toShards) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+        int from = fromShards == 0 ? -1 : shardOf(bookId, fromShards);
+        int to = toShards == 0 ? -1 : shardOf(bookId, toShards);
+        if (from == to) return CompletableFuture.completedFuture(false);
+
+        BoundStatement copy = to < 0
+                ? COPY_BOOK.bind(libraryId, bookId, book.getBookCount(), book.getQueue(), book.getRented(), book.getDue(), book.getRentedCount())
+                : COPY_SHARD_BOOK.bind(libraryId, to, bookId, book.getBookCount(), book.getQueue(), book.getRented(), book.getDue(), book.getRentedCount());
+        BoundStatement delete = from < 0 ? DELETE_BOOK.bind(libraryId, bookId) : DELETE_SHARD_BOOK.bind(libraryId, from, bookId);
+        return session.executeQueryAsync(copy)
+                .thenCompose(ignored -> session.executeQueryAsync(delete))
+                .thenApply(ignored -> true);
+    }
+
+    private static final class ShardedStatement {
+
+        final PreparedStatement statement;
+
+        /* position of the shard value; the library_id is bound right before it, the book_id right after */
+        final int shardIndex;
+
+        ShardedStatement(PreparedStatement statement, int shardIndex) {
+            this.statement = statement;
+            this.shardIndex = shardIndex;
+        }
+    }
+
+    /*
+     * The current row of one shard; the next page is requested in the background once half of the
+     * current one has been consumed.
+     */
+    private static final class ShardCursor implements Comparable<ShardCursor> {
+
+        private final ResultSet rs;
+        private final int fetchSize;
+        Row row;
+
+        ShardCursor(ResultSet rs, int fetchSize) {
+            this.rs = rs;
+            this.fetchSize = fetchSize;
+        }
+
+        boolean advance() {
+            if (rs.getAvailableWithoutFetching() == fetchSize / 2 && !rs.isFullyFetched()) {
+                rs.fetchMoreResults();
+            }
+            row = rs.one();
+            return row != null;
+        }
+
+        @Override
+        public int compareTo(ShardCursor other) {
+            return compareBookIds(row.getString("book_id"), other.row.getString("book_id"));
+        }
+    }
+}
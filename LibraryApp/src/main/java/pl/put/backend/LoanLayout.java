@@ -0,0 +1,33 @@
+package pl.put.backend;
+
+/*
+ * Where the per-loan state (who rents or waits for a copy, since when, due when) is stored.
+ *
+ * MAPS - the queue, rented_date and due_date maps of the library_data row. Every rent and return
+ *        adds map cells and cell tombstones to the row that every decision reads.
+ * ROWS - one clustering row per user in the book_loans partition of the book, with book_count as a
+ *        static column. A return deletes one row, queue entries can expire with a TTL, and the table
+ *        is compacted with tombstone_threshold/unchecked_tombstone_compaction so that deleted loans
+ *        are purged from a hot partition soon after gc_grace_seconds.
+ * DUAL - writes go to both layouts, reads come from the maps. Used while moving to ROWS: switch all
+ *        clients to DUAL, run LoanLayoutMigration to copy the maps, then switch to ROWS.
+ *
+ * ROWS supports RentMode.VALIDATE only; the count-guarded LWT claims are written against library_data.
+ */
+public enum LoanLayout {
+    MAPS,
+    DUAL,
+    ROWS;
+
+    boolean writesMaps() {
+        return this != ROWS;
+    }
+
+    boolean writesRows() {
+        return this != MAPS;
+    }
+
+    boolean readsRows() {
+        return this == ROWS;
+    }
+}
@@ -0,0 +1,68 @@
+package pl.put.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Copies the loans of the library_data maps into book_loans, see LoanLayout.
+ *
+ * Run it once every client writes DUAL, so that changes made while a library is being copied reach
+ * both layouts. A change that lands between reading a book and writing its rows is only fixed by
+ * running the migration again, which rewrites just the books that differ. Then switch to ROWS.
+ *
+ * Books are streamed from library_data and copied with at most maxInFlight books in flight.
+ */
+public class LoanLayoutMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoanLayoutMigration.class);
+
+    private final BackendSession session;
+
+    private final int maxInFlight;
+
+    public LoanLayoutMigration(BackendSession session, int maxInFlight) {
+        this.session = session;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public static LoanLayoutMigration fromProperties(BackendSession session, Properties properties) {
+        return new LoanLayoutMigration(session, Integer.parseInt(properties.getProperty("loan_migration_in_flight", "64")));
+    }
+
+    /*
+     * Returns the number of loan rows written or deleted.
+     */
+    public long migrate(String libraryId) throws BackendException {
+        Semaphore permits = new Semaphore(maxInFlight);
+        AtomicLong changed = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        LoanRows loanRows = session.getLoanRows();
+        int books = session.forEachBook(libraryId, true, row -> {
+            if (failure.get() != null) return;
+            permits.acquireUninterruptibly();
+            loanRows.copyAsync(Book.from(row)).whenComplete((loans, e) -> {
+                if (e != null) {
+                    failure.compareAndSet(null, e);
+                } else {
+                    changed.addAndGet(loans);
+                }
+                permits.release();
+            });
+        });
+        permits.acquireUninterruptibly(maxInFlight);
+        permits.release(maxInFlight);
+
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new BackendException("Could not copy the loans of library " + libraryId + ". " + e.getMessage() + ".",
+                    e instanceof Exception ? (Exception) e : new RuntimeException(e));
+        }
+        logger.info("Library {}: {} book(s) copied, {} loan row(s) changed", libraryId, books, changed.get());
+        return changed.get();
+    }
+}
@@ -0,0 +1,242 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/*
+ * The book_loans statements of one BackendSession, see LoanLayout.
+ *
+ * A book_loans partition holds the book_count of a book and one row per renter (status 1) and
+ * queued user (status 2). Which layout is read and written is decided by the session; this class
+ * only binds and runs the row statements.
+ */
+class LoanRows {
+
+    private static final int MAX_LOANS_PER_BATCH = 100;
+
+    private final BackendSession session;
+
+    private PreparedStatement SELECT_BOOK_LOANS;
+    private PreparedStatement SELECT_BOOK_LOANS_IN;
+    private PreparedStatement SET_BOOK_COUNT_ROW;
+    private PreparedStatement INSERT_LOAN_ROW;
+    private PreparedStatement QUEUE_LOAN_ROW;
+    private PreparedStatement DELETE_LOAN_ROW;
+    private PreparedStatement DEQUEUE_LOAN_ROW;
+
+    /* prepared on first use with fast_start, with the others otherwise */
+    private final BackendSession.LazyStatement UNRENT_LOAN_ROW;
+
+    LoanRows(BackendSession session) {
+        this.session = session;
+        UNRENT_LOAN_ROW = session.lazyStatement("UNRENT_LOAN_ROW",
+                "UPDATE book_loans USING TTL ? SET status = 2, since = ?, due_date = null WHERE library_id=? AND book_id=? AND user_id=? IF status = 1;", ConsistencyProfile.Kind.CAS, true);
+    }
+
+    /*
+     * Prepared together with the library_data statements. The reads, SET_BOOK_COUNT_ROW and the
+     * conditional DEQUEUE_LOAN_ROW are safe to retry, see CustomRetryPolicy.
+     */
+    CompletableFuture<Void> prepareAsync(boolean fastStart) {
+        List<CompletableFuture<?>> preparing = new ArrayList<>();
+        prepare(preparing, "SELECT_BOOK_LOANS", "SELECT library_id, book_id, book_count, user_id, status, since, due_date FROM book_loans WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.READ, true, statement -> SELECT_BOOK_LOANS = statement);
+        prepare(preparing, "SELECT_BOOK_LOANS_IN", "SELECT library_id, book_id, book_count, user_id, status, since, due_date FROM book_loans WHERE library_id=? AND book_id IN ?;", ConsistencyProfile.Kind.READ, true, statement -> SELECT_BOOK_LOANS_IN = statement);
+        prepare(preparing, "SET_BOOK_COUNT_ROW", "UPDATE book_loans SET book_count = ? WHERE library_id=? AND book_id=?;", ConsistencyProfile.Kind.WRITE, true, statement -> SET_BOOK_COUNT_ROW = statement);
+        prepare(preparing, "INSERT_LOAN_ROW", "INSERT INTO book_loans (library_id, book_id, user_id, status, since, due_date) VALUES (?, ?, ?, 1, ?, ?);", ConsistencyProfile.Kind.WRITE, false, statement -> INSERT_LOAN_ROW = statement);
+        prepare(preparing, "QUEUE_LOAN_ROW", "INSERT INTO book_loans (library_id, book_id, user_id, status, since) VALUES (?, ?, ?, 2, ?) USING TTL ?;", ConsistencyProfile.Kind.WRITE, false, statement -> QUEUE_LOAN_ROW = statement);
+        prepare(preparing, "DELETE_LOAN_ROW", "DELETE FROM book_loans WHERE library_id=? AND book_id=? AND user_id=?;", ConsistencyProfile.Kind.WRITE, false, statement -> DELETE_LOAN_ROW = statement);
+        prepare(preparing, "DEQUEUE_LOAN_ROW", "UPDATE book_loans SET status = 1, since = ?, due_date = ? WHERE library_id=? AND book_id=? AND user_id=? IF status = 2 AND since = ?;", ConsistencyProfile.Kind.CAS, true, statement -> DEQUEUE_LOAN_ROW = statement);
+        if (!fastStart) {
+            preparing.add(UNRENT_LOAN_ROW.getAsync());
+        }
+        return CompletableFuture.allOf(preparing.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void prepare(List<CompletableFuture<?>> preparing, String name, String query, ConsistencyProfile.Kind kind, boolean idempotent, Consumer<PreparedStatement> field) {
+        preparing.add(session.prepareAsync(name, query, kind).thenAccept(statement -> {
+            if (idempotent) statement.setIdempotent(true);
+            field.accept(statement);
+        }));
+    }
+
+    //----------------------------READS--------------------------------------------------------------------------
+
+    /*
+     * null when the book has no book_loans partition.
+     */
+    Book read(String libraryId, String bookId, ConsistencyLevel level) throws BackendException {
+        BoundStatement bs = new BoundStatement(SELECT_BOOK_LOANS);
+        bs.bind(libraryId, bookId);
+        bs.setConsistencyLevel(level);
+        try {
+            return Book.fromLoanRows(libraryId, bookId, session.executeQuery(bs));
+        } catch (DriverException e) {
+            throw new BackendException("Could not fetch the next page. " + e.getMessage() + ".", e);
+        }
+    }
+
+    CompletableFuture<Book> readAsync(String libraryId, String bookId, ConsistencyLevel level) {
+        BoundStatement bs = new BoundStatement(SELECT_BOOK_LOANS);
+        bs.bind(libraryId, bookId);
+        bs.setConsistencyLevel(level);
+        return session.executeQueryAsync(bs)
+                .thenCompose(rs -> session.fetchAllAsync(rs, new ArrayList<>()))
+                .thenApply(rows -> Book.fromLoanRows(libraryId, bookId, rows));
+    }
+
+    /*
+     * The books found, keyed by book_id.
+     */
+    CompletableFuture<Map<String, Book>> readAllAsync(String libraryId, List<String> bookIds, ConsistencyLevel level) {
+        BoundStatement bs = new BoundStatement(SELECT_BOOK_LOANS_IN);
+        bs.bind(libraryId, bookIds);
+        bs.setConsistencyLevel(level);
+        return session.executeQueryAsync(bs).thenCompose(rs -> session.fetchAllAsync(rs, new ArrayList<>())).thenApply(rows -> {
+            Map<String, List<Row>> byBook = new HashMap<>();
+            for (Row row : rows) {
+                byBook.computeIfAbsent(row.getString("book_id"), key -> new ArrayList<>()).add(row);
+            }
+            Map<String, Book> books = new HashMap<>();
+            for (Map.Entry<String, List<Row>> book : byBook.entrySet()) {
+                books.put(book.getKey(), Book.fromLoanRows(libraryId, book.getKey(), book.getValue()));
+            }
+            return books;
+        });
+    }
+
+    //----------------------------WRITES--------------------------------------------------------------------------
+
+    BoundStatement bookCountStatement(String libraryId, String bookId, int bookCount) {
+        return SET_BOOK_COUNT_ROW.bind(bookCount, libraryId, bookId);
+    }
+
+    BoundStatement rentedStatement(String userId, String libraryId, String bookId, Date since, Date dueDate) {
+        return INSERT_LOAN_ROW.bind(libraryId, bookId, userId, since, dueDate);
+    }
+
+    /*
+     * due_date is left unset rather than bound to null, which would write a tombstone.
+     */
+    BoundStatement queuedStatement(String userId, String libraryId, String bookId, Date since) {
+        return QUEUE_LOAN_ROW.bind(libraryId, bookId, userId, since, session.getQueueTtlSeconds());
+    }
+
+    BoundStatement deleteStatement(String userId, String libraryId, String bookId) {
+        return DELETE_LOAN_ROW.bind(libraryId, bookId, userId);
+    }
+
+    /*
+     * Applied only if the user is still queued since queuedSince, as DEQUEUE_BOOK.
+     */
+    BoundStatement dequeueStatement(String userId, String libraryId, String bookId, Date since, Date dueDate, Date queuedSince) {
+        return DEQUEUE_LOAN_ROW.bind(since, dueDate, libraryId, bookId, userId, queuedSince);
+    }
+
+    BoundStatement unrentStatement(String userId, String libraryId, String bookId, Date since) throws BackendException {
+        return UNRENT_LOAN_ROW.get().bind(session.getQueueTtlSeconds(), since, libraryId, bookId, userId);
+    }
+
+    /*
+     * Not get(): with fast_start the first use prepares the statement, and this may run on an I/O thread.
+     */
+    CompletableFuture<BoundStatement> unrentStatementAsync(String userId, String libraryId, String bookId, Date since) {
+        return UNRENT_LOAN_ROW.getAsync().thenApply(statement -> statement.bind(session.getQueueTtlSeconds(), since, libraryId, bookId, userId));
+    }
+
+    BoundStatement loanStatement(UserLoan loan) {
+        switch (loan.getStatus()) {
+            case UserLoan.RENTED:
+                return rentedStatement(loan.getUserId(), loan.getLibraryId(), loan.getBookId(), loan.getSince(), loan.getDueDate());
+            case UserLoan.QUEUED:
+                return queuedStatement(loan.getUserId(), loan.getLibraryId(), loan.getBookId(), loan.getSince());
+            default:
+                return deleteStatement(loan.getUserId(), loan.getLibraryId(), loan.getBookId());
+        }
+    }
+
+    /*
+     * The changes of one book as a single statement, or a single-partition unlogged batch.
+     */
+    Statement loansStatement(List<UserLoan> loans) {
+        if (loans.size() == 1) return loanStatement(loans.get(0));
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (UserLoan loan : loans) {
+            batch.add(loanStatement(loan));
+        }
+        return batch;
+    }
+
+    /*
+     * Unconditional loan changes: one unlogged batch per book, all in parallel.
+     */
+    CompletableFuture<Void> writeAsync(List<UserLoan> loans) {
+        Map<List<String>, List<UserLoan>> byBook = new HashMap<>();
+        for (UserLoan loan : loans) {
+            byBook.computeIfAbsent(List.of(loan.getLibraryId(), loan.getBookId()), key -> new ArrayList<>()).add(loan);
+        }
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        for (List<UserLoan> book : byBook.values()) {
+            writes.add(session.executeQueryAsync(loansStatement(book)));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    //----------------------------LOAN LAYOUT MIGRATION--------------------------------------------------------------------------
+
+    /*
+     * Makes the book_loans partition of the book match its library_data row (see LoanLayoutMigration):
+     * book_count, one row per renter and queued user and no other rows. Rows that already match are
+     * not rewritten, so a second run only touches the books that changed in between. The changes go
+     * out as single-partition unlogged batches of at most MAX_LOANS_PER_BATCH statements.
+     *
+     * Returns the number of loan rows written or deleted.
+     */
+    CompletableFuture<Integer> copyAsync(Book book) {
+        String libraryId = book.getLibraryId();
+        String bookId = book.getBookId();
+        BoundStatement bs = new BoundStatement(SELECT_BOOK_LOANS);
+        bs.bind(libraryId, bookId);
+        return session.executeQueryAsync(bs).thenCompose(rs -> session.fetchAllAsync(rs, new ArrayList<>())).thenCompose(rows -> {
+            Book copied = Book.fromLoanRows(libraryId, bookId, rows);
+            List<Statement> changes = new ArrayList<>();
+            for (UserLoan loan : session.expectedLoans(book)) {
+                UserLoan current = copied == null ? null : session.expectedLoan(loan.getUserId(), copied);
+                if (current == null || !BackendSession.sameLoan(current, loan)) {
+                    changes.add(loanStatement(loan));
+                }
+            }
+            if (copied != null) {
+                for (UserLoan loan : session.expectedLoans(copied)) {
+                    if (book.status(loan.getUserId()) == 0) {
+                        changes.add(deleteStatement(loan.getUserId(), libraryId, bookId));
+                    }
+                }
+            }
+            int loans = changes.size();
+            if (copied == null || copied.getBookCount() != book.getBookCount()) {
+                changes.add(bookCountStatement(libraryId, bookId, book.getBookCount()));
+            }
+
+            List<CompletableFuture<?>> writes = new ArrayList<>();
+            for (int from = 0; from < changes.size(); from += MAX_LOANS_PER_BATCH) {
+                BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                batch.addAll(changes.subList(from, Math.min(from + MAX_LOANS_PER_BATCH, changes.size())));
+                writes.add(session.executeQueryAsync(batch));
+            }
+            return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> loans);
+        });
+    }
+}
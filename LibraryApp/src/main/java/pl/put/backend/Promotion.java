@@ -0,0 +1,17 @@
+package pl.put.backend;
+
+/*
+ * Who moves waiting users into copies that became free, in RentMode.VALIDATE.
+ *
+ * CLIENT - every rent, return and status check runs validate() and dequeues the oldest users itself;
+ *          concurrent clients race each other with DEQUEUE_BOOK.
+ * WORKER - clients only repair over-allocation. A return, or a client that finds waiting users next
+ *          to a free copy, writes a promotion_events row instead, and a PromotionWorker that owns the
+ *          event's range promotes once per book.
+ *
+ * RentMode.LWT hands a returned copy over in the same conditional write and ignores this setting.
+ */
+public enum Promotion {
+    CLIENT,
+    WORKER
+}
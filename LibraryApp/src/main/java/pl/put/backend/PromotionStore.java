@@ -0,0 +1,135 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/*
+ * The promotion_events and promotion_owners statements of one BackendSession, see Promotion.
+ *
+ * Clients publish an event per book to be promoted; PromotionWorker reads the events of the ranges it
+ * holds a lease on and keeps a checkpoint per range. Events of a book always go to the same of the
+ * session's promotion ranges, so a book is promoted by a single process. event_id is a server-side
+ * timeuuid.
+ *
+ * The statements are prepared on first use, so deployments that promote on the client never touch the
+ * promotion tables.
+ */
+class PromotionStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PromotionStore.class);
+
+    private final BackendSession session;
+
+    private PreparedStatement INSERT_PROMOTION_EVENT;
+    private PreparedStatement SELECT_PROMOTION_EVENTS;
+    private PreparedStatement SELECT_PROMOTION_OWNERS;
+    private PreparedStatement SELECT_PROMOTION_CHECKPOINT;
+    private PreparedStatement ACQUIRE_PROMOTION_RANGE;
+    private PreparedStatement RENEW_PROMOTION_RANGE;
+    private PreparedStatement RELEASE_PROMOTION_RANGE;
+    private PreparedStatement SAVE_PROMOTION_CHECKPOINT;
+
+    PromotionStore(BackendSession session) {
+        this.session = session;
+    }
+
+    static int rangeOf(String libraryId, String bookId, int ranges) {
+        CRC32 crc = new CRC32();
+        crc.update(libraryId.getBytes(StandardCharsets.UTF_8));
+        crc.update('/');
+        crc.update(bookId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % ranges);
+    }
+
+    synchronized void prepare() throws BackendException {
+        if (INSERT_PROMOTION_EVENT != null) return;
+        try {
+            SELECT_PROMOTION_EVENTS = session.prepare("SELECT_PROMOTION_EVENTS", "SELECT event_id, library_id, book_id FROM promotion_events WHERE range_id=? AND event_id > ? AND event_id < ? LIMIT ?;", ConsistencyProfile.Kind.LIST);
+            SELECT_PROMOTION_OWNERS = session.prepare("SELECT_PROMOTION_OWNERS", "SELECT range_id, owner, checkpoint FROM promotion_owners;", ConsistencyProfile.Kind.LIST);
+            SELECT_PROMOTION_CHECKPOINT = session.prepare("SELECT_PROMOTION_CHECKPOINT", "SELECT checkpoint FROM promotion_owners WHERE range_id=?;", ConsistencyProfile.Kind.READ);
+            ACQUIRE_PROMOTION_RANGE = session.prepare("ACQUIRE_PROMOTION_RANGE", "UPDATE promotion_owners USING TTL ? SET owner = ? WHERE range_id=? IF owner = null;", ConsistencyProfile.Kind.CAS);
+            RENEW_PROMOTION_RANGE = session.prepare("RENEW_PROMOTION_RANGE", "UPDATE promotion_owners USING TTL ? SET owner = ? WHERE range_id=? IF owner = ?;", ConsistencyProfile.Kind.CAS);
+            RELEASE_PROMOTION_RANGE = session.prepare("RELEASE_PROMOTION_RANGE", "DELETE owner FROM promotion_owners WHERE range_id=? IF owner = ?;", ConsistencyProfile.Kind.CAS);
+            SAVE_PROMOTION_CHECKPOINT = session.prepare("SAVE_PROMOTION_CHECKPOINT", "UPDATE promotion_owners SET checkpoint = ? WHERE range_id=?;", ConsistencyProfile.Kind.WRITE);
+            for (PreparedStatement statement : new PreparedStatement[]{SELECT_PROMOTION_EVENTS, SELECT_PROMOTION_OWNERS, SELECT_PROMOTION_CHECKPOINT, SAVE_PROMOTION_CHECKPOINT}) {
+                statement.setIdempotent(true);
+            }
+            // Assigned last: it marks the statements as prepared. Not idempotent, a retry would add a
+            // second event with a new timeuuid; that one would be harmless, but it is not needed.
+            INSERT_PROMOTION_EVENT = session.prepare("INSERT_PROMOTION_EVENT", "INSERT INTO promotion_events (range_id, event_id, library_id, book_id) VALUES (?, now(), ?, ?);", ConsistencyProfile.Kind.WRITE);
+        } catch (Exception e) {
+            throw new BackendException("Could not prepare statements. " + e.getMessage() + ".", e);
+        }
+
+        logger.info("Promotion statements prepared");
+    }
+
+    void publish(String libraryId, String bookId, int ranges) throws BackendException {
+        session.executeQuery(INSERT_PROMOTION_EVENT.bind(rangeOf(libraryId, bookId, ranges), libraryId, bookId));
+    }
+
+    CompletableFuture<ResultSet> publishAsync(String libraryId, String bookId, int ranges) {
+        return session.executeQueryAsync(INSERT_PROMOTION_EVENT.bind(rangeOf(libraryId, bookId, ranges), libraryId, bookId));
+    }
+
+    /*
+     * Events of the range written after the given event_id (null from the start) and before
+     * beforeMillis, oldest first.
+     */
+    CompletableFuture<List<Row>> selectEventsAsync(int rangeId, UUID after, long beforeMillis, int limit) {
+        BoundStatement bs = SELECT_PROMOTION_EVENTS.bind(rangeId, after != null ? after : UUIDs.startOf(0), UUIDs.startOf(beforeMillis), limit);
+        return session.executeQueryAsync(bs).thenCompose(rs -> session.fetchAllAsync(rs, new ArrayList<>()));
+    }
+
+    /*
+     * range_id -> owner, for the ranges that currently have one.
+     */
+    Map<Integer, String> selectOwners() throws BackendException {
+        Map<Integer, String> owners = new HashMap<>();
+        for (Row row : session.executeQuery(SELECT_PROMOTION_OWNERS.bind())) {
+            if (!row.isNull("owner")) {
+                owners.put(row.getInt("range_id"), row.getString("owner"));
+            }
+        }
+        return owners;
+    }
+
+    UUID selectCheckpoint(int rangeId) throws BackendException {
+        Row row = session.executeQuery(SELECT_PROMOTION_CHECKPOINT.bind(rangeId)).one();
+        return row != null ? row.getUUID("checkpoint") : null;
+    }
+
+    boolean acquireRange(int rangeId, String owner, int leaseSeconds) throws BackendException {
+        return session.executeQuery(ACQUIRE_PROMOTION_RANGE.bind(leaseSeconds, owner, rangeId)).wasApplied();
+    }
+
+    boolean renewRange(int rangeId, String owner, int leaseSeconds) throws BackendException {
+        return session.executeQuery(RENEW_PROMOTION_RANGE.bind(leaseSeconds, owner, rangeId, owner)).wasApplied();
+    }
+
+    void releaseRange(int rangeId, String owner) throws BackendException {
+        session.executeQuery(RELEASE_PROMOTION_RANGE.bind(rangeId, owner));
+    }
+
+    /*
+     * A plain write: a worker that lost the range meanwhile can only move the checkpoint back, and
+     * promoting a book again is harmless.
+     */
+    CompletableFuture<ResultSet> saveCheckpointAsync(int rangeId, UUID checkpoint) {
+        return session.executeQueryAsync(SAVE_PROMOTION_CHECKPOINT.bind(checkpoint, rangeId));
+    }
+}
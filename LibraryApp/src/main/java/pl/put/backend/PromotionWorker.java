@@ -0,0 +1,302 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Background queue promotion for Promotion.WORKER (see BackendSession, QUEUE PROMOTION): consumes the
+ * promotion_events of the ranges it owns and runs the validate() loop with dequeues once per book,
+ * however many returns of the book the events hold.
+ *
+ * Ownership: every leaseSeconds / 3 the worker renews its leases in promotion_owners with a
+ * conditional write, takes free ranges up to an even share of the live owners, and gives back the
+ * ranges above it. A range whose renewal could not be confirmed is not polled once its lease may have
+ * run out, so two workers never promote from the same range, except after a lease expired under a
+ * stalled worker; promotions are conditional writes, so even that only costs a repeated read.
+ *
+ * Every owned range is polled every pollMillis for the events after the last one read. event_id is
+ * the coordinator's clock, so an event can become visible after a later one has been read; a second
+ * pass every settleMillis re-reads the events between the checkpoint and settleMillis ago, promotes
+ * the ones not seen yet and only then moves the checkpoint, which survives a change of owner.
+ */
+public class PromotionWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(PromotionWorker.class);
+
+    private static final AtomicInteger instances = new AtomicInteger(0);
+
+    private final BackendSession session;
+
+    private final String owner;
+
+    private final int leaseSeconds;
+
+    private final long pollMillis;
+
+    private final long settleMillis;
+
+    private final int batchSize;
+
+    private final Semaphore inFlight;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Integer, Range> owned = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> balancing;
+
+    /* the events of one owned range that have been read */
+    private static final class Range {
+        final int rangeId;
+        volatile long leaseEndNanos;
+        /* every event up to it has been promoted */
+        UUID checkpoint;
+        UUID lastRead;
+        long lastSettledMillis;
+        /* promoted events after the checkpoint */
+        final Set<UUID> done = new HashSet<>();
+        ScheduledFuture<?> polling;
+
+        Range(int rangeId, UUID checkpoint) {
+            this.rangeId = rangeId;
+            this.checkpoint = checkpoint;
+            this.lastRead = checkpoint;
+            this.lastSettledMillis = System.currentTimeMillis();
+        }
+    }
+
+    public PromotionWorker(BackendSession session, int leaseSeconds, long pollMillis, long settleMillis, int batchSize, int maxInFlight, int threads) {
+        if (leaseSeconds < 3) {
+            throw new IllegalArgumentException("promotion_lease_seconds must be at least 3.");
+        }
+        this.session = session;
+        this.owner = hostName() + "-" + ProcessHandle.current().pid() + "-" + instances.incrementAndGet();
+        this.leaseSeconds = leaseSeconds;
+        this.pollMillis = pollMillis;
+        this.settleMillis = settleMillis;
+        this.batchSize = batchSize;
+        this.inFlight = new Semaphore(maxInFlight);
+        AtomicInteger thread = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread t = new Thread(runnable, "promotion-worker-" + thread.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static PromotionWorker fromProperties(BackendSession session, Properties properties) {
+        return new PromotionWorker(session,
+                Integer.parseInt(properties.getProperty("promotion_lease_seconds", "15")),
+                Long.parseLong(properties.getProperty("promotion_poll_ms", "50")),
+                Long.parseLong(properties.getProperty("promotion_settle_ms", "5000")),
+                Integer.parseInt(properties.getProperty("promotion_batch_size", "500")),
+                Integer.parseInt(properties.getProperty("promotion_in_flight", "64")),
+                Integer.parseInt(properties.getProperty("promotion_threads", "4")));
+    }
+
+    public synchronized void start() throws BackendException {
+        if (balancing != null) return;
+        session.getPromotionStore().prepare();
+        balancing = scheduler.scheduleWithFixedDelay(this::balance, 0, TimeUnit.SECONDS.toMillis(leaseSeconds) / 3, TimeUnit.MILLISECONDS);
+        logger.info("Promotion worker {} started", owner);
+    }
+
+    /*
+     * Stops polling and gives the owned ranges back, so that other workers can take them at once.
+     */
+    public synchronized void stop() {
+        if (balancing == null) return;
+        balancing.cancel(false);
+        balancing = null;
+        for (Range range : new ArrayList<>(owned.values())) {
+            drop(range, true);
+        }
+        scheduler.shutdown();
+        logger.info("Promotion worker {} stopped", owner);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /* range_ids currently owned by this worker */
+    public Set<Integer> getOwnedRanges() {
+        return new HashSet<>(owned.keySet());
+    }
+
+    //------------------OWNERSHIP------------------------------------------------------------------------
+
+    private void balance() {
+        try {
+            for (Range range : new ArrayList<>(owned.values())) {
+                long start = System.nanoTime();
+                if (session.getPromotionStore().renewRange(range.rangeId, owner, leaseSeconds)) {
+                    range.leaseEndNanos = start + TimeUnit.SECONDS.toNanos(leaseSeconds);
+                } else {
+                    logger.warn("Promotion range {} was taken over", range.rangeId);
+                    drop(range, false);
+                }
+            }
+
+            int ranges = session.getPromotionRanges();
+            Map<Integer, String> owners = session.getPromotionStore().selectOwners();
+            Set<String> live = new HashSet<>(owners.values());
+            live.add(owner);
+            int share = (ranges + live.size() - 1) / live.size();
+
+            for (int rangeId = 0; rangeId < ranges && owned.size() < share; rangeId++) {
+                if (owners.containsKey(rangeId) || owned.containsKey(rangeId)) continue;
+                long start = System.nanoTime();
+                if (session.getPromotionStore().acquireRange(rangeId, owner, leaseSeconds)) {
+                    Range range = new Range(rangeId, session.getPromotionStore().selectCheckpoint(rangeId));
+                    range.leaseEndNanos = start + TimeUnit.SECONDS.toNanos(leaseSeconds);
+                    owned.put(rangeId, range);
+                    range.polling = scheduler.scheduleWithFixedDelay(() -> poll(range), 0, pollMillis, TimeUnit.MILLISECONDS);
+                    logger.info("Promotion range {} taken by {}", rangeId, owner);
+                }
+            }
+            for (Range range : new ArrayList<>(owned.values())) {
+                if (owned.size() <= share) break;
+                drop(range, true);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not balance the promotion ranges. {}.", e.getMessage());
+        }
+    }
+
+    private void drop(Range range, boolean release) {
+        owned.remove(range.rangeId);
+        if (range.polling != null) {
+            range.polling.cancel(false);
+        }
+        if (release) {
+            try {
+                session.getPromotionStore().releaseRange(range.rangeId, owner);
+            } catch (BackendException e) {
+                logger.warn("Could not release promotion range {}. {}.", range.rangeId, e.getMessage());
+            }
+        }
+    }
+
+    //------------------POLLING--------------------------------------------------------------------------
+
+    private void poll(Range range) {
+        try {
+            List<Row> events;
+            do {
+                if (!leased(range)) return;
+                events = await(session.getPromotionStore().selectEventsAsync(range.rangeId, range.lastRead, System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1), batchSize));
+                promote(range, events);
+                if (!events.isEmpty()) {
+                    range.lastRead = events.get(events.size() - 1).getUUID("event_id");
+                }
+            } while (events.size() == batchSize);
+
+            long now = System.currentTimeMillis();
+            if (now - range.lastSettledMillis >= settleMillis) {
+                settle(range, now - settleMillis);
+                range.lastSettledMillis = now;
+            }
+        } catch (Exception e) {
+            logger.warn("Could not poll promotion range {}. {}.", range.rangeId, e.getMessage());
+        }
+    }
+
+    /*
+     * Re-reads the events from the checkpoint to settledBefore, promotes the ones that became visible
+     * late and moves the checkpoint to the last of them.
+     */
+    private void settle(Range range, long settledBefore) throws BackendException {
+        UUID checkpoint = range.checkpoint;
+        List<Row> events;
+        do {
+            if (!leased(range)) return;
+            events = await(session.getPromotionStore().selectEventsAsync(range.rangeId, checkpoint, settledBefore, batchSize));
+            promote(range, events);
+            for (Row event : events) {
+                checkpoint = event.getUUID("event_id");
+                range.done.remove(checkpoint);
+            }
+        } while (events.size() == batchSize);
+
+        if (checkpoint != null && !checkpoint.equals(range.checkpoint)) {
+            range.checkpoint = checkpoint;
+            await(session.getPromotionStore().saveCheckpointAsync(range.rangeId, checkpoint));
+        }
+    }
+
+    /*
+     * Promotes every book of the events not yet done, once per book, at most inFlight books at a time
+     * over all ranges. Fails if any book could not be promoted; the events stay not done and are read
+     * again by the next settle pass.
+     */
+    private void promote(Range range, List<Row> events) throws BackendException {
+        // keyed by List.of(library_id, book_id)
+        Map<List<String>, List<UUID>> books = new LinkedHashMap<>();
+        for (Row event : events) {
+            UUID eventId = event.getUUID("event_id");
+            if (range.done.contains(eventId)) continue;
+            books.computeIfAbsent(List.of(event.getString("library_id"), event.getString("book_id")), k -> new ArrayList<>()).add(eventId);
+        }
+
+        List<CompletableFuture<Book>> promotions = new ArrayList<>(books.size());
+        for (Map.Entry<List<String>, List<UUID>> book : books.entrySet()) {
+            List<UUID> bookEvents = book.getValue();
+            inFlight.acquireUninterruptibly();
+            long start = System.nanoTime();
+            promotions.add(session.promoteBookAsync(book.getKey().get(0), book.getKey().get(1)).whenComplete((promoted, e) -> {
+                inFlight.release();
+                if (e == null) {
+                    session.getMetrics().record(BackendMetrics.Operation.PROMOTE, start);
+                    synchronized (range) {
+                        range.done.addAll(bookEvents);
+                    }
+                }
+            }));
+        }
+        await(CompletableFuture.allOf(promotions.toArray(new CompletableFuture<?>[0])));
+    }
+
+    private boolean leased(Range range) {
+        return owned.get(range.rangeId) == range && System.nanoTime() - range.leaseEndNanos < 0;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws BackendException {
+        try {
+            return future.join();
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof BackendException) {
+                throw (BackendException) cause;
+            }
+            throw new BackendException("Could not promote queued users. " + cause.getMessage() + ".", e);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "worker";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.ResultSet;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Write-behind buffer for the unconditional queue writes (QUEUE_BOOK, and the queue removal of a user
+ * that holds no copy).
+ *
+ * Joins and leaves of one (library_id, book_id) are collected for windowMillis and written as one
+ * combined map update (BackendSession.writeQueueChangesAsync). A leave of a user whose join is still
+ * buffered cancels it, so neither the cell nor its tombstone is ever written. The futures returned by
+ * join/leave complete when the batch holding the change is written; callers wait on them, so an
+ * acknowledged queue change is durable as before, only later.
+ *
+ * Batches of one book are written one after another. Everything that decides from the queue
+ * (validate, settle, release) calls flush first, which writes the open batch at once and waits for it.
+ */
+public class QueueWriteBuffer {
+
+    private static class Batch {
+        final String libraryId;
+        final String bookId;
+        final Map<String, Date> joins = new LinkedHashMap<>();
+        final Set<String> leaves = new LinkedHashSet<>();
+        final CompletableFuture<ResultSet> written = new CompletableFuture<>();
+
+        Batch(String libraryId, String bookId) {
+            this.libraryId = libraryId;
+            this.bookId = bookId;
+        }
+    }
+
+    private static class Lane {
+        Batch open;
+        /* Completes (never exceptionally) when every batch started so far has been written. */
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    }
+
+    private final BackendSession session;
+
+    private final Executor windowExecutor;
+
+    /* keyed by List.of(libraryId, bookId): ids may contain any character, '/' included */
+    private final Map<List<String>, Lane> lanes = new ConcurrentHashMap<>();
+
+    public QueueWriteBuffer(BackendSession session, long windowMillis) {
+        this.session = session;
+        this.windowExecutor = CompletableFuture.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Returns null when queue_write_behind is false (the default).
+     */
+    public static QueueWriteBuffer fromProperties(BackendSession session, Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty("queue_write_behind", "false"))) return null;
+        return new QueueWriteBuffer(session, Long.parseLong(properties.getProperty("queue_write_behind_window_ms", "20")));
+    }
+
+    /*
+     * A repeated join keeps the earlier date, so a buffered user does not lose their place.
+     */
+    public CompletableFuture<ResultSet> join(String userId, String libraryId, String bookId, Date since) {
+        return change(libraryId, bookId, batch -> {
+            batch.leaves.remove(userId);
+            batch.joins.putIfAbsent(userId, since);
+        });
+    }
+
+    /*
+     * Joins are only issued for users that were not in the queue, so cancelling a buffered join leaves
+     * nothing to delete.
+     */
+    public CompletableFuture<ResultSet> leave(String userId, String libraryId, String bookId) {
+        return change(libraryId, bookId, batch -> {
+            if (batch.joins.remove(userId) == null) {
+                batch.leaves.add(userId);
+            }
+        });
+    }
+
+    /*
+     * Removes the user's join from the open batch, if it is still there. Returns false when the join was
+     * never buffered or is already being written.
+     */
+    public boolean cancelJoin(String userId, String libraryId, String bookId) {
+        boolean[] cancelled = new boolean[1];
+        lanes.computeIfPresent(key(libraryId, bookId), (k, l) -> {
+            cancelled[0] = l.open != null && l.open.joins.remove(userId) != null;
+            return l;
+        });
+        return cancelled[0];
+    }
+
+    /*
+     * Writes the open batch of the book now and completes when all its earlier batches are written.
+     */
+    public CompletableFuture<Void> flush(String libraryId, String bookId) {
+        Runnable[] write = new Runnable[1];
+        AtomicReference<CompletableFuture<Void>> tail = new AtomicReference<>(CompletableFuture.completedFuture(null));
+        lanes.computeIfPresent(key(libraryId, bookId), (k, l) -> {
+            if (l.open != null) {
+                write[0] = start(k, l);
+            }
+            tail.set(l.tail);
+            return l;
+        });
+        if (write[0] != null) {
+            write[0].run();
+        }
+        return tail.get();
+    }
+
+    /* Number of books with buffered or in-flight queue changes. */
+    public int activeLanes() {
+        return lanes.size();
+    }
+
+    private interface Change {
+        void apply(Batch batch);
+    }
+
+    private CompletableFuture<ResultSet> change(String libraryId, String bookId, Change change) {
+        List<String> key = key(libraryId, bookId);
+        Batch[] target = new Batch[1];
+        boolean[] opened = new boolean[1];
+        // Batches are opened, changed and detached inside compute, so a change is never applied to a
+        // batch that is already being written.
+        lanes.compute(key, (k, current) -> {
+            Lane l = current != null ? current : new Lane();
+            if (l.open == null) {
+                l.open = new Batch(libraryId, bookId);
+                opened[0] = true;
+            }
+            change.apply(l.open);
+            target[0] = l.open;
+            return l;
+        });
+        Batch batch = target[0];
+        if (opened[0]) {
+            windowExecutor.execute(() -> {
+                Runnable[] write = new Runnable[1];
+                lanes.computeIfPresent(key, (k, l) -> {
+                    if (l.open == batch) {
+                        write[0] = start(k, l);
+                    }
+                    return l;
+                });
+                if (write[0] != null) {
+                    write[0].run();
+                }
+            });
+        }
+        return batch.written;
+    }
+
+    /*
+     * Detaches the open batch and queues it behind the lane's earlier batches. Called inside compute for
+     * the key; the returned task starts the write and must be run after compute returned.
+     */
+    private Runnable start(List<String> key, Lane lane) {
+        Batch batch = lane.open;
+        lane.open = null;
+        CompletableFuture<Void> previous = lane.tail;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        lane.tail = done;
+        return () -> {
+            previous.thenCompose(ignored -> write(batch)).thenRun(() -> done.complete(null));
+            done.thenRun(() -> lanes.computeIfPresent(key, (k, l) -> l.open == null && l.tail == done ? null : l));
+        };
+    }
+
+    private CompletableFuture<Void> write(Batch batch) {
+        CompletableFuture<ResultSet> write = batch.joins.isEmpty() && batch.leaves.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : session.writeQueueChangesAsync(batch.libraryId, batch.bookId, batch.joins, batch.leaves);
+        return write.handle((rs, e) -> {
+            if (e != null) {
+                batch.written.completeExceptionally(e);
+            } else {
+                batch.written.complete(rs);
+            }
+            return null;
+        });
+    }
+
+    private static List<String> key(String libraryId, String bookId) {
+        return List.of(libraryId, bookId);
+    }
+}
@@ -0,0 +1,59 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+
+/*
+ * Speculative executions for SELECTs only, planned by the wrapped policy.
+ *
+ * The driver speculates on every statement marked idempotent, but here idempotent means safe to
+ * retry after a timeout (see CustomRetryPolicy), which also covers conditional writes such as
+ * DEQUEUE_BOOK and UNRENT_BOOK and the index writes. A speculative copy of a conditional write is a
+ * second Paxos round racing the first on the same partition, so writes and batches never get one.
+ */
+public class ReadSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy {
+
+    private final SpeculativeExecutionPolicy reads;
+
+    public ReadSpeculativeExecutionPolicy(SpeculativeExecutionPolicy reads) {
+        this.reads = reads;
+    }
+
+    @Override
+    public void init(Cluster cluster) {
+        reads.init(cluster);
+    }
+
+    @Override
+    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+        if (isRead(statement)) {
+            return reads.newPlan(loggedKeyspace, statement);
+        }
+        return NoSpeculativeExecutionPolicy.INSTANCE.newPlan(loggedKeyspace, statement);
+    }
+
+    @Override
+    public void close() {
+        reads.close();
+    }
+
+    static boolean isRead(Statement statement) {
+        String query;
+        if (statement instanceof BoundStatement) {
+            query = ((BoundStatement) statement).preparedStatement().getQueryString();
+        } else if (statement instanceof RegularStatement) {
+            query = ((RegularStatement) statement).getQueryString();
+        } else {
+            return false;
+        }
+        int start = 0;
+        while (start < query.length() && Character.isWhitespace(query.charAt(start))) {
+            start++;
+        }
+        return query.regionMatches(true, start, "SELECT", 0, 6);
+    }
+}
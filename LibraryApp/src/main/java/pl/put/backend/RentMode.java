@@ -0,0 +1,11 @@
+package pl.put.backend;
+
+/*
+ * VALIDATE - rent/queue with unconditional writes, then repair over-allocation in validate().
+ * LWT      - claim a copy with a single conditional write on the rented_count column;
+ *            validate() only repairs rows that are found inconsistent.
+ */
+public enum RentMode {
+    VALIDATE,
+    LWT
+}
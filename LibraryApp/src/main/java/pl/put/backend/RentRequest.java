@@ -0,0 +1,34 @@
+package pl.put.backend;
+
+/*
+ * One user and one book in a bulk rentBooks/returnBooks call.
+ */
+public class RentRequest {
+
+    private final String userId;
+    private final String libraryId;
+    private final String bookId;
+
+    public RentRequest(String userId, String libraryId, String bookId) {
+        this.userId = userId;
+        this.libraryId = libraryId;
+        this.bookId = bookId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getLibraryId() {
+        return libraryId;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    @Override
+    public String toString() {
+        return userId + "@" + libraryId + "/" + bookId;
+    }
+}
@@ -0,0 +1,47 @@
+package pl.put.backend;
+
+/*
+ * Outcome of one RentRequest. The status has the same meaning as in rentBook/returnBook:
+ * 0 - not rented, 1 - rented, 2 - in queue. For returns it is the status before the return.
+ */
+public class RentResult {
+
+    private final RentRequest request;
+    private final int status;
+    private final Throwable error;
+
+    private RentResult(RentRequest request, int status, Throwable error) {
+        this.request = request;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static RentResult of(RentRequest request, int status) {
+        return new RentResult(request, status, null);
+    }
+
+    public static RentResult failed(RentRequest request, Throwable error) {
+        return new RentResult(request, -1, error);
+    }
+
+    public RentRequest getRequest() {
+        return request;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return request + (isSuccess() ? " -> " + status : " -> " + error.getMessage());
+    }
+}
@@ -0,0 +1,75 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.Row;
+
+import java.util.Date;
+
+/*
+ * One entry of the loans_by_user table. The status has the same meaning as in isBookRented:
+ * 1 - rented (dueDate is set), 2 - in queue since the given date. Status 0 is only used for
+ * entries that are being removed.
+ */
+public class UserLoan {
+
+    public static final int REMOVED = 0;
+    public static final int RENTED = 1;
+    public static final int QUEUED = 2;
+
+    private final String userId;
+    private final String libraryId;
+    private final String bookId;
+    private final int status;
+    private final Date since;
+    private final Date dueDate;
+
+    public UserLoan(String userId, String libraryId, String bookId, int status, Date since, Date dueDate) {
+        this.userId = userId;
+        this.libraryId = libraryId;
+        this.bookId = bookId;
+        this.status = status;
+        this.since = since;
+        this.dueDate = dueDate;
+    }
+
+    static UserLoan from(Row row) {
+        return new UserLoan(row.getString("user_id"), row.getString("library_id"), row.getString("book_id"),
+                row.getInt("status"), row.getTimestamp("since"), row.getTimestamp("due_date"));
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getLibraryId() {
+        return libraryId;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Date getSince() {
+        return since;
+    }
+
+    public Date getDueDate() {
+        return dueDate;
+    }
+
+    public boolean isRented() {
+        return status == RENTED;
+    }
+
+    public boolean isQueued() {
+        return status == QUEUED;
+    }
+
+    @Override
+    public String toString() {
+        return userId + "@" + libraryId + "/" + bookId + (isRented() ? " rented, due " + dueDate : " queued since " + since);
+    }
+}
@@ -0,0 +1,29 @@
+package pl.put.backend;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Threads that run the blocking rent/return flows, see BackendSession.submitRentBook.
+ *
+ * PLATFORM is a fixed pool, so the number of threads bounds the concurrency. VIRTUAL starts one
+ * virtual thread per operation; they unmount while a request is in flight, so thousands of renters
+ * cost a few carrier threads and the driver's connection pool becomes the limit instead.
+ */
+public enum Workers {
+    PLATFORM,
+    VIRTUAL;
+
+    public ExecutorService newExecutor(String name, int threads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+        }
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,184 @@
+package pl.put.catalog;
+
+import org.apache.cassandra.io.sstable.CQLSSTableWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.put.backend.BackendException;
+import pl.put.backend.BackendSession;
+import pl.put.backend.LoanLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bulk import of a library catalogue, started from Main with "import" as the first argument.
+ *
+ * SSTABLE writes library_data SSTables offline with CQLSSTableWriter, without touching the cluster;
+ * load them with "sstableloader -d <host> <out>/<keyspace>/library_data". Rows are buffered and
+ * sorted in buffer_mb chunks, so every chunk becomes one SSTable.
+ *
+ * CQL runs INSERT_BOOK through the session with at most in_flight inserts outstanding. It needs no
+ * access to the nodes' file system, but every row is a round trip.
+ *
+ * Books of the libraries in sharded_libraries go to library_data_sharded instead, in both modes.
+ *
+ * With loan_layout dual or rows, book_count also goes to the static column of book_loans (see
+ * LoanLayout), in both modes.
+ */
+public class CatalogImport {
+
+    private static final Logger logger = LoggerFactory.getLogger(CatalogImport.class);
+
+    private static final String LIBRARY_DATA_SCHEMA = "CREATE TABLE %s.library_data (library_id text, book_id text, book_count int, "
+            + "queue map<text,timestamp>, rented_date map<text,timestamp>, due_date map<text,timestamp>, rented_count int, "
+            + "PRIMARY KEY ((library_id), book_id))";
+    private static final String LIBRARY_DATA_INSERT = "INSERT INTO %s.library_data (library_id, book_id, book_count) VALUES (?, ?, ?)";
+
+    private static final String LIBRARY_DATA_SHARDED_SCHEMA = "CREATE TABLE %s.library_data_sharded (library_id text, shard int, book_id text, book_count int, "
+            + "queue map<text,timestamp>, rented_date map<text,timestamp>, due_date map<text,timestamp>, rented_count int, "
+            + "PRIMARY KEY ((library_id, shard), book_id))";
+    private static final String LIBRARY_DATA_SHARDED_INSERT = "INSERT INTO %s.library_data_sharded (library_id, shard, book_id, book_count) VALUES (?, ?, ?, ?)";
+
+    private static final String BOOK_LOANS_SCHEMA = "CREATE TABLE %s.book_loans (library_id text, book_id text, book_count int static, "
+            + "user_id text, status int, since timestamp, due_date timestamp, PRIMARY KEY ((library_id, book_id), user_id))";
+    private static final String BOOK_LOANS_INSERT = "INSERT INTO %s.book_loans (library_id, book_id, book_count) VALUES (?, ?, ?)";
+
+    private final BackendSession session;
+    private final String keyspace;
+    private final ImportOptions options;
+
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private long start;
+    private long lastReport;
+
+    public CatalogImport(BackendSession session, String keyspace, ImportOptions options) {
+        this.session = session;
+        this.keyspace = keyspace;
+        this.options = options;
+    }
+
+    public void run() throws BackendException, IOException {
+        logger.info("Import: {}", options);
+        start = System.nanoTime();
+        lastReport = start;
+        if (options.mode == ImportOptions.Mode.SSTABLE) {
+            checkSSTableWriter();
+            writeSSTables();
+        } else {
+            insert();
+        }
+        System.out.println(report(System.nanoTime() - start));
+    }
+
+    /*
+     * cassandra-all is only on the classpath of gradle run -Pmyargs="import ...", not on the one the
+     * application is distributed with.
+     */
+    private static void checkSSTableWriter() throws IOException {
+        try {
+            Class.forName("org.apache.cassandra.io.sstable.CQLSSTableWriter", false, CatalogImport.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("mode=sstable needs cassandra-all on the classpath (the sstable configuration in build.gradle).", e);
+        }
+    }
+
+    private void writeSSTables() throws IOException {
+        boolean loanRows = session.getLoanLayout() != LoanLayout.MAPS;
+        CQLSSTableWriter libraryData = writer("library_data", LIBRARY_DATA_SCHEMA, LIBRARY_DATA_INSERT);
+        CQLSSTableWriter libraryDataSharded = session.getShardedLibraries().isEmpty() ? null
+                : writer("library_data_sharded", LIBRARY_DATA_SHARDED_SCHEMA, LIBRARY_DATA_SHARDED_INSERT);
+        CQLSSTableWriter bookLoans = loanRows ? writer("book_loans", BOOK_LOANS_SCHEMA, BOOK_LOANS_INSERT) : null;
+        try (CatalogReader reader = new CatalogReader(options.file, options.delimiter, options.header)) {
+            while (reader.next()) {
+                try {
+                    int shards = session.shardsOf(reader.getLibraryId());
+                    if (shards > 0) {
+                        libraryDataSharded.addRow(reader.getLibraryId(), BackendSession.shardOf(reader.getBookId(), shards), reader.getBookId(), reader.getBookCount());
+                    } else {
+                        libraryData.addRow(reader.getLibraryId(), reader.getBookId(), reader.getBookCount());
+                    }
+                    if (bookLoans != null) {
+                        bookLoans.addRow(reader.getLibraryId(), reader.getBookId(), reader.getBookCount());
+                    }
+                } catch (Exception e) {
+                    throw new IOException("Line " + reader.getLine() + ": " + e.getMessage(), e);
+                }
+                rows.increment();
+                progress();
+            }
+        } finally {
+            libraryData.close();
+            if (libraryDataSharded != null) {
+                libraryDataSharded.close();
+            }
+            if (bookLoans != null) {
+                bookLoans.close();
+            }
+        }
+    }
+
+    private CQLSSTableWriter writer(String table, String schema, String insert) throws IOException {
+        File directory = new File(options.out, keyspace + File.separator + table);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory + ".");
+        }
+        return CQLSSTableWriter.builder()
+                .inDirectory(directory)
+                .forTable(String.format(schema, keyspace))
+                .using(String.format(insert, keyspace))
+                .withBufferSizeInMB(options.bufferMegabytes)
+                .build();
+    }
+
+    private void insert() throws BackendException, IOException {
+        Semaphore permits = new Semaphore(options.inFlight);
+        AtomicReference<Throwable> firstError = new AtomicReference<>();
+        try (CatalogReader reader = new CatalogReader(options.file, options.delimiter, options.header)) {
+            while (reader.next()) {
+                permits.acquireUninterruptibly();
+                session.upsertBookCassandraAsync(reader.getLibraryId(), reader.getBookId(), reader.getBookCount()).whenComplete((rs, e) -> {
+                    if (e != null) {
+                        failed.increment();
+                        if (firstError.compareAndSet(null, e)) {
+                            logger.error("Insert failed", e);
+                        }
+                    } else {
+                        rows.increment();
+                    }
+                    permits.release();
+                });
+                progress();
+            }
+        }
+        permits.acquireUninterruptibly(options.inFlight);
+        permits.release(options.inFlight);
+    }
+
+    private void progress() {
+        long now = System.nanoTime();
+        if (now - lastReport >= TimeUnit.SECONDS.toNanos(options.reportSeconds)) {
+            lastReport = now;
+            double seconds = (now - start) / 1e9;
+            logger.info("{} row(s), {} rows/s", rows.sum(), String.format("%.0f", rows.sum() / seconds));
+        }
+    }
+
+    private String report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder builder = new StringBuilder();
+        builder.append("Import: ").append(options).append('\n');
+        builder.append(String.format("Rows: %d written, %d failed, in %.1fs (%.1f rows/s)%n", rows.sum(), failed.sum(), seconds, rows.sum() / seconds));
+        if (options.mode == ImportOptions.Mode.SSTABLE) {
+            builder.append(String.format("Load with: sstableloader -d <host> %s%n", new File(options.out, keyspace + File.separator + "library_data")));
+            if (!session.getShardedLibraries().isEmpty()) {
+                builder.append(String.format("Load with: sstableloader -d <host> %s%n", new File(options.out, keyspace + File.separator + "library_data_sharded")));
+            }
+        }
+        return builder.toString();
+    }
+}
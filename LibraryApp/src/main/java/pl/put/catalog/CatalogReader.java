@@ -0,0 +1,113 @@
+package pl.put.catalog;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/*
+ * Streams catalogue rows "library_id,book_id,book_count" from a delimited text file, one line at a
+ * time, so the size of the catalogue does not matter. Blank lines and lines starting with # are
+ * skipped. Fields may be wrapped in double quotes ("" inside quotes is a quote).
+ */
+public class CatalogReader implements Closeable {
+
+    private final BufferedReader reader;
+    private final char delimiter;
+    private long line;
+
+    private String libraryId;
+    private String bookId;
+    private int bookCount;
+
+    public CatalogReader(String file, char delimiter, boolean header) throws IOException {
+        this.reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+        this.delimiter = delimiter;
+        if (header) {
+            reader.readLine();
+            line++;
+        }
+    }
+
+    /*
+     * Moves to the next row; false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        String text;
+        while ((text = reader.readLine()) != null) {
+            line++;
+            if (text.isBlank() || text.startsWith("#")) continue;
+            String[] fields = split(text);
+            if (fields == null) {
+                throw new IOException("Line " + line + ": expected library_id" + delimiter + "book_id" + delimiter + "book_count.");
+            }
+            libraryId = fields[0];
+            bookId = fields[1];
+            try {
+                bookCount = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + line + ": book_count is not a number.", e);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public String getLibraryId() {
+        return libraryId;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public int getBookCount() {
+        return bookCount;
+    }
+
+    public long getLine() {
+        return line;
+    }
+
+    /*
+     * The first three fields, or null when the line has fewer.
+     */
+    private String[] split(String text) {
+        String[] fields = new String[3];
+        StringBuilder field = new StringBuilder();
+        int count = 0;
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                if (count == fields.length) break;
+                fields[count++] = field.toString().trim();
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (count < fields.length) {
+            fields[count++] = field.toString().trim();
+        }
+        return count == fields.length ? fields : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,65 @@
+package pl.put.catalog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Settings of a catalogue import, parsed from key=value arguments, e.g.
+ * gradle run -Pmyargs="import file=catalogue.csv mode=sstable out=bin/sstables"
+ */
+public class ImportOptions {
+
+    public enum Mode {
+        /* SSTables written offline with CQLSSTableWriter, streamed in afterwards with sstableloader */
+        SSTABLE,
+        /* INSERT_BOOK through the session, in parallel */
+        CQL
+    }
+
+    String file;
+    Mode mode = Mode.CQL;
+    char delimiter = ',';
+    boolean header = true;
+    /* SSTABLE: output directory, tables end up in out/<keyspace>/<table> */
+    String out = "bin/sstables";
+    int bufferMegabytes = 128;
+    /* CQL: inserts in flight at once */
+    int inFlight = 256;
+    int reportSeconds = 5;
+
+    public static ImportOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                values.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+            }
+        }
+
+        ImportOptions options = new ImportOptions();
+        options.file = values.get("file");
+        options.mode = Mode.valueOf(values.getOrDefault("mode", options.mode.name()).toUpperCase());
+        String delimiter = values.getOrDefault("delimiter", String.valueOf(options.delimiter));
+        options.delimiter = delimiter.equals("tab") ? '\t' : delimiter.charAt(0);
+        options.header = Boolean.parseBoolean(values.getOrDefault("header", String.valueOf(options.header)));
+        options.out = values.getOrDefault("out", options.out);
+        options.bufferMegabytes = Integer.parseInt(values.getOrDefault("buffer_mb", String.valueOf(options.bufferMegabytes)));
+        options.inFlight = Integer.parseInt(values.getOrDefault("in_flight", String.valueOf(options.inFlight)));
+        options.reportSeconds = Integer.parseInt(values.getOrDefault("report_seconds", String.valueOf(options.reportSeconds)));
+
+        if (options.file == null) {
+            throw new IllegalArgumentException("file is required, e.g. file=catalogue.csv");
+        }
+        if (options.inFlight <= 0) {
+            throw new IllegalArgumentException("in_flight must be positive");
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("file=%s mode=%s delimiter=%s header=%s %s", file, mode,
+                delimiter == '\t' ? "tab" : String.valueOf(delimiter), header,
+                mode == Mode.SSTABLE ? "out=" + out + " buffer_mb=" + bufferMegabytes : "in_flight=" + inFlight);
+    }
+}
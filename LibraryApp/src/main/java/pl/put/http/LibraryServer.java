@@ -0,0 +1,461 @@
+package pl.put.http;
+
+import com.datastax.driver.core.Row;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.put.backend.BackendException;
+import pl.put.backend.BackendSession;
+import pl.put.backend.Book;
+import pl.put.backend.BookPage;
+import pl.put.backend.RentRequest;
+import pl.put.backend.RentResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * HTTP/JSON front-end for BackendSession, started from Main with "serve" as the first argument.
+ *
+ *   GET  /libraries/{library}/books?pageSize=&pageToken=&loans=   one page of the library
+ *   GET  /libraries/{library}/books/{book}?user=                  status of the user for the book
+ *   POST /libraries/{library}/books/{book}/rent?user=             rentBook
+ *   POST /libraries/{library}/books/{book}/return?user=           returnBook
+ *   POST /bulk/rent, /bulk/return                                 [{"userId", "libraryId", "bookId"}, ...]
+ *
+ * Statuses are those of the blocking API: 0 - not rented, 1 - rented, 2 - in queue.
+ *
+ * Handlers only parse the request and start the async BackendSession call; the response is written
+ * from the handler pool when the future completes, so no thread waits on Cassandra. At most
+ * maxInFlight requests are being served at once and the ones above that get 429 with Retry-After
+ * straight away instead of queueing behind a slow cluster. The handler pool has queueSize slots;
+ * when they are full a new request, or a response that is ready to be written, is handed to a single
+ * rejection thread (with queueSize slots of its own) that answers it with 503 and Retry-After. When
+ * that one is full too the connection is closed without a response. The accepting thread and the
+ * driver's I/O threads therefore never parse a request or write to a client.
+ *
+ * Connections are kept alive between requests (HTTP/1.1); the JDK server closes idle ones after
+ * sun.net.httpserver.idleInterval seconds.
+ */
+public class LibraryServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryServer.class);
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int MAX_PAGE_SIZE = 5000;
+
+    private static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    /* set while the rejection thread answers an exchange the full handler pool has rejected */
+    private static final ThreadLocal<Boolean> busy = new ThreadLocal<>();
+
+    private final BackendSession session;
+    private final int port;
+    private final int threads;
+    private final int queueSize;
+    private final int maxInFlight;
+    private final int maxBulkRequests;
+
+    private final Semaphore inFlight;
+    private final LongAdder served = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor rejections;
+
+    public LibraryServer(BackendSession session, int port, int threads, int queueSize, int maxInFlight, int maxBulkRequests) {
+        this.session = session;
+        this.port = port;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.queueSize = queueSize;
+        this.maxInFlight = maxInFlight;
+        this.maxBulkRequests = maxBulkRequests;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public static LibraryServer fromProperties(BackendSession session, Properties properties) {
+        return new LibraryServer(session,
+                Integer.parseInt(properties.getProperty("http_port", "8080")),
+                Integer.parseInt(properties.getProperty("http_threads", "0")),
+                Integer.parseInt(properties.getProperty("http_queue_size", "1024")),
+                Integer.parseInt(properties.getProperty("http_max_in_flight", "2048")),
+                Integer.parseInt(properties.getProperty("http_max_bulk_requests", "1000")));
+    }
+
+    public void start() throws IOException {
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "http-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        rejections = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "http-rejected");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+
+        server = HttpServer.create(new InetSocketAddress(port), queueSize);
+        server.setExecutor(this::dispatch);
+        server.createContext("/", this::handle);
+        server.start();
+        logger.info("Listening on port {} with {} handler thread(s), at most {} request(s) in flight", getPort(), threads, maxInFlight);
+    }
+
+    public void stop(int delaySeconds) {
+        if (server != null) {
+            server.stop(delaySeconds);
+            executor.shutdown();
+            rejections.shutdown();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getServedCount() {
+        return served.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /*
+     * An exchange the handler pool rejects runs on the rejection thread, where handle() only writes the
+     * 503. When that thread is full as well the RejectedExecutionException goes back to the accepting
+     * thread, and the JDK server closes the connection.
+     */
+    private void dispatch(Runnable exchange) {
+        try {
+            executor.execute(exchange);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            rejections.execute(() -> {
+                busy.set(Boolean.TRUE);
+                try {
+                    exchange.run();
+                } finally {
+                    busy.remove();
+                }
+            });
+        }
+    }
+
+    private void handle(HttpExchange exchange) {
+        if (busy.get() != null) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, error("Server busy."));
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            rejected.increment();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 429, error("Too many requests in flight."));
+            return;
+        }
+        CompletableFuture<String> response;
+        try {
+            response = route(exchange);
+        } catch (Exception e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        // Off the driver's I/O threads: writing the response may block on a slow client.
+        response.whenComplete((body, e) -> {
+            try {
+                executor.execute(() -> complete(exchange, body, e));
+            } catch (RejectedExecutionException rejectedExecution) {
+                rejected.increment();
+                try {
+                    rejections.execute(() -> {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                        complete(exchange, null, new RequestException(503, "Server busy."));
+                    });
+                } catch (RejectedExecutionException full) {
+                    // nothing is written: closing before the headers are sent drops the connection
+                    inFlight.release();
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    private void complete(HttpExchange exchange, String body, Throwable e) {
+        inFlight.release();
+        served.increment();
+        if (e == null) {
+            respond(exchange, 200, body);
+        } else {
+            respondError(exchange, e);
+        }
+    }
+
+    private CompletableFuture<String> route(HttpExchange exchange) throws IOException {
+        URI uri = exchange.getRequestURI();
+        List<String> path = segments(uri.getRawPath());
+        Map<String, String> query = query(uri.getRawQuery());
+        String method = exchange.getRequestMethod();
+
+        if (path.size() >= 3 && path.get(0).equals("libraries") && path.get(2).equals("books")) {
+            String libraryId = path.get(1);
+            if (path.size() == 3) {
+                requireMethod(method, "GET");
+                return listBooks(libraryId, query);
+            }
+            String bookId = path.get(3);
+            if (path.size() == 4) {
+                requireMethod(method, "GET");
+                String userId = required(query, "user");
+                return session.checkBookStatusAsync(userId, libraryId, bookId).thenApply(status -> status(userId, libraryId, bookId, status));
+            }
+            if (path.size() == 5 && path.get(4).equals("rent")) {
+                requireMethod(method, "POST");
+                String userId = required(query, "user");
+                return session.rentBookAsync(userId, libraryId, bookId).thenApply(status -> status(userId, libraryId, bookId, status));
+            }
+            if (path.size() == 5 && path.get(4).equals("return")) {
+                requireMethod(method, "POST");
+                String userId = required(query, "user");
+                return session.returnBookAsync(userId, libraryId, bookId).thenApply(status -> status(userId, libraryId, bookId, status));
+            }
+        }
+        if (path.size() == 2 && path.get(0).equals("bulk") && (path.get(1).equals("rent") || path.get(1).equals("return"))) {
+            requireMethod(method, "POST");
+            List<RentRequest> requests = rentRequests(readBody(exchange));
+            CompletableFuture<List<RentResult>> results = path.get(1).equals("rent")
+                    ? session.rentBooksAsync(requests)
+                    : session.returnBooksAsync(requests);
+            return results.thenApply(LibraryServer::results);
+        }
+        throw new RequestException(404, "No such resource.");
+    }
+
+    private CompletableFuture<String> listBooks(String libraryId, Map<String, String> query) {
+        int pageSize = DEFAULT_PAGE_SIZE;
+        if (query.containsKey("pageSize")) {
+            try {
+                pageSize = Integer.parseInt(query.get("pageSize"));
+            } catch (NumberFormatException e) {
+                throw new RequestException(400, "pageSize must be a number.");
+            }
+            if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                throw new RequestException(400, "pageSize must be between 1 and " + MAX_PAGE_SIZE + ".");
+            }
+        }
+        boolean withLoans = Boolean.parseBoolean(query.get("loans"));
+        return session.listBooksAsync(libraryId, pageSize, query.get("pageToken"), withLoans).thenApply(page -> page(page, withLoans));
+    }
+
+    //---------------------------REQUESTS------------------------------------------------------------
+
+    private List<RentRequest> rentRequests(String body) {
+        Object parsed;
+        try {
+            parsed = Json.parse(body);
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "Invalid JSON. " + e.getMessage());
+        }
+        if (!(parsed instanceof List)) {
+            throw new RequestException(400, "Expected an array of {\"userId\", \"libraryId\", \"bookId\"}.");
+        }
+        List<?> items = (List<?>) parsed;
+        if (items.size() > maxBulkRequests) {
+            throw new RequestException(413, "At most " + maxBulkRequests + " requests per call.");
+        }
+        List<RentRequest> requests = new ArrayList<>(items.size());
+        for (Object item : items) {
+            if (!(item instanceof Map)) {
+                throw new RequestException(400, "Expected an array of {\"userId\", \"libraryId\", \"bookId\"}.");
+            }
+            Map<?, ?> fields = (Map<?, ?>) item;
+            requests.add(new RentRequest(field(fields, "userId"), field(fields, "libraryId"), field(fields, "bookId")));
+        }
+        return requests;
+    }
+
+    private static String field(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new RequestException(400, "Missing " + name + ".");
+        }
+        return (String) value;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length.trim()) > MAX_BODY_BYTES) {
+            throw new RequestException(413, "The body is larger than " + MAX_BODY_BYTES + " bytes.");
+        }
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] bytes = body.readNBytes(MAX_BODY_BYTES + 1);
+            if (bytes.length > MAX_BODY_BYTES) {
+                throw new RequestException(413, "The body is larger than " + MAX_BODY_BYTES + " bytes.");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<String> segments(String rawPath) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : rawPath.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+            }
+        }
+        return segments;
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) return query;
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static String required(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new RequestException(400, "Missing query parameter " + name + ".");
+        }
+        return value;
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equalsIgnoreCase(expected)) {
+            throw new RequestException(405, "Use " + expected + ".");
+        }
+    }
+
+    //---------------------------RESPONSES-----------------------------------------------------------
+
+    private static String status(String userId, String libraryId, String bookId, int status) {
+        return "{\"userId\":" + Json.quote(userId) + ",\"libraryId\":" + Json.quote(libraryId) + ",\"bookId\":" + Json.quote(bookId)
+                + ",\"status\":" + status + "}";
+    }
+
+    private static String page(BookPage page, boolean withLoans) {
+        StringBuilder builder = new StringBuilder("{\"books\":[");
+        boolean first = true;
+        for (Row row : page.getRows()) {
+            if (!first) builder.append(',');
+            first = false;
+            builder.append("{\"bookId\":").append(Json.quote(row.getString("book_id"))).append(",\"bookCount\":").append(row.getInt("book_count"));
+            if (withLoans) {
+                Book book = Book.from(row);
+                builder.append(",\"rented\":");
+                users(builder, book.getRented());
+                builder.append(",\"queue\":");
+                users(builder, book.getQueue());
+            }
+            builder.append('}');
+        }
+        return builder.append("],\"nextPageToken\":").append(Json.quote(page.getNextPageToken())).append('}').toString();
+    }
+
+    private static void users(StringBuilder builder, Map<String, Date> users) {
+        builder.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Date> user : users.entrySet()) {
+            if (!first) builder.append(',');
+            first = false;
+            builder.append(Json.quote(user.getKey())).append(':').append(Json.quote(user.getValue() == null ? null : user.getValue().toInstant().toString()));
+        }
+        builder.append('}');
+    }
+
+    private static String results(List<RentResult> results) {
+        StringBuilder builder = new StringBuilder("{\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            RentResult result = results.get(i);
+            RentRequest request = result.getRequest();
+            if (i > 0) builder.append(',');
+            builder.append("{\"userId\":").append(Json.quote(request.getUserId()))
+                    .append(",\"libraryId\":").append(Json.quote(request.getLibraryId()))
+                    .append(",\"bookId\":").append(Json.quote(request.getBookId()));
+            if (result.isSuccess()) {
+                builder.append(",\"status\":").append(result.getStatus());
+            } else {
+                builder.append(",\"error\":").append(Json.quote(String.valueOf(result.getError().getMessage())));
+            }
+            builder.append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    private void respondError(HttpExchange exchange, Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof RequestException) {
+            respond(exchange, ((RequestException) e).status, error(e.getMessage()));
+        } else if (e instanceof BackendException) {
+            logger.debug("{} {} failed", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            respond(exchange, 503, error(e.getMessage()));
+        } else {
+            logger.warn("{} {} failed", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            respond(exchange, 500, error(String.valueOf(e.getMessage())));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            logger.debug("Could not send the response", e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static class RequestException extends RuntimeException {
+
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package pl.put.load;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Picks indexes in [0, n). The zipfian variant precomputes the cumulative distribution once, so a
+ * pick is a binary search; index 0 is the hottest title.
+ */
+abstract class KeyChooser {
+
+    abstract int next();
+
+    static KeyChooser uniform(int n) {
+        return new KeyChooser() {
+            @Override
+            int next() {
+                return ThreadLocalRandom.current().nextInt(n);
+            }
+        };
+    }
+
+    static KeyChooser zipfian(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return new KeyChooser() {
+            @Override
+            int next() {
+                int index = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+                return Math.min(index >= 0 ? index : -index - 1, n - 1);
+            }
+        };
+    }
+
+    static KeyChooser of(LoadOptions.Distribution distribution, int n, double exponent) {
+        return distribution == LoadOptions.Distribution.ZIPFIAN ? zipfian(n, exponent) : uniform(n);
+    }
+}
@@ -0,0 +1,195 @@
+package pl.put.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.put.backend.BackendException;
+import pl.put.backend.BackendSession;
+import pl.put.backend.LatencySnapshot;
+import pl.put.backend.RentRequest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Headless load against a BackendSession, started from Main with "load" as the first argument.
+ *
+ * With a target rate the load is open-loop: operation i is due at start + i / rate regardless of how
+ * long earlier operations took, and its latency is measured from that due time. A stalled backend
+ * therefore shows up as queueing delay in the percentiles instead of silently lowering the rate
+ * (coordinated omission). With rate=0 every worker issues operations back to back.
+ *
+ * Returns are issued for loans made earlier in the run where possible, so they exercise the queue
+ * promotion path instead of mostly hitting books the user never rented.
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    enum Operation {
+        RENT,
+        RETURN,
+        STATUS
+    }
+
+    private final BackendSession session;
+    private final LoadOptions options;
+    private final KeyChooser bookChooser;
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final LongAdder rented = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final Queue<RentRequest> loans = new ConcurrentLinkedQueue<>();
+
+    public LoadGenerator(BackendSession session, LoadOptions options) {
+        this.session = session;
+        this.options = options;
+        this.bookChooser = KeyChooser.of(options.distribution, options.books, options.zipfExponent);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new ConcurrentHistogram(3));
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    public void run() throws BackendException, InterruptedException {
+        logger.info("Load: {}", options);
+        if (options.seed) {
+            seed();
+        }
+        int conflictsBefore = session.getConflictCount();
+        long roundTripsBefore = session.getRoundTripCount();
+        session.getMetrics().reset();
+
+        ExecutorService executor = options.workers.newExecutor("load-worker", options.threads);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        if (options.rate > 0) {
+            runOpenLoop(executor, start, deadline);
+        } else {
+            runClosedLoop(executor, deadline);
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("Operations still running {}s after the end of the run", DRAIN_TIMEOUT_SECONDS);
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(report(elapsed, session.getConflictCount() - conflictsBefore, session.getRoundTripCount() - roundTripsBefore));
+    }
+
+    private void seed() throws BackendException {
+        for (int l = 0; l < options.libraries; l++) {
+            for (int b = 0; b < options.books; b++) {
+                session.upsertBookCassandra(libraryId(l), bookId(b), options.bookCount);
+            }
+        }
+        logger.info("Seeded {} book(s) in {} library(ies)", options.books, options.libraries);
+    }
+
+    private void runOpenLoop(ExecutorService executor, long start, long deadline) {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) options.rate;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * intervalNanos);
+            if (due >= deadline) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            executor.execute(() -> execute(due));
+        }
+    }
+
+    private void runClosedLoop(ExecutorService executor, long deadline) {
+        for (int t = 0; t < options.threads; t++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    execute(System.nanoTime());
+                }
+            });
+        }
+    }
+
+    private void execute(long due) {
+        Operation operation = nextOperation();
+        try {
+            switch (operation) {
+                case RENT: {
+                    RentRequest request = nextRequest();
+                    int status = session.rentBookAsync(request.getUserId(), request.getLibraryId(), request.getBookId()).join();
+                    if (status == 1) rented.increment();
+                    if (status == 2) queued.increment();
+                    if (status > 0) loans.add(request);
+                    break;
+                }
+                case RETURN: {
+                    RentRequest request = loans.poll();
+                    if (request == null) request = nextRequest();
+                    session.returnBookAsync(request.getUserId(), request.getLibraryId(), request.getBookId()).join();
+                    break;
+                }
+                case STATUS: {
+                    RentRequest request = nextRequest();
+                    session.checkBookStatusAsync(request.getUserId(), request.getLibraryId(), request.getBookId()).join();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            errors.get(operation).increment();
+            logger.debug("{} failed", operation, e);
+        } finally {
+            latencies.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+        }
+    }
+
+    private Operation nextOperation() {
+        int pick = ThreadLocalRandom.current().nextInt(options.rentWeight + options.returnWeight + options.statusWeight);
+        if (pick < options.rentWeight) return Operation.RENT;
+        if (pick < options.rentWeight + options.returnWeight) return Operation.RETURN;
+        return Operation.STATUS;
+    }
+
+    private RentRequest nextRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new RentRequest("user-" + random.nextInt(options.users), libraryId(random.nextInt(options.libraries)), bookId(bookChooser.next()));
+    }
+
+    private static String libraryId(int index) {
+        return "library-" + index;
+    }
+
+    private static String bookId(int index) {
+        return "book-" + index;
+    }
+
+    private String report(long elapsedNanos, int conflicts, long roundTrips) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        long failed = 0;
+        StringBuilder builder = new StringBuilder();
+        builder.append("Load: ").append(options).append('\n');
+        builder.append("Latency from scheduled start:\n");
+        for (Operation operation : Operation.values()) {
+            LatencySnapshot snapshot = new LatencySnapshot(latencies.get(operation));
+            total += snapshot.getCount();
+            failed += errors.get(operation).sum();
+            builder.append(String.format("  %-8s %s errors=%d%n", operation, snapshot, errors.get(operation).sum()));
+        }
+        builder.append(String.format("Throughput: %.1f ops/s (%d ops, %d failed, in %.1fs)%n", total / seconds, total, failed, seconds));
+        builder.append(String.format("Rents: %d rented, %d queued%n", rented.sum(), queued.sum()));
+        builder.append(String.format("Conflicts: %d, round trips: %d (%.2f per op)%n", conflicts, roundTrips, total > 0 ? (double) roundTrips / total : 0));
+        builder.append(session.getMetrics().report());
+        return builder.toString();
+    }
+}
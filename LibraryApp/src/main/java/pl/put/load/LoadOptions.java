@@ -0,0 +1,80 @@
+package pl.put.load;
+
+import pl.put.backend.Workers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Settings of a load run, parsed from key=value arguments, e.g.
+ * gradle run -Pmyargs="load users=10000 books=1000 distribution=zipfian rate=2000 duration=60"
+ */
+public class LoadOptions {
+
+    public enum Distribution {
+        UNIFORM,
+        ZIPFIAN
+    }
+
+    int users = 1000;
+    int libraries = 1;
+    int books = 100;
+    int bookCount = 5;
+    Distribution distribution = Distribution.UNIFORM;
+    double zipfExponent = 0.99;
+    int rentWeight = 50;
+    int returnWeight = 30;
+    int statusWeight = 20;
+    /* operations per second, 0 runs closed-loop with every worker issuing back to back */
+    int rate = 500;
+    int durationSeconds = 30;
+    Workers workers = Workers.PLATFORM;
+    int threads = 64;
+    boolean seed = true;
+
+    public static LoadOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                values.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+            }
+        }
+
+        LoadOptions options = new LoadOptions();
+        options.users = Integer.parseInt(values.getOrDefault("users", String.valueOf(options.users)));
+        options.libraries = Integer.parseInt(values.getOrDefault("libraries", String.valueOf(options.libraries)));
+        options.books = Integer.parseInt(values.getOrDefault("books", String.valueOf(options.books)));
+        options.bookCount = Integer.parseInt(values.getOrDefault("book_count", String.valueOf(options.bookCount)));
+        options.distribution = Distribution.valueOf(values.getOrDefault("distribution", options.distribution.name()).toUpperCase());
+        options.zipfExponent = Double.parseDouble(values.getOrDefault("zipf_exponent", String.valueOf(options.zipfExponent)));
+        options.rate = Integer.parseInt(values.getOrDefault("rate", String.valueOf(options.rate)));
+        options.durationSeconds = Integer.parseInt(values.getOrDefault("duration", String.valueOf(options.durationSeconds)));
+        options.workers = Workers.valueOf(values.getOrDefault("workers", options.workers.name()).toUpperCase());
+        options.threads = Integer.parseInt(values.getOrDefault("threads", String.valueOf(options.threads)));
+        options.seed = Boolean.parseBoolean(values.getOrDefault("seed", String.valueOf(options.seed)));
+
+        if (values.containsKey("mix")) {
+            String[] weights = values.get("mix").split(":");
+            if (weights.length != 3) {
+                throw new IllegalArgumentException("mix must be rent:return:status, e.g. 50:30:20");
+            }
+            options.rentWeight = Integer.parseInt(weights[0]);
+            options.returnWeight = Integer.parseInt(weights[1]);
+            options.statusWeight = Integer.parseInt(weights[2]);
+        }
+        if (options.rentWeight + options.returnWeight + options.statusWeight <= 0) {
+            throw new IllegalArgumentException("mix needs at least one non-zero weight");
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("users=%d libraries=%d books=%d book_count=%d distribution=%s%s mix=%d:%d:%d rate=%s duration=%ds workers=%s threads=%d",
+                users, libraries, books, bookCount, distribution,
+                distribution == Distribution.ZIPFIAN ? "(" + zipfExponent + ")" : "",
+                rentWeight, returnWeight, statusWeight,
+                rate > 0 ? rate + "/s" : "closed-loop", durationSeconds, workers, threads);
+    }
+}
@@ -5,7 +5,13 @@ import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 import pl.put.backend.BackendException;
 import pl.put.backend.BackendSession;
+import pl.put.backend.BookCoordinator;
+import pl.put.backend.QueueWriteBuffer;
+import pl.put.backend.RentMode;
+import pl.put.backend.Workers;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -67,4 +73,209 @@ public class RentBookStressTest {
         System.out.println("⏱ Time: " + (end - start) + " ms");
         backendSession.getConflictCount();
     }
+
+    @Test
+    public void stressTest_rentBookAsync() throws InterruptedException, BackendException {
+        int threads = 4;
+        int requests = 2000;
+        int maxInFlight = 512;
+
+        backendSession.upsertBookCassandra("test", "test", 5);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(requests);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        AtomicInteger failures = new AtomicInteger(0);
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < requests; i++) {
+            String userId = "async-" + i;
+            inFlight.acquire();
+            executor.submit(() -> backendSession.rentBookAsync(userId, "test", "test")
+                    .thenCompose(status -> {
+                        if (status == 0) {
+                            failures.incrementAndGet();
+                        }
+                        return backendSession.returnBookAsync(userId, "test", "test");
+                    })
+                    .thenCompose(status -> backendSession.checkBookStatusAsync(userId, "test", "test"))
+                    .whenComplete((status, e) -> {
+                        if (e != null) {
+                            e.printStackTrace();
+                        } else if (status != 0) {
+                            failures.incrementAndGet();
+                        }
+                        inFlight.release();
+                        latch.countDown();
+                    }));
+        }
+
+        latch.await();
+        executor.shutdown();
+
+        long end = System.currentTimeMillis();
+
+        System.out.println("❌ Failures: " + failures.get());
+        System.out.println("⏱ Time: " + (end - start) + " ms");
+        backendSession.getConflictCount();
+    }
+
+    @Test
+    public void stressTest_roundTripsPerRent() throws Exception {
+        int threads = 100;
+
+        Mockito.doReturn("test").when(backendSession).getLibraryFromTerminal();
+        Mockito.doAnswer(inv -> Thread.currentThread().getName())
+                .when(backendSession)
+                .getUserFromTerminal();
+
+        for (RentMode mode : RentMode.values()) {
+            String bookId = "test-" + mode.name().toLowerCase();
+            Mockito.doReturn(bookId).when(backendSession).getBookFromTerminal();
+            backendSession.setRentMode(mode);
+            backendSession.upsertBookCassandra("test", bookId, 5);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            int conflicts = backendSession.getConflictCount();
+
+            double rentTrips = roundTripsPerCall(executor, threads, backendSession::rentBook);
+            double returnTrips = roundTripsPerCall(executor, threads, backendSession::returnBook);
+
+            executor.shutdown();
+
+            System.out.println("📊 " + mode + " round trips per rent: " + rentTrips
+                    + ", per return: " + returnTrips
+                    + ", conflicts: " + (backendSession.getConflictCount() - conflicts));
+        }
+    }
+
+    @Test
+    public void stressTest_coalescedHotBook() throws Exception {
+        int threads = 100;
+
+        Mockito.doReturn("test").when(backendSession).getLibraryFromTerminal();
+        Mockito.doAnswer(inv -> Thread.currentThread().getName())
+                .when(backendSession)
+                .getUserFromTerminal();
+
+        for (boolean coalesce : new boolean[]{false, true}) {
+            String bookId = coalesce ? "test-coalesced" : "test-uncoalesced";
+            Mockito.doReturn(bookId).when(backendSession).getBookFromTerminal();
+            backendSession.setCoordinator(coalesce ? new BookCoordinator(backendSession, 0) : null);
+            backendSession.upsertBookCassandra("test", bookId, 5);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            int conflicts = backendSession.getConflictCount();
+
+            double rentTrips = roundTripsPerCall(executor, threads, backendSession::rentBook);
+            double returnTrips = roundTripsPerCall(executor, threads, backendSession::returnBook);
+
+            executor.shutdown();
+
+            System.out.println("📊 " + (coalesce ? "coalesced" : "uncoalesced") + " round trips per rent: " + rentTrips
+                    + ", per return: " + returnTrips
+                    + ", conflicts: " + (backendSession.getConflictCount() - conflicts));
+        }
+        backendSession.setCoordinator(null);
+    }
+
+    @Test
+    public void stressTest_queueWriteBehind() throws Exception {
+        int threads = 100;
+
+        Mockito.doReturn("test").when(backendSession).getLibraryFromTerminal();
+        Mockito.doAnswer(inv -> Thread.currentThread().getName())
+                .when(backendSession)
+                .getUserFromTerminal();
+
+        for (boolean writeBehind : new boolean[]{false, true}) {
+            String bookId = writeBehind ? "test-write-behind" : "test-write-through";
+            Mockito.doReturn(bookId).when(backendSession).getBookFromTerminal();
+            backendSession.setQueueWriteBuffer(writeBehind ? new QueueWriteBuffer(backendSession, 20) : null);
+            // One copy, so all but one renter join the queue and leave it again on return
+            backendSession.upsertBookCassandra("test", bookId, 1);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+            double rentTrips = roundTripsPerCall(executor, threads, backendSession::rentBook);
+            double returnTrips = roundTripsPerCall(executor, threads, backendSession::returnBook);
+
+            List<Future<Integer>> statuses = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                statuses.add(executor.submit(() -> backendSession.checkBookStatus()));
+            }
+            int failures = 0;
+            for (Future<Integer> status : statuses) {
+                if (status.get() != 0) failures++;
+            }
+            executor.shutdown();
+
+            System.out.println("📊 " + (writeBehind ? "write-behind" : "write-through") + " round trips per rent: " + rentTrips
+                    + ", per return: " + returnTrips + ", failures: " + failures);
+        }
+        backendSession.setQueueWriteBuffer(null);
+    }
+
+    @Test
+    public void stressTest_platformVsVirtualThreads() throws Exception {
+        int platformThreads = 100;
+        int[] renterCounts = {1_000, 10_000};
+        int rentersPerBook = 100;
+
+        for (int renters : renterCounts) {
+            int books = renters / rentersPerBook;
+            for (int b = 0; b < books; b++) {
+                backendSession.upsertBookCassandra("test", "workers-" + b, 5);
+            }
+
+            for (Workers workers : Workers.values()) {
+                backendSession.setWorkers(workers, platformThreads);
+                AtomicInteger failures = new AtomicInteger(0);
+                List<CompletableFuture<Integer>> futures = new ArrayList<>();
+
+                long start = System.currentTimeMillis();
+
+                for (int i = 0; i < renters; i++) {
+                    String userId = workers.name().toLowerCase() + "-" + i;
+                    String bookId = "workers-" + (i % books);
+                    futures.add(backendSession.submitRentBook(userId, "test", bookId)
+                            .thenCompose(status -> {
+                                if (status == 0) {
+                                    failures.incrementAndGet();
+                                }
+                                return backendSession.submitReturnBook(userId, "test", bookId);
+                            }));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+                long end = System.currentTimeMillis();
+
+                System.out.println("📊 " + workers + " threads, " + renters + " renters: " + (end - start) + " ms"
+                        + ", failures: " + failures.get());
+            }
+        }
+    }
+
+    /*
+     * Runs the call once on every pool thread (so every call is made by a different user) and
+     * returns the average number of Cassandra requests it needed.
+     */
+    private double roundTripsPerCall(ExecutorService executor, int threads, Callable<Integer> call) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<Integer>> futures = new ArrayList<>();
+
+        long before = backendSession.getRoundTripCount();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                barrier.await();
+                return call.call();
+            }));
+        }
+        for (Future<Integer> future : futures) {
+            future.get();
+        }
+        return (double) (backendSession.getRoundTripCount() - before) / threads;
+    }
 }
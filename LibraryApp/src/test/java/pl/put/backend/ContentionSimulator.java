@@ -0,0 +1,570 @@
+package pl.put.backend;
+
+import org.HdrHistogram.Histogram;
+import pl.put.backend.SimulatedLibraryData.Invariant;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Deterministic contention simulator for the rent/queue protocol, without a cluster:
+ * gradle simulate -Psimargs="mode=lwt schedules=1000000 clients=2-6 copies=1-3 seed=1"
+ *
+ * A schedule is a few clients, each a user renting and returning one book of a SimulatedLibraryData
+ * through SimulatedBackendSession. In legacy_percent of the schedules the book starts with loans of
+ * other users and no rented_count, as VALIDATE mode or a lowered book_count leave it, so that the
+ * first calls have to repair it. With api=async the clients call rentBookAsync/returnBookAsync/
+ * checkBookStatusAsync instead of the blocking flows, and with api=bulk they rent and return through
+ * rentBooksAsync/returnBooksAsync, the path BookCoordinator batches go. The clients are threads, but only one runs at a time: before every
+ * store operation the running client hands over to a client picked by the schedule's Random. The
+ * seed alone therefore fixes the interleaving, and a schedule that breaks an invariant is replayed
+ * with seed=<its seed> schedules=1; trace=true logs every store operation with the row after it.
+ *
+ * Checked during a schedule (see SimulatedLibraryData): nobody both rents and waits, due_date
+ * matches rented_date, promotion takes the user that waited longest and, in LWT mode, never more than
+ * book_count copies are rented. Checked once all clients are done: at most book_count copies rented,
+ * nobody waits while a copy is free, rented_count matches rented_date (LWT), and every user is where
+ * their last call left them (no lost users). A schedule that runs out of max_steps is a livelock.
+ * The report counts the schedules that broke each invariant.
+ *
+ * Schedules run in parallel on threads workers, each with its own session.
+ */
+public class ContentionSimulator {
+
+    private static final String LIBRARY_ID = "sim";
+    private static final String BOOK_ID = "book";
+
+    private static final int MAX_VIOLATIONS_KEPT = 20;
+
+    private final Options options;
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = Options.parse(args);
+        Report report = new ContentionSimulator(options).run();
+        System.out.println(report);
+        System.exit(report.getViolationCount() == 0 ? 0 : 1);
+    }
+
+    public ContentionSimulator(Options options) {
+        this.options = options;
+    }
+
+    /*
+     * Runs schedules seed .. seed + schedules - 1. The flows report to stdout on every call, which is
+     * silenced meanwhile unless trace=true: the console log goes to stdout as well.
+     */
+    public Report run() throws InterruptedException {
+        Report report = new Report(options);
+        AtomicLong next = new AtomicLong(options.seed);
+        long end = options.seed + options.schedules;
+
+        PrintStream stdout = System.out;
+        if (!options.trace) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        long start = System.nanoTime();
+        try {
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < options.threads; i++) {
+                workers.add(Thread.ofPlatform().name("simulator-" + i).start(() -> {
+                    SimulatedBackendSession session = new SimulatedBackendSession();
+                    session.setRentMode(options.mode);
+                    for (long seed = next.getAndIncrement(); seed < end; seed = next.getAndIncrement()) {
+                        report.add(runSchedule(session, seed));
+                    }
+                }));
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    public ScheduleResult runSchedule(long seed) {
+        SimulatedBackendSession session = new SimulatedBackendSession();
+        session.setRentMode(options.mode);
+        return runSchedule(session, seed);
+    }
+
+    private ScheduleResult runSchedule(SimulatedBackendSession session, long seed) {
+        Schedule schedule = new Schedule(seed);
+        session.reset(schedule.store, schedule::step);
+        schedule.store.insert(LIBRARY_ID, BOOK_ID, schedule.copies);
+        if (schedule.legacyRenters + schedule.legacyWaiting > 0) {
+            schedule.store.legacy(LIBRARY_ID, BOOK_ID, schedule.legacyRenters, schedule.legacyWaiting);
+        }
+
+        for (Client client : schedule.clients) {
+            client.thread = Thread.ofVirtual().unstarted(() -> client.run(session, schedule, options.api));
+            client.thread.start();
+        }
+        schedule.start();
+        for (Client client : schedule.clients) {
+            try {
+                client.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                schedule.store.violation(Invariant.PROGRESS, "interrupted");
+            }
+        }
+        checkEnd(schedule);
+        return new ScheduleResult(seed, schedule, session.getScheduleConflicts());
+    }
+
+    /*
+     * Invariants once every client is done.
+     */
+    private void checkEnd(Schedule schedule) {
+        SimulatedLibraryData store = schedule.store;
+        Book book = store.snapshot(LIBRARY_ID, BOOK_ID);
+        int rented = book.getRented().size();
+        if (rented > book.getBookCount()) {
+            store.violation(Invariant.COPIES, "end: " + rented + " copies rented of " + book.getBookCount());
+        }
+        if (rented < book.getBookCount() && !book.getQueue().isEmpty()) {
+            store.violation(Invariant.IDLE_COPIES, "end: " + book.getQueue().keySet() + " wait while " + (book.getBookCount() - rented) + " copies are free");
+        }
+        if (options.mode == RentMode.LWT) {
+            Integer rentedCount = book.getRentedCount();
+            if (rentedCount == null ? rented > 0 : rentedCount != rented) {
+                store.violation(Invariant.RENTED_COUNT, "end: rented_count " + rentedCount + " but " + rented + " copies rented");
+            }
+        }
+        for (Client client : schedule.clients) {
+            int status = book.status(client.userId);
+            if (client.holds != (status != 0)) {
+                store.violation(Invariant.USERS, "end: " + client.userId + (client.holds ? " lost" : " still there with status " + status));
+            }
+        }
+    }
+
+    //------------------SCHEDULE-------------------------------------------------------------------------
+
+    private enum Call {
+        RENT,
+        RETURN,
+        STATUS
+    }
+
+    private static final class Livelock extends RuntimeException {
+        Livelock() {
+            super(null, null, false, false);
+        }
+    }
+
+    /*
+     * The clients of one schedule and the baton that lets exactly one of them run. The running client
+     * picks the next one in step() and finished(), so picks happen one after another, in the same
+     * order on every run of the seed.
+     */
+    private final class Schedule {
+
+        final Random random;
+        final int copies;
+        final int legacyRenters;
+        final int legacyWaiting;
+        final SimulatedLibraryData store = new SimulatedLibraryData(options.mode == RentMode.LWT);
+        final List<Client> clients = new ArrayList<>();
+        private final List<Client> running;
+        private Client current;
+        private int steps;
+        private int calls;
+
+        Schedule(long seed) {
+            random = new Random(seed);
+            copies = between(random, options.minCopies, options.maxCopies);
+            boolean legacy = random.nextInt(100) < options.legacyPercent;
+            legacyRenters = legacy ? random.nextInt(copies + 2) : 0;
+            legacyWaiting = legacy ? random.nextInt(3) : 0;
+            int count = between(random, options.minClients, options.maxClients);
+            for (int i = 0; i < count; i++) {
+                clients.add(new Client("user-" + i, plan(random)));
+            }
+            running = new ArrayList<>(clients);
+            if (options.trace) {
+                store.setTrace(true);
+            }
+        }
+
+        void start() {
+            current = running.get(random.nextInt(running.size()));
+            current.baton.release();
+        }
+
+        /* before every store operation, on the running client */
+        void step() {
+            if (++steps > options.maxSteps) {
+                throw new Livelock();
+            }
+            Client next = running.get(random.nextInt(running.size()));
+            if (next != current) {
+                Client me = current;
+                current = next;
+                next.baton.release();
+                me.baton.acquireUninterruptibly();
+            }
+        }
+
+        void finished(Client client) {
+            running.remove(client);
+            if (!running.isEmpty()) {
+                current = running.get(random.nextInt(running.size()));
+                current.baton.release();
+            }
+        }
+    }
+
+    /*
+     * Every client rents and returns a few times, sometimes checking the status in between; the last
+     * return is left out half of the time, so that schedules end with both renters and waiting users.
+     */
+    private List<Call> plan(Random random) {
+        List<Call> plan = new ArrayList<>();
+        int cycles = between(random, options.minCycles, options.maxCycles);
+        for (int i = 0; i < cycles; i++) {
+            plan.add(Call.RENT);
+            if (random.nextInt(100) < options.statusPercent) {
+                plan.add(Call.STATUS);
+            }
+            if (i < cycles - 1 || random.nextBoolean()) {
+                plan.add(Call.RETURN);
+            }
+        }
+        return plan;
+    }
+
+    private static int between(Random random, int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    private static final class Client {
+
+        final String userId;
+        final List<Call> plan;
+        final Semaphore baton = new Semaphore(0);
+        Thread thread;
+        /* whether the user should be renting or waiting, after their last call */
+        boolean holds;
+
+        Client(String userId, List<Call> plan) {
+            this.userId = userId;
+            this.plan = plan;
+        }
+
+        void run(SimulatedBackendSession session, Schedule schedule, Api api) {
+            baton.acquireUninterruptibly();
+            try {
+                for (Call call : plan) {
+                    schedule.calls++;
+                    int status;
+                    switch (call) {
+                        case RENT:
+                            status = rent(session, api);
+                            if (status == 0) {
+                                schedule.store.violation(Invariant.USERS, userId + " lost right after renting");
+                            }
+                            holds = true;
+                            break;
+                        case RETURN:
+                            status = returnBook(session, api);
+                            if (status == 0) {
+                                schedule.store.violation(Invariant.USERS, userId + " lost before returning");
+                            }
+                            holds = false;
+                            break;
+                        default:
+                            status = api != Api.BLOCKING
+                                    ? session.checkBookStatusAsync(userId, LIBRARY_ID, BOOK_ID, BookCache.Read.CASSANDRA).join()
+                                    : session.checkBookStatus(userId, LIBRARY_ID, BOOK_ID, BookCache.Read.CASSANDRA);
+                            if (holds != (status != 0)) {
+                                schedule.store.violation(Invariant.USERS, userId + (holds ? " lost" : " still there with status " + status));
+                            }
+                    }
+                }
+            } catch (Exception e) {
+                // the async flows hand a Livelock over wrapped in a CompletionException
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof Livelock) {
+                    schedule.store.violation(Invariant.PROGRESS, "livelock: no end after " + schedule.steps + " store operations");
+                } else {
+                    schedule.store.violation(Invariant.PROGRESS, userId + " failed: " + cause);
+                }
+            } finally {
+                schedule.finished(this);
+            }
+        }
+
+        private int rent(SimulatedBackendSession session, Api api) throws BackendException {
+            switch (api) {
+                case ASYNC:
+                    return session.rentBookAsync(userId, LIBRARY_ID, BOOK_ID).join();
+                case BULK:
+                    return bulkStatus(session.rentBooksAsync(List.of(new RentRequest(userId, LIBRARY_ID, BOOK_ID))).join());
+                default:
+                    return session.rentBook(userId, LIBRARY_ID, BOOK_ID);
+            }
+        }
+
+        private int returnBook(SimulatedBackendSession session, Api api) throws BackendException {
+            switch (api) {
+                case ASYNC:
+                    return session.returnBookAsync(userId, LIBRARY_ID, BOOK_ID).join();
+                case BULK:
+                    return bulkStatus(session.returnBooksAsync(List.of(new RentRequest(userId, LIBRARY_ID, BOOK_ID))).join());
+                default:
+                    return session.returnBook(userId, LIBRARY_ID, BOOK_ID);
+            }
+        }
+
+        private static int bulkStatus(List<RentResult> results) {
+            RentResult result = results.get(0);
+            if (!result.isSuccess()) {
+                throw new CompletionException(result.getError());
+            }
+            return result.getStatus();
+        }
+    }
+
+    //------------------RESULTS--------------------------------------------------------------------------
+
+    public static final class ScheduleResult {
+
+        final long seed;
+        final int clients;
+        final int copies;
+        final int calls;
+        final int roundTrips;
+        final int conflicts;
+        final int casNotApplied;
+        final int queueJumps;
+        final int maxOverAllocation;
+        final String violation;
+        final Set<Invariant> broken;
+
+        private ScheduleResult(long seed, Schedule schedule, int conflicts) {
+            this.seed = seed;
+            this.clients = schedule.clients.size();
+            this.copies = schedule.copies;
+            this.calls = schedule.calls;
+            this.roundTrips = schedule.store.getRoundTrips();
+            this.conflicts = conflicts;
+            this.casNotApplied = schedule.store.getCasNotApplied();
+            this.queueJumps = schedule.store.getQueueJumps();
+            this.maxOverAllocation = schedule.store.getMaxOverAllocation();
+            this.violation = schedule.store.getViolation();
+            this.broken = schedule.store.getBroken();
+        }
+
+        public String getViolation() {
+            return violation;
+        }
+
+        public Set<Invariant> getBroken() {
+            return Collections.unmodifiableSet(broken);
+        }
+
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("seed=%d clients=%d copies=%d calls=%d round_trips=%d conflicts=%d cas_not_applied=%d queue_jumps=%d over_allocation=%d%s",
+                    seed, clients, copies, calls, roundTrips, conflicts, casNotApplied, queueJumps, maxOverAllocation,
+                    violation == null ? "" : " violation: " + violation);
+        }
+    }
+
+    public static final class Report {
+
+        private final Options options;
+        private final Histogram roundTrips = new Histogram(3);
+        private final Histogram conflicts = new Histogram(3);
+        private long schedules;
+        private long calls;
+        private long totalRoundTrips;
+        private long totalConflicts;
+        private long casNotApplied;
+        private long queueJumpSchedules;
+        private long overAllocatedSchedules;
+        private int maxOverAllocation;
+        private long violationCount;
+        private final Map<Invariant, Long> brokenCounts = new EnumMap<>(Invariant.class);
+        private final List<ScheduleResult> violations = new ArrayList<>();
+        long elapsedNanos;
+
+        private Report(Options options) {
+            this.options = options;
+        }
+
+        private synchronized void add(ScheduleResult result) {
+            schedules++;
+            calls += result.calls;
+            totalRoundTrips += result.roundTrips;
+            totalConflicts += result.conflicts;
+            casNotApplied += result.casNotApplied;
+            roundTrips.recordValue(result.roundTrips);
+            conflicts.recordValue(result.conflicts);
+            if (result.queueJumps > 0) queueJumpSchedules++;
+            if (result.maxOverAllocation > 0) overAllocatedSchedules++;
+            maxOverAllocation = Math.max(maxOverAllocation, result.maxOverAllocation);
+            for (Invariant invariant : result.broken) {
+                brokenCounts.merge(invariant, 1L, Long::sum);
+            }
+            if (result.violation != null) {
+                violationCount++;
+                if (violations.size() < MAX_VIOLATIONS_KEPT) {
+                    violations.add(result);
+                }
+            }
+        }
+
+        public synchronized long getViolationCount() {
+            return violationCount;
+        }
+
+        /* schedules that broke the invariant */
+        public synchronized long getViolationCount(Invariant invariant) {
+            return brokenCounts.getOrDefault(invariant, 0L);
+        }
+
+        /* the first schedules that broke an invariant, in completion order */
+        public synchronized List<ScheduleResult> getViolations() {
+            return Collections.unmodifiableList(new ArrayList<>(violations));
+        }
+
+        public double getRoundTripsPerCall() {
+            return calls == 0 ? 0 : (double) totalRoundTrips / calls;
+        }
+
+        public double getConflictsPerSchedule() {
+            return schedules == 0 ? 0 : (double) totalConflicts / schedules;
+        }
+
+        @Override
+        public synchronized String toString() {
+            double seconds = elapsedNanos / 1e9;
+            StringBuilder builder = new StringBuilder();
+            builder.append("Simulation: ").append(options).append('\n');
+            builder.append(String.format("Schedules: %d in %.1fs (%.0f per minute), %d calls%n",
+                    schedules, seconds, seconds > 0 ? schedules / seconds * 60 : 0, calls));
+            builder.append(String.format("Round trips: %.2f per call; per schedule mean %.1f, p50 %d, p99 %d, max %d%n",
+                    getRoundTripsPerCall(), roundTrips.getMean(), roundTrips.getValueAtPercentile(50),
+                    roundTrips.getValueAtPercentile(99), roundTrips.getMaxValue()));
+            builder.append(String.format("Conflicts: per schedule mean %.2f, p99 %d, max %d; %d CAS not applied%n",
+                    getConflictsPerSchedule(), conflicts.getValueAtPercentile(99), conflicts.getMaxValue(), casNotApplied));
+            builder.append(String.format("Queue jumps in %d schedule(s); over-allocated for a moment in %d schedule(s), by up to %d copies%n",
+                    queueJumpSchedules, overAllocatedSchedules, maxOverAllocation));
+            builder.append(String.format("Violations: %d%s%n", violationCount, brokenCounts.isEmpty() ? "" : " " + brokenCounts));
+            for (ScheduleResult violation : violations) {
+                builder.append("  ").append(violation).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+
+    //------------------OPTIONS--------------------------------------------------------------------------
+
+    public enum Api {
+        BLOCKING,
+        ASYNC,
+        BULK
+    }
+
+    public static final class Options {
+
+        RentMode mode = RentMode.VALIDATE;
+        long schedules = 100_000;
+        long seed = 1;
+        int minClients = 2;
+        int maxClients = 6;
+        int minCopies = 1;
+        int maxCopies = 3;
+        int minCycles = 1;
+        int maxCycles = 3;
+        int statusPercent = 30;
+        int legacyPercent = 20;
+        int maxSteps = 10_000;
+        Api api = Api.BLOCKING;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean trace;
+
+        public static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq > 0) {
+                    values.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+                }
+            }
+
+            Options options = new Options();
+            options.mode = RentMode.valueOf(values.getOrDefault("mode", options.mode.name()).toUpperCase());
+            options.schedules = Long.parseLong(values.getOrDefault("schedules", String.valueOf(options.schedules)));
+            options.seed = Long.parseLong(values.getOrDefault("seed", String.valueOf(options.seed)));
+            int[] clients = range(values.getOrDefault("clients", options.minClients + "-" + options.maxClients));
+            options.minClients = clients[0];
+            options.maxClients = clients[1];
+            int[] copies = range(values.getOrDefault("copies", options.minCopies + "-" + options.maxCopies));
+            options.minCopies = copies[0];
+            options.maxCopies = copies[1];
+            int[] cycles = range(values.getOrDefault("cycles", options.minCycles + "-" + options.maxCycles));
+            options.minCycles = cycles[0];
+            options.maxCycles = cycles[1];
+            options.statusPercent = Integer.parseInt(values.getOrDefault("status_percent", String.valueOf(options.statusPercent)));
+            options.legacyPercent = Integer.parseInt(values.getOrDefault("legacy_percent", String.valueOf(options.legacyPercent)));
+            options.maxSteps = Integer.parseInt(values.getOrDefault("max_steps", String.valueOf(options.maxSteps)));
+            options.threads = Integer.parseInt(values.getOrDefault("threads", String.valueOf(options.threads)));
+            options.api = Api.valueOf(values.getOrDefault("api", options.api.name()).toUpperCase());
+            options.trace = Boolean.parseBoolean(values.getOrDefault("trace", "false"));
+            if (options.minClients < 1 || options.minCopies < 1 || options.minCycles < 1) {
+                throw new IllegalArgumentException("clients, copies and cycles start at 1");
+            }
+            // the VALIDATE chunks read with SELECT_BOOKS_IN, which SimulatedBackendSession does not serve
+            if (options.api == Api.BULK && options.mode != RentMode.LWT) {
+                throw new IllegalArgumentException("api=bulk needs mode=lwt");
+            }
+            return options;
+        }
+
+        /* "2-6" or "4" */
+        private static int[] range(String value) {
+            int dash = value.indexOf('-');
+            if (dash < 0) {
+                int single = Integer.parseInt(value);
+                return new int[]{single, single};
+            }
+            int min = Integer.parseInt(value.substring(0, dash).trim());
+            int max = Integer.parseInt(value.substring(dash + 1).trim());
+            if (max < min) {
+                throw new IllegalArgumentException("Empty range " + value);
+            }
+            return new int[]{min, max};
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mode=%s schedules=%d seed=%d clients=%d-%d copies=%d-%d cycles=%d-%d status_percent=%d legacy_percent=%d max_steps=%d threads=%d api=%s trace=%b",
+                    mode, schedules, seed, minClients, maxClients, minCopies, maxCopies, minCycles, maxCycles, statusPercent, legacyPercent, maxSteps, threads, api.name().toLowerCase(), trace);
+        }
+    }
+}
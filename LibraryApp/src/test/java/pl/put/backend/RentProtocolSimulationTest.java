@@ -0,0 +1,73 @@
+package pl.put.backend;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.put.backend.SimulatedLibraryData.Invariant;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Runs the rent/queue protocol through ContentionSimulator, without a cluster. A failure prints the
+ * seeds to replay with gradle simulate -Psimargs="mode=... seed=<seed> schedules=1 trace=true".
+ *
+ * Every invariant is asserted in both modes.
+ */
+public class RentProtocolSimulationTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(RentProtocolSimulationTest.class);
+
+    private static final int SCHEDULES = 20_000;
+
+    @Test
+    public void simulation_validateMode() throws InterruptedException {
+        simulate(RentMode.VALIDATE);
+    }
+
+    @Test
+    public void simulation_lwtMode() throws InterruptedException {
+        simulate(RentMode.LWT);
+    }
+
+    @Test
+    public void simulation_lwtMode_asyncApi() throws InterruptedException {
+        simulate(RentMode.LWT, "api=async");
+    }
+
+    /* the bulk API, which BookCoordinator batches go through */
+    @Test
+    public void simulation_lwtMode_bulkApi() throws InterruptedException {
+        simulate(RentMode.LWT, "api=bulk");
+    }
+
+    @Test
+    public void simulation_sameSeedSameSchedule() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (RentMode mode : RentMode.values()) {
+                ContentionSimulator simulator = new ContentionSimulator(ContentionSimulator.Options.parse(new String[]{"mode=" + mode}));
+                for (long seed = 1; seed <= 200; seed++) {
+                    assertEquals(simulator.runSchedule(seed).toString(), simulator.runSchedule(seed).toString());
+                }
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    private void simulate(RentMode mode, String... options) throws InterruptedException {
+        List<String> args = new ArrayList<>(List.of("mode=" + mode, "schedules=" + SCHEDULES));
+        args.addAll(List.of(options));
+        ContentionSimulator.Report report = new ContentionSimulator(ContentionSimulator.Options.parse(args.toArray(new String[0]))).run();
+        logger.info("{}", report);
+        for (Invariant invariant : Invariant.values()) {
+            assertEquals(invariant + "\n" + report, 0, report.getViolationCount(invariant));
+        }
+    }
+}
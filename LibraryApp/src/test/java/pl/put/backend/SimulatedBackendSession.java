@@ -0,0 +1,165 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSet;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * BackendSession over a SimulatedLibraryData instead of a cluster: readBook and the *Cassandra
+ * methods of the maps layout go to the store, while the flows on top of them (rentBook, returnBook,
+ * checkBookStatus, validate() and the LWT claims) run unchanged. The async methods return completed
+ * futures, so their continuations run on the calling client. The loan indexes, the cache, the
+ * coordinator and the queue write-behind are left out.
+ *
+ * Before every store operation the session calls beforeOperation, where the simulator decides which
+ * client runs next; those are the interleaving points of a schedule.
+ */
+class SimulatedBackendSession extends BackendSession {
+
+    private SimulatedLibraryData store;
+
+    private Runnable beforeOperation;
+
+    private int conflicts;
+
+    SimulatedBackendSession() {
+    }
+
+    /*
+     * Starts a schedule; a session is reused across schedules, one at a time.
+     */
+    void reset(SimulatedLibraryData store, Runnable beforeOperation) {
+        this.store = store;
+        this.beforeOperation = beforeOperation;
+        this.conflicts = 0;
+    }
+
+    /* addConflict calls of the current schedule */
+    int getScheduleConflicts() {
+        return conflicts;
+    }
+
+    @Override
+    protected int addConflict(int err) {
+        conflicts += err;
+        return super.addConflict(err);
+    }
+
+    @Override
+    protected Book readBook(String libraryId, String bookId, ConsistencyLevel level) {
+        beforeOperation.run();
+        return store.select(libraryId, bookId);
+    }
+
+    @Override
+    public ResultSet upsertBookCassandra(String libraryId, String bookId, int bookCount) {
+        beforeOperation.run();
+        return store.insert(libraryId, bookId, bookCount);
+    }
+
+    @Override
+    public ResultSet rentBookCassandra(String userId, String libraryId, String bookId) {
+        beforeOperation.run();
+        Date now = store.now();
+        return store.rent(userId, libraryId, bookId, now, dueDate(now));
+    }
+
+    @Override
+    protected ResultSet returnBookCassandra(String userId, String libraryId, String bookId, Date dueDate) {
+        beforeOperation.run();
+        return store.returnBook(userId, libraryId, bookId);
+    }
+
+    @Override
+    protected ResultSet queueBookCassandra(String userId, String libraryId, String bookId) {
+        beforeOperation.run();
+        return store.queue(userId, libraryId, bookId, store.now());
+    }
+
+    @Override
+    protected ResultSet dequeueBookCassandra(String userId, String libraryId, String bookId, Date queuedSince) {
+        beforeOperation.run();
+        Date now = store.now();
+        return store.dequeue(userId, libraryId, bookId, queuedSince, now, dueDate(now));
+    }
+
+    @Override
+    protected ResultSet unrentBookCassandra(String userId, String libraryId, String bookId, Date dueDate) {
+        beforeOperation.run();
+        return store.unrent(userId, libraryId, bookId, store.now());
+    }
+
+    @Override
+    protected CompletableFuture<Book> readBookAsync(String libraryId, String bookId, ConsistencyLevel level) {
+        beforeOperation.run();
+        return CompletableFuture.completedFuture(store.select(libraryId, bookId));
+    }
+
+    @Override
+    public CompletableFuture<ResultSet> rentBookCassandraAsync(String userId, String libraryId, String bookId) {
+        return CompletableFuture.completedFuture(rentBookCassandra(userId, libraryId, bookId));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> returnBookCassandraAsync(String userId, String libraryId, String bookId, Date dueDate) {
+        return CompletableFuture.completedFuture(returnBookCassandra(userId, libraryId, bookId, dueDate));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> queueBookCassandraAsync(String userId, String libraryId, String bookId) {
+        return CompletableFuture.completedFuture(queueBookCassandra(userId, libraryId, bookId));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> dequeueBookCassandraAsync(String userId, String libraryId, String bookId, Date queuedSince) {
+        return CompletableFuture.completedFuture(dequeueBookCassandra(userId, libraryId, bookId, queuedSince));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> unrentBookCassandraAsync(String userId, String libraryId, String bookId, Date dueDate) {
+        return CompletableFuture.completedFuture(unrentBookCassandra(userId, libraryId, bookId, dueDate));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> claimBookCassandraAsync(String userId, String libraryId, String bookId, int bookCount, int rentedCount, Integer expectedCount) {
+        beforeOperation.run();
+        Date now = store.now();
+        return CompletableFuture.completedFuture(store.claim(userId, libraryId, bookId, rentedCount, now, dueDate(now), bookCount, expectedCount));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> queueBookIfFullCassandraAsync(String userId, String libraryId, String bookId, Integer expectedCount) {
+        beforeOperation.run();
+        return CompletableFuture.completedFuture(store.queueIfFull(userId, libraryId, bookId, store.now(), expectedCount));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> releaseBookCassandraAsync(String userId, String libraryId, String bookId, int rentedCount, Integer expectedCount, Map<String, Date> expectedQueue, Date dueDate) {
+        beforeOperation.run();
+        return CompletableFuture.completedFuture(store.release(userId, libraryId, bookId, rentedCount, expectedCount, expectedQueue));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> handOverBookCassandraAsync(String userId, String nextUserId, String libraryId, String bookId, Integer expectedCount, Map<String, Date> expectedQueue, Date dueDate) {
+        beforeOperation.run();
+        Date now = store.now();
+        return CompletableFuture.completedFuture(store.handOver(userId, nextUserId, libraryId, bookId, now, dueDate(now), expectedCount, expectedQueue));
+    }
+
+    @Override
+    protected CompletableFuture<ResultSet> leaveQueueCassandraAsync(String userId, String libraryId, String bookId) {
+        beforeOperation.run();
+        return CompletableFuture.completedFuture(store.leaveIfQueued(userId, libraryId, bookId));
+    }
+
+    @Override
+    protected CompletableFuture<Book> repairBookCassandraAsync(Book book, Moves moves) {
+        beforeOperation.run();
+        Date now = store.now();
+        Book repaired = repairedBook(book, moves, now, dueDate(now));
+        return CompletableFuture.completedFuture(store.repair(book, repaired).wasApplied() ? repaired : null);
+    }
+}
@@ -0,0 +1,414 @@
+package pl.put.backend;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * In-memory library_data with the semantics of the statements BackendSession runs on it: plain
+ * updates always apply, conditional ones compare and set in one step and, when not applied, return
+ * the current book_count, rented_count and queue, as Cassandra does for the columns of the condition.
+ *
+ * Timestamps come from a logical clock, so two runs of the same schedule see the same queue order.
+ * It is driven by one client at a time (see ContentionSimulator), hence no locking. Every write
+ * checks the invariants that must hold at any moment; the first violation is kept, along with every
+ * invariant that was broken.
+ */
+final class SimulatedLibraryData {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedLibraryData.class);
+
+    enum Invariant {
+        /* rented <= book_count; at any moment in LWT mode, at the end of a schedule in VALIDATE mode */
+        COPIES,
+        /* the user promoted from the queue is the one that has waited longest */
+        FIFO,
+        /* due_date matches rented_date and nobody both rents and waits */
+        ROW,
+        /* nobody waits at the end while a copy is free */
+        IDLE_COPIES,
+        /* LWT mode: rented_count matches rented_date at the end */
+        RENTED_COUNT,
+        /* every user rents or waits exactly when their own calls say so */
+        USERS,
+        /* every client finishes its calls without an exception or a livelock */
+        PROGRESS
+    }
+
+    private static final ResultSet APPLIED = result(true, null);
+
+    private final Map<String, Entry> rows = new HashMap<>();
+
+    /* LWT mode: never more than book_count copies rented, not even for a moment */
+    private final boolean strictCopies;
+
+    private long clock;
+    private int roundTrips;
+    private int casNotApplied;
+    private int queueJumps;
+    private int maxOverAllocation;
+    private String violation;
+    private final EnumSet<Invariant> broken = EnumSet.noneOf(Invariant.class);
+
+    private boolean trace;
+
+    SimulatedLibraryData(boolean strictCopies) {
+        this.strictCopies = strictCopies;
+    }
+
+    private static final class Entry {
+        int bookCount;
+        Integer rentedCount;
+        final Map<String, Date> queue = new HashMap<>();
+        final Map<String, Date> rented = new HashMap<>();
+        final Map<String, Date> due = new HashMap<>();
+    }
+
+    /* logs every operation with the row after it, for replaying a schedule */
+    void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    Date now() {
+        return new Date(++clock);
+    }
+
+    //------------------STATEMENTS-----------------------------------------------------------------------
+
+    /* INSERT_BOOK */
+    ResultSet insert(String libraryId, String bookId, int bookCount) {
+        roundTrips++;
+        entry(libraryId, bookId).bookCount = bookCount;
+        return traced("insert", null, libraryId, bookId, APPLIED);
+    }
+
+    /* SELECT_BOOK; null when the book is not there */
+    Book select(String libraryId, String bookId) {
+        roundTrips++;
+        traced("select", null, libraryId, bookId, APPLIED);
+        return snapshot(libraryId, bookId);
+    }
+
+    /* RENT_BOOK */
+    ResultSet rent(String userId, String libraryId, String bookId, Date now, Date dueDate) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        countQueueJump(entry, userId);
+        entry.rented.put(userId, now);
+        entry.due.put(userId, dueDate);
+        check(entry, bookId);
+        return traced("rent", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* RETURN_BOOK, also used to leave the queue */
+    ResultSet returnBook(String userId, String libraryId, String bookId) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        entry.queue.remove(userId);
+        entry.rented.remove(userId);
+        entry.due.remove(userId);
+        return traced("returnBook", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* QUEUE_BOOK */
+    ResultSet queue(String userId, String libraryId, String bookId, Date now) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        entry.queue.put(userId, now);
+        check(entry, bookId);
+        return traced("queue", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* DEQUEUE_BOOK: IF queue[user] = queuedSince */
+    ResultSet dequeue(String userId, String libraryId, String bookId, Date queuedSince, Date now, Date dueDate) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (!Objects.equals(entry.queue.get(userId), queuedSince)) return traced("dequeue", userId, libraryId, bookId, notApplied(entry));
+        checkOldest(entry, userId, bookId);
+        entry.queue.remove(userId);
+        entry.rented.put(userId, now);
+        entry.due.put(userId, dueDate);
+        check(entry, bookId);
+        return traced("dequeue", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* UNRENT_BOOK: IF rented_date CONTAINS KEY user */
+    ResultSet unrent(String userId, String libraryId, String bookId, Date now) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (!entry.rented.containsKey(userId)) return traced("unrent", userId, libraryId, bookId, notApplied(entry));
+        entry.queue.put(userId, now);
+        entry.rented.remove(userId);
+        entry.due.remove(userId);
+        check(entry, bookId);
+        return traced("unrent", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* CLAIM_BOOK: IF book_count = expected AND rented_count = expected */
+    ResultSet claim(String userId, String libraryId, String bookId, int rentedCount, Date now, Date dueDate, int expectedBookCount, Integer expectedCount) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (entry.bookCount != expectedBookCount || !Objects.equals(entry.rentedCount, expectedCount)) return traced("claim", userId, libraryId, bookId, notApplied(entry));
+        countQueueJump(entry, userId);
+        entry.rentedCount = rentedCount;
+        entry.rented.put(userId, now);
+        entry.due.put(userId, dueDate);
+        check(entry, bookId);
+        return traced("claim", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* QUEUE_BOOK_IF_FULL: IF rented_count = expected */
+    ResultSet queueIfFull(String userId, String libraryId, String bookId, Date now, Integer expectedCount) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (!Objects.equals(entry.rentedCount, expectedCount)) return traced("queueIfFull", userId, libraryId, bookId, notApplied(entry));
+        entry.queue.put(userId, now);
+        check(entry, bookId);
+        return traced("queueIfFull", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* RELEASE_BOOK: IF rented_count = expected AND queue = expected; an empty map is null */
+    ResultSet release(String userId, String libraryId, String bookId, int rentedCount, Integer expectedCount, Map<String, Date> expectedQueue) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (!Objects.equals(entry.rentedCount, expectedCount) || !sameQueue(entry, expectedQueue)) return traced("release", userId, libraryId, bookId, notApplied(entry));
+        entry.rentedCount = rentedCount;
+        entry.rented.remove(userId);
+        entry.due.remove(userId);
+        check(entry, bookId);
+        return traced("release", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* HAND_OVER_BOOK: IF rented_count = expected AND queue = expected */
+    ResultSet handOver(String userId, String nextUserId, String libraryId, String bookId, Date now, Date dueDate,
+                       Integer expectedCount, Map<String, Date> expectedQueue) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (!Objects.equals(entry.rentedCount, expectedCount) || !sameQueue(entry, expectedQueue)) return traced("handOver", userId, libraryId, bookId, notApplied(entry));
+        checkOldest(entry, nextUserId, bookId);
+        entry.rented.remove(userId);
+        entry.due.remove(userId);
+        entry.queue.remove(nextUserId);
+        entry.rented.put(nextUserId, now);
+        entry.due.put(nextUserId, dueDate);
+        check(entry, bookId);
+        return traced("handOver", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* LEAVE_QUEUE_IF_QUEUED: IF queue CONTAINS KEY user */
+    ResultSet leaveIfQueued(String userId, String libraryId, String bookId) {
+        roundTrips++;
+        Entry entry = entry(libraryId, bookId);
+        if (!entry.queue.containsKey(userId)) return traced("leaveIfQueued", userId, libraryId, bookId, notApplied(entry));
+        entry.queue.remove(userId);
+        check(entry, bookId);
+        return traced("leaveIfQueued", userId, libraryId, bookId, APPLIED);
+    }
+
+    /* REPAIR_BOOK: IF book_count, rented_count, queue and rented_date are those of expected */
+    ResultSet repair(Book expected, Book repaired) {
+        roundTrips++;
+        String libraryId = expected.getLibraryId();
+        String bookId = expected.getBookId();
+        Entry entry = entry(libraryId, bookId);
+        if (entry.bookCount != expected.getBookCount() || !Objects.equals(entry.rentedCount, expected.getRentedCount())
+                || !entry.queue.equals(expected.getQueue()) || !entry.rented.equals(expected.getRented())) {
+            return traced("repair", null, libraryId, bookId, notApplied(entry));
+        }
+        // every promoted user must have waited at least as long as everybody left in the queue
+        for (String userId : repaired.getRented().keySet()) {
+            Date since = entry.queue.get(userId);
+            if (since == null) continue;
+            for (Map.Entry<String, Date> queued : entry.queue.entrySet()) {
+                if (repaired.getQueue().containsKey(queued.getKey()) && queued.getValue().before(since)) {
+                    violation(Invariant.FIFO, bookId + ": " + userId + " promoted while " + queued.getKey() + " waited longer");
+                }
+            }
+        }
+        entry.rentedCount = repaired.getRentedCount();
+        entry.queue.clear();
+        entry.queue.putAll(repaired.getQueue());
+        entry.rented.clear();
+        entry.rented.putAll(repaired.getRented());
+        entry.due.clear();
+        entry.due.putAll(repaired.getDue());
+        check(entry, bookId);
+        return traced("repair", null, libraryId, bookId, APPLIED);
+    }
+
+    /*
+     * Loans of users outside the schedule, as VALIDATE mode writes or a lowered book_count leave
+     * them: rented_count unset, possibly more copies rented than book_count or a queue next to free
+     * copies. Not checked, it is where the schedule starts from.
+     */
+    void legacy(String libraryId, String bookId, int renters, int waiting) {
+        Entry entry = entry(libraryId, bookId);
+        for (int i = 0; i < renters; i++) {
+            Date now = now();
+            entry.rented.put("legacy-" + i, now);
+            entry.due.put("legacy-" + i, new Date(now.getTime() + 1000));
+        }
+        for (int i = 0; i < waiting; i++) {
+            entry.queue.put("legacy-" + (renters + i), now());
+        }
+        traced("legacy", null, libraryId, bookId, APPLIED);
+    }
+
+    //------------------CHECKS---------------------------------------------------------------------------
+
+    /*
+     * The current row without counting a round trip, for the checks at the end of a schedule.
+     */
+    Book snapshot(String libraryId, String bookId) {
+        Entry entry = rows.get(key(libraryId, bookId));
+        if (entry == null) return null;
+        return new Book(libraryId, bookId, entry.bookCount, entry.rentedCount,
+                new HashMap<>(entry.queue), new HashMap<>(entry.rented), new HashMap<>(entry.due));
+    }
+
+    void violation(Invariant invariant, String message) {
+        broken.add(invariant);
+        if (violation == null) {
+            violation = invariant + " " + message;
+        }
+    }
+
+    String getViolation() {
+        return violation;
+    }
+
+    Set<Invariant> getBroken() {
+        return EnumSet.copyOf(broken);
+    }
+
+    int getRoundTrips() {
+        return roundTrips;
+    }
+
+    int getCasNotApplied() {
+        return casNotApplied;
+    }
+
+    /* copies rented directly while somebody was already waiting in the queue */
+    int getQueueJumps() {
+        return queueJumps;
+    }
+
+    /* the most copies rented above book_count at any moment */
+    int getMaxOverAllocation() {
+        return maxOverAllocation;
+    }
+
+    private void check(Entry entry, String bookId) {
+        int over = entry.rented.size() - entry.bookCount;
+        maxOverAllocation = Math.max(maxOverAllocation, over);
+        if (strictCopies && over > 0) {
+            violation(Invariant.COPIES, bookId + ": " + entry.rented.size() + " copies rented of " + entry.bookCount);
+        }
+        if (!entry.rented.keySet().equals(entry.due.keySet())) {
+            violation(Invariant.ROW, bookId + ": due_date " + entry.due.keySet() + " does not match rented_date " + entry.rented.keySet());
+        }
+        for (String userId : entry.rented.keySet()) {
+            if (entry.queue.containsKey(userId)) {
+                violation(Invariant.ROW, bookId + ": " + userId + " both rents and waits");
+            }
+        }
+    }
+
+    /*
+     * FIFO promotion: the promoted user must be the one that has waited longest.
+     */
+    private void checkOldest(Entry entry, String userId, String bookId) {
+        Date since = entry.queue.get(userId);
+        for (Map.Entry<String, Date> queued : entry.queue.entrySet()) {
+            if (queued.getValue().before(since)) {
+                violation(Invariant.FIFO, bookId + ": " + userId + " promoted while " + queued.getKey() + " waited longer");
+                return;
+            }
+        }
+    }
+
+    private ResultSet traced(String operation, String userId, String libraryId, String bookId, ResultSet rs) {
+        if (trace) {
+            Entry entry = rows.get(key(libraryId, bookId));
+            logger.info(String.format("%4d %-16s %-8s %-5s rented_count=%s rented=%s queue=%s", clock, operation, userId == null ? "" : userId,
+                    rs.wasApplied() ? "" : "FAIL", entry.rentedCount, entry.rented.keySet(), queueTimes(entry)));
+        }
+        return rs;
+    }
+
+    private Map<String, Long> queueTimes(Entry entry) {
+        Map<String, Long> times = new TreeMap<>();
+        entry.queue.forEach((user, since) -> times.put(user, since.getTime()));
+        return times;
+    }
+
+    private void countQueueJump(Entry entry, String userId) {
+        if (!entry.queue.isEmpty() && !entry.queue.containsKey(userId)) {
+            queueJumps++;
+        }
+    }
+
+    private static boolean sameQueue(Entry entry, Map<String, Date> expectedQueue) {
+        return expectedQueue == null || expectedQueue.isEmpty() ? entry.queue.isEmpty() : entry.queue.equals(expectedQueue);
+    }
+
+    private Entry entry(String libraryId, String bookId) {
+        return rows.computeIfAbsent(key(libraryId, bookId), key -> new Entry());
+    }
+
+    private static String key(String libraryId, String bookId) {
+        return libraryId + '\u0000' + bookId;
+    }
+
+    private ResultSet notApplied(Entry entry) {
+        casNotApplied++;
+        Map<String, Date> queue = new HashMap<>(entry.queue);
+        Integer rentedCount = entry.rentedCount;
+        int bookCount = entry.bookCount;
+        Row row = (Row) Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isNull": return "rented_count".equals(args[0]) ? rentedCount == null : "queue".equals(args[0]) && queue.isEmpty();
+                case "getInt": return "book_count".equals(args[0]) ? bookCount : rentedCount == null ? 0 : rentedCount;
+                case "getMap": return queue;
+                case "getBool": return false;
+                default: throw new UnsupportedOperationException("Row." + method.getName());
+            }
+        });
+        return result(false, row);
+    }
+
+    /*
+     * The little of ResultSet the protocol looks at: wasApplied() and the row of a failed condition.
+     */
+    private static ResultSet result(boolean applied, Row row) {
+        Row[] next = {row};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "wasApplied": return applied;
+                case "one": {
+                    Row one = next[0];
+                    next[0] = null;
+                    return one;
+                }
+                case "isExhausted": return next[0] == null;
+                case "getAvailableWithoutFetching": return next[0] == null ? 0 : 1;
+                case "isFullyFetched": return true;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                case "toString": return "ResultSet[applied=" + applied + "]";
+                default: throw new UnsupportedOperationException("ResultSet." + method.getName());
+            }
+        });
+    }
+}